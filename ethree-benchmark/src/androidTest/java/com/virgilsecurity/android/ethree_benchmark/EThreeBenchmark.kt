@@ -149,6 +149,28 @@ class EThreeBenchmark(
         }
     }
 
+    // Startup cost of cards database, which is opened lazily in WAL mode
+    @Ignore("Run only on a purpose on a real device (takes a lot of time ~1h+)")
+    @Test
+    fun startup_findCachedUser() {
+        val alice = setupDevice()
+        val bob = setupDevice()
+
+        alice.findUser(bob.identity).get()
+
+        val tokenCallback = object : OnGetTokenCallback {
+            override fun onGetToken(): String {
+                return TestUtils.generateTokenString(alice.identity)
+            }
+        }
+
+        benchmarkRule.measureRepeated {
+            val ethree = EThree(alice.identity, tokenCallback, TestConfig.context)
+
+            ethree.findCachedUser(bob.identity).get()!!
+        }
+    }
+
     @Test
     fun dummy_test() {
         val state = benchmarkRule.getState()
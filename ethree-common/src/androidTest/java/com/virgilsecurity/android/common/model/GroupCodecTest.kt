@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.model
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.virgilsecurity.common.extension.toData
+import com.virgilsecurity.common.model.Data
+import com.virgilsecurity.common.util.SerializeUtils
+import com.virgilsecurity.crypto.foundation.GroupSession
+import com.virgilsecurity.sdk.crypto.VirgilCrypto
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * GroupCodecTest
+ */
+@RunWith(AndroidJUnit4::class)
+class GroupCodecTest {
+
+    private lateinit var crypto: VirgilCrypto
+    private lateinit var ticket: Ticket
+
+    @Before
+    fun setup() {
+        this.crypto = VirgilCrypto()
+
+        // Ticket of a group which had a few epochs, with identities as apps usually have them
+        val participants = (0 until PARTICIPANTS_COUNT)
+                .mapTo(HashSet()) { "${UUID.randomUUID()}@example.com" }
+        val firstTicket = Ticket(crypto, crypto.generateRandomData(32).toData(), participants)
+
+        val session = GroupSession()
+        session.setRng(crypto.rng)
+        session.addEpoch(firstTicket.groupMessage)
+        repeat(3) { session.addEpoch(session.createGroupTicket().ticketMessage) }
+
+        this.ticket = Ticket(session.createGroupTicket().ticketMessage, participants)
+    }
+
+    @Test
+    fun ticket_round_trip_both_formats() {
+        val binary = ticket.serialize()
+        val json = jsonTicket(ticket)
+
+        assertTrue(GroupCodec.isTicket(binary.value))
+        assertFalse(GroupCodec.isTicket(json.value))
+
+        assertEquals(ticket, Ticket.deserialize(binary))
+        assertEquals(ticket, Ticket.deserialize(json))
+
+        println("Ticket of $PARTICIPANTS_COUNT participants: binary ${binary.value.size} bytes, " +
+                "JSON ${json.value.size} bytes")
+        assertTrue(binary.value.size < json.value.size)
+    }
+
+    @Test
+    fun group_info_round_trip_both_formats() {
+        val info = GroupInfo("${UUID.randomUUID()}@example.com", isLarge = true, minEpoch = 3)
+
+        val binary = info.serialize()
+        val json = SerializeUtils.serialize(info)
+
+        assertTrue(GroupCodec.isGroupInfo(binary.value))
+        assertFalse(GroupCodec.isGroupInfo(json.value))
+
+        listOf(binary, json).map(GroupInfo::deserialize).forEach { decoded ->
+            assertEquals(info.initiator, decoded.initiator)
+            assertEquals(info.isLarge, decoded.isLarge)
+            assertEquals(info.minEpoch, decoded.minEpoch)
+        }
+
+        assertTrue(binary.value.size < json.value.size)
+    }
+
+    @Test
+    fun ticket_codec_time() {
+        val binary = ticket.serialize()
+        val json = jsonTicket(ticket)
+
+        // Warm up
+        repeat(ITERATIONS) {
+            Ticket.deserialize(binary)
+            Ticket.deserialize(json)
+        }
+
+        val binaryEncode = measureMillis { repeat(ITERATIONS) { ticket.serialize() } }
+        val jsonEncode = measureMillis { repeat(ITERATIONS) { jsonTicket(ticket) } }
+        val binaryDecode = measureMillis { repeat(ITERATIONS) { Ticket.deserialize(binary) } }
+        val jsonDecode = measureMillis { repeat(ITERATIONS) { Ticket.deserialize(json) } }
+
+        println("Ticket codec, $ITERATIONS iterations: " +
+                "binary encode $binaryEncode ms, decode $binaryDecode ms; " +
+                "JSON encode $jsonEncode ms, decode $jsonDecode ms")
+    }
+
+    // Format tickets were stored in by earlier versions
+    private fun jsonTicket(ticket: Ticket): Data = SerializeUtils.serialize(
+        mapOf("groupMessage" to ticket.groupMessage.serialize(),
+              "participants" to ticket.participants)
+    )
+
+    private fun measureMillis(block: () -> Unit): Long {
+        val start = System.nanoTime()
+        block()
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+    }
+
+    companion object {
+        private const val PARTICIPANTS_COUNT = 100
+        private const val ITERATIONS = 1000
+    }
+}
@@ -33,12 +33,13 @@
 
 package com.virgilsecurity.android.common.model
 
-import android.os.Parcel
 import android.util.Log
 import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.virgilsecurity.android.common.exception.FileGroupStorageException
 import com.virgilsecurity.android.common.exception.GroupException
 import com.virgilsecurity.common.extension.toData
 import com.virgilsecurity.common.model.Data
+import com.virgilsecurity.common.util.SerializeUtils
 import com.virgilsecurity.sdk.crypto.HashAlgorithm
 import com.virgilsecurity.sdk.crypto.VirgilCrypto
 import org.junit.Assert.*
@@ -54,27 +55,8 @@ import kotlin.collections.HashMap
 @RunWith(AndroidJUnit4::class)
 class TicketTest {
 
-    @Test fun ticket_parcelable_with_serializable_participants() {
-        val crypto = VirgilCrypto()
-        val identifierData = UUID.randomUUID().toString().toData()
-        val sessionId = computeSessionId(identifierData, crypto)
-        val participantsSet = setOf("Bob", "Alice", "Jane")
-        val ticket = Ticket(crypto, sessionId, participantsSet)
-
-        val groupMessage = ticket.groupMessage
-        val participants = ticket.participants
-
-        val parcel = Parcel.obtain()
-        ticket.writeToParcel(parcel, ticket.describeContents())
-        parcel.setDataPosition(0)
-
-        val createdFromParcel = Ticket.CREATOR.createFromParcel(parcel)
-        assertArrayEquals(createdFromParcel.groupMessage.serialize(), groupMessage.serialize())
-        assertEquals(createdFromParcel.participants, participants)
-    }
-
     @Test(expected = IllegalArgumentException::class)
-    fun ticket_parcelable_with_not_serializable_participants() {
+    fun ticket_with_not_serializable_participants() {
         val crypto = VirgilCrypto()
         val identifierData = UUID.randomUUID().toString().toData()
         val sessionId = computeSessionId(identifierData, crypto)
@@ -112,6 +94,62 @@ class TicketTest {
         assertEquals(0, deserializedTicket.groupMessage.epoch)
     }
 
+    @Test
+    fun ticket_binary_encoding() {
+        val crypto = VirgilCrypto()
+        val identifierData = UUID.randomUUID().toString().toData()
+        val sessionId = computeSessionId(identifierData, crypto)
+        val participantsSet = (0 until 50).map { UUID.randomUUID().toString() }.toHashSet()
+        val ticket = Ticket(crypto, sessionId, participantsSet)
+
+        val serializedTicket = ticket.serialize()
+        val jsonTicket = SerializeUtils.serialize(
+            mapOf("groupMessage" to ticket.groupMessage.serialize(),
+                  "participants" to participantsSet)
+        )
+        assertTrue(serializedTicket.value.size < jsonTicket.value.size)
+
+        val deserializedTicket = Ticket.deserialize(serializedTicket)
+        assertEquals(ticket, deserializedTicket)
+        assertEquals(ticket.hashCode(), deserializedTicket.hashCode())
+        assertArrayEquals(serializedTicket.value, deserializedTicket.serialize().value)
+
+        // Participants are interned, so the same identities are not duplicated in memory
+        val otherTicket = Ticket.deserialize(serializedTicket)
+        deserializedTicket.participants.forEach { participant ->
+            assertTrue(otherTicket.participants.any { it === participant })
+        }
+    }
+
+    @Test
+    fun ticket_truncated_binary_encoding() {
+        val crypto = VirgilCrypto()
+        val identifierData = UUID.randomUUID().toString().toData()
+        val sessionId = computeSessionId(identifierData, crypto)
+        val ticket = Ticket(crypto, sessionId, setOf("Bob", "Alice", "Jane"))
+
+        val serializedTicket = ticket.serialize().value
+        val truncated = serializedTicket.copyOf(serializedTicket.size - 1)
+
+        try {
+            Ticket.deserialize(truncated.toData())
+            fail()
+        } catch (exception: FileGroupStorageException) {
+            assertEquals(FileGroupStorageException.Description.INVALID_ENCODING,
+                         exception.description)
+        }
+    }
+
+    @Test
+    fun group_info_serialize_deserialize() {
+        val groupInfo = GroupInfo("Bob")
+        assertEquals("Bob", GroupInfo.deserialize(groupInfo.serialize()).initiator)
+
+        // Group info stored as JSON by earlier versions
+        val jsonGroupInfo = "{\"initiator\":\"Alice\"}".toData()
+        assertEquals("Alice", GroupInfo.deserialize(jsonGroupInfo).initiator)
+    }
+
     private fun computeSessionId(identifier: Data, crypto: VirgilCrypto): Data {
         if (identifier.value.size <= 10)
             throw GroupException(GroupException.Description.SHORT_GROUP_ID)
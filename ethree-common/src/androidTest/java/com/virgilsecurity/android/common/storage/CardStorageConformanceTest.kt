@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.storage
+
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+import com.virgilsecurity.android.common.exception.SQLiteStorageException
+import com.virgilsecurity.sdk.cards.Card
+import com.virgilsecurity.sdk.cards.CardManager
+import com.virgilsecurity.sdk.cards.validation.VirgilCardVerifier
+import com.virgilsecurity.sdk.crypto.VirgilCardCrypto
+import com.virgilsecurity.sdk.crypto.VirgilCrypto
+import com.virgilsecurity.sdk.jwt.accessProviders.CachingJwtProvider
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.InputStreamReader
+
+/**
+ * Checks that [CardStorage] implementation behaves the same way as other implementations.
+ * Every implementation should have a subclass of this test.
+ */
+abstract class CardStorageConformanceTest {
+
+    protected val cIdentity1 = "8DA6A11D-F8BC-4A1D-A221-CEE3A2D70631"
+    protected val cIdentity2 = "D4E8E4CA-6FB4-42B6-A3FF-DBBC19201DD6"
+
+    protected val cCardId1 = "b2e6c8bee5cfa40fa2ac2bc8961057600bced26bc5b29aab04014c5141a91bd4"
+    protected val cCardId2 = "9ff917a7a1aa0891b875d4a9e43972a0fb694879bf8987790c1615dd864a38a4"
+    protected val cCardId3 = "e66465a08232beb55e33b4ce5e8772d748911c9b830797336e1ce342c78829a2"
+
+    protected lateinit var crypto: VirgilCrypto
+    protected lateinit var verifier: VirgilCardVerifier
+    protected lateinit var storage: CardStorage
+
+    // Sample cards by id. Card with cCardId1 is a rotation of card with cCardId2.
+    protected lateinit var cards: Map<String, Card>
+
+    protected abstract fun createStorage(): CardStorage
+
+    @Before
+    fun setupStorage() {
+        crypto = VirgilCrypto()
+        verifier = VirgilCardVerifier(VirgilCardCrypto(crypto))
+        cards = loadCards()
+        storage = createStorage()
+    }
+
+    @Test
+    fun storeCard_getCard() {
+        storeSampleCards()
+
+        val card1 = storage.getCard(cCardId1)
+        val card2 = storage.getCard(cCardId2)
+        val card3 = storage.getCard(cCardId3)
+        assertNotNull(card1)
+        assertNotNull(card2)
+        assertNotNull(card3)
+
+        assertEquals(cIdentity1, card1!!.identity)
+        assertEquals(cIdentity1, card2!!.identity)
+        assertEquals(cIdentity2, card3!!.identity)
+
+        assertEquals(cCardId2, card1.previousCardId)
+        assertNull(card1.previousCard)
+
+        assertFalse(card1.isOutdated)
+        assertTrue(card2.isOutdated)
+        assertFalse(card3.isOutdated)
+    }
+
+    @Test
+    fun getCard_missing() {
+        storeSampleCards()
+
+        assertNull(storage.getCard("ffff" + cCardId1.substring(4)))
+    }
+
+    @Test
+    fun searchCards() {
+        storeSampleCards()
+
+        val found = storage.searchCards(listOf(cIdentity1, cIdentity2))
+        assertEquals(2, found.size)
+
+        val card1 = found.first { it.identity == cIdentity1 }
+        val card2 = found.first { it.identity == cIdentity2 }
+
+        assertEquals(cCardId1, card1.identifier)
+        assertEquals(cCardId3, card2.identifier)
+
+        assertNotNull(card1.previousCard)
+        assertEquals(cCardId2, card1.previousCard.identifier)
+        assertTrue(card1.previousCard.isOutdated)
+        assertFalse(card1.isOutdated)
+        assertNull(card2.previousCard)
+    }
+
+    @Test(expected = SQLiteStorageException::class)
+    fun searchCards_empty_identities() {
+        storage.searchCards(listOf())
+    }
+
+    @Test
+    fun storeCard_rotate_card() {
+        // Storing new card should mark previously stored one as outdated
+        val card2 = loadCards()[cCardId2]!!
+        card2.isOutdated = false
+        storage.storeCard(card2)
+        assertFalse(storage.getCard(cCardId2)!!.isOutdated)
+
+        val card1 = loadCards()[cCardId1]!!
+        storage.storeCard(card1)
+
+        assertTrue(storage.getCard(cCardId2)!!.isOutdated)
+        assertFalse(storage.getCard(cCardId1)!!.isOutdated)
+    }
+
+    @Test
+    fun getNewestCardIds() {
+        storeSampleCards()
+
+        val ids = storage.getNewestCardIds()
+        assertEquals(setOf(cCardId1, cCardId3), ids.toSet())
+    }
+
+    @Test
+    fun reset() {
+        storeSampleCards()
+
+        storage.reset()
+
+        assertNull(storage.getCard(cCardId1))
+        assertNull(storage.getCard(cCardId2))
+        assertNull(storage.getCard(cCardId3))
+        assertTrue(storage.getNewestCardIds().isEmpty())
+        assertTrue(storage.searchCards(listOf(cIdentity1, cIdentity2)).isEmpty())
+    }
+
+    protected fun storeSampleCards() {
+        val card1 = cards.getValue(cCardId1)
+        val card2 = cards.getValue(cCardId2)
+        card1.previousCard = card2
+
+        storage.storeCard(card1)
+        storage.storeCard(cards.getValue(cCardId3))
+    }
+
+    private fun loadCards(): Map<String, Card> {
+        val tokenProvider = CachingJwtProvider(CachingJwtProvider.RenewJwtCallback(function = {
+            return@RenewJwtCallback null
+        }))
+        val cardManager = CardManager(VirgilCardCrypto(crypto), tokenProvider, verifier)
+
+        val databasesDataStream =
+                this.javaClass.classLoader?.getResourceAsStream("databases/cards.json")
+        val sampleJson = JsonParser().parse(InputStreamReader(databasesDataStream)) as JsonObject
+
+        return sampleJson.entrySet().associate {
+            val card = cardManager.importCardAsJson((it.value as JsonObject)["card"].asString)
+            card.isOutdated = (it.value as JsonObject)["is_outdated"].asBoolean
+
+            it.key to card
+        }
+    }
+}
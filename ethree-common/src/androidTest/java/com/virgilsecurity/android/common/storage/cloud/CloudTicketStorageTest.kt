@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.storage.cloud
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.virgilsecurity.android.common.model.EThreeParams
+import com.virgilsecurity.android.common.model.Ticket
+import com.virgilsecurity.android.common.utils.TestConfig
+import com.virgilsecurity.android.common.utils.TestUtils
+import com.virgilsecurity.android.ethree.interaction.EThree
+import com.virgilsecurity.common.extension.toData
+import com.virgilsecurity.common.model.Data
+import com.virgilsecurity.crypto.foundation.GroupSession
+import com.virgilsecurity.sdk.cards.Card
+import com.virgilsecurity.sdk.crypto.KeyPairType
+import com.virgilsecurity.sdk.crypto.VirgilCrypto
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+@RunWith(AndroidJUnit4::class)
+class CloudTicketStorageTest {
+
+    private lateinit var crypto: VirgilCrypto
+    private lateinit var ethree1: EThree
+    private lateinit var ethree2: EThree
+    private lateinit var storage1: CloudTicketStorage
+    private lateinit var storage2: CloudTicketStorage
+    private lateinit var card1: Card
+    private lateinit var card2: Card
+    private lateinit var sessionId: Data
+
+    @Before
+    fun setup() {
+        this.crypto = TestConfig.virgilCrypto
+
+        this.ethree1 = createEThree()
+        this.ethree2 = createEThree()
+        this.storage1 = ethree1.getGroupManager().cloudTicketStorage
+        this.storage2 = ethree2.getGroupManager().cloudTicketStorage
+
+        this.card1 = ethree2.findUser(ethree1.identity).get()
+        this.card2 = ethree1.findUser(ethree2.identity).get()
+        this.sessionId = crypto.generateRandomData(32).toData()
+    }
+
+    @Test
+    fun retrieve_several_epochs() {
+        val tickets = storeTickets(EPOCHS_COUNT)
+        val epochs = tickets.mapTo(HashSet()) { "${it.groupMessage.epoch}" }
+
+        // Pulled by initiator and by participant, tickets come in epochs order
+        val selfCard = ethree1.findUser(ethree1.identity).get()
+        assertEquals(tickets,
+                     storage1.retrieve(sessionId, card1.identity, selfCard.publicKey, epochs))
+        assertEquals(tickets, storage2.retrieve(sessionId, card1.identity, card1.publicKey, epochs))
+
+        assertEquals(tickets.takeLast(1),
+                     storage2.retrieve(sessionId,
+                                       card1.identity,
+                                       card1.publicKey,
+                                       setOf("${EPOCHS_COUNT - 1}")))
+    }
+
+    @Test
+    fun retrieve_concurrently_on_shared_executor() {
+        val tickets = storeTickets(EPOCHS_COUNT)
+        val epochs = tickets.mapTo(HashSet()) { "${it.groupMessage.epoch}" }
+
+        // Several retrievals of more epochs than executor has threads share the same executor
+        val callers = Executors.newFixedThreadPool(4)
+        try {
+            val futures = (0 until 4).map {
+                callers.submit(Callable {
+                    storage2.retrieve(sessionId, card1.identity, card1.publicKey, epochs)
+                })
+            }
+
+            futures.forEach { assertEquals(tickets, it.get(1, TimeUnit.MINUTES)) }
+        } finally {
+            callers.shutdown()
+        }
+    }
+
+    @Test
+    fun retrieve_missing_epoch_fails() {
+        val tickets = storeTickets(EPOCHS_COUNT)
+        val epochs = tickets.mapTo(HashSet()) { "${it.groupMessage.epoch}" }
+
+        try {
+            storage2.retrieve(sessionId, card1.identity, card1.publicKey, epochs + "100")
+            fail()
+        } catch (exception: Exception) {
+            // Retrieval is all-or-nothing, so no tickets are returned
+        }
+
+        // Failure doesn't affect following retrievals
+        assertEquals(tickets, storage2.retrieve(sessionId, card1.identity, card1.publicKey, epochs))
+    }
+
+    @Test
+    fun retrieve_time() {
+        val tickets = storeTickets(EPOCHS_COUNT)
+        val epochs = tickets.mapTo(HashSet()) { "${it.groupMessage.epoch}" }
+
+        // Warm up connections and tokens
+        storage2.retrieve(sessionId, card1.identity, card1.publicKey, epochs)
+
+        val sequential = measureMillis {
+            epochs.forEach { epoch ->
+                storage2.retrieve(sessionId, card1.identity, card1.publicKey, setOf(epoch))
+            }
+        }
+        val concurrent = measureMillis {
+            storage2.retrieve(sessionId, card1.identity, card1.publicKey, epochs)
+        }
+
+        println("Retrieve of $EPOCHS_COUNT epochs: one by one $sequential ms, " +
+                "concurrently $concurrent ms")
+    }
+
+    private fun storeTickets(count: Int): List<Ticket> {
+        val participants = hashSetOf(ethree1.identity, ethree2.identity)
+        val firstTicket = Ticket(crypto, sessionId, participants)
+
+        val session = GroupSession()
+        session.setRng(crypto.rng)
+        session.addEpoch(firstTicket.groupMessage)
+
+        val tickets = mutableListOf(firstTicket)
+        for (i in 1 until count) {
+            val ticketMessage = session.createGroupTicket().ticketMessage
+            session.addEpoch(ticketMessage)
+            tickets.add(Ticket(ticketMessage, participants))
+        }
+
+        tickets.forEach { storage1.store(it, listOf(card2)) }
+
+        return tickets
+    }
+
+    private fun measureMillis(block: () -> Unit): Long {
+        val start = System.nanoTime()
+        block()
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+    }
+
+    private fun createEThree(): EThree {
+        val identity = UUID.randomUUID().toString()
+
+        val params = EThreeParams(identity,
+                                  { TestUtils.generateTokenString(identity) },
+                                  TestConfig.context)
+        params.keyPairType = KeyPairType.ED25519
+        val ethree = EThree(params)
+        ethree.register().execute()
+
+        return ethree
+    }
+
+    companion object {
+        // More epochs than CloudTicketStorage pulls at a time
+        private const val EPOCHS_COUNT = 12
+    }
+}
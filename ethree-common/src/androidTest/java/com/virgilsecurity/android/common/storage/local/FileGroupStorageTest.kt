@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.storage.local
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.virgilsecurity.android.common.exception.FileGroupStorageException
+import com.virgilsecurity.android.common.model.GroupInfo
+import com.virgilsecurity.android.common.model.RawGroup
+import com.virgilsecurity.android.common.model.Ticket
+import com.virgilsecurity.android.common.util.Const
+import com.virgilsecurity.android.common.utils.TestConfig
+import com.virgilsecurity.common.extension.toData
+import com.virgilsecurity.common.model.Data
+import com.virgilsecurity.common.util.toHexString
+import com.virgilsecurity.crypto.foundation.GroupSession
+import com.virgilsecurity.sdk.crypto.VirgilCrypto
+import com.virgilsecurity.sdk.crypto.VirgilKeyPair
+import com.virgilsecurity.sdk.storage.FileSystemEncrypted
+import com.virgilsecurity.sdk.storage.FileSystemEncryptedCredentials
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+import java.io.RandomAccessFile
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+@RunWith(AndroidJUnit4::class)
+class FileGroupStorageTest {
+
+    private lateinit var crypto: VirgilCrypto
+    private lateinit var identity: String
+    private lateinit var keyPair: VirgilKeyPair
+    private lateinit var rootPath: String
+    private lateinit var storage: FileGroupStorage
+    private lateinit var sessionId: Data
+
+    @Before
+    fun setup() {
+        this.crypto = VirgilCrypto()
+        this.identity = UUID.randomUUID().toString()
+        this.keyPair = crypto.generateKeyPair()
+        this.rootPath = TestConfig.context.filesDir.absolutePath
+        this.storage = FileGroupStorage(identity, crypto, keyPair, rootPath)
+        this.sessionId = crypto.generateRandomData(32).toData()
+    }
+
+    @Test
+    fun store_retrieve() {
+        val tickets = generateTickets(5)
+        storage.store(RawGroup(GroupInfo(identity), tickets))
+
+        assertEquals(setOf("0", "1", "2", "3", "4"), storage.getEpochs(sessionId))
+
+        val rawGroup = storage.retrieve(sessionId, 3)
+        assertEquals(identity, rawGroup.info.initiator)
+        assertEquals(tickets.takeLast(3), rawGroup.tickets)
+
+        assertEquals(tickets[1], storage.retrieve(sessionId, 1L).tickets.single())
+    }
+
+    @Test
+    fun store_appends_epochs() {
+        val tickets = generateTickets(4)
+        storage.store(RawGroup(GroupInfo(identity), tickets.take(2)))
+        storage.store(RawGroup(GroupInfo(identity), tickets.drop(2)))
+
+        assertEquals(4, storage.getEpochs(sessionId).size)
+        assertEquals(tickets, storage.retrieve(sessionId, 10).tickets)
+    }
+
+    @Test
+    fun set_participants() {
+        val tickets = generateTickets(2)
+        storage.store(RawGroup(GroupInfo(identity), tickets))
+
+        val newParticipants = hashSetOf(identity, UUID.randomUUID().toString())
+        storage.setParticipants(newParticipants, sessionId)
+
+        val lastTicket = storage.retrieve(sessionId, 1).tickets.single()
+        assertEquals(newParticipants, lastTicket.participants)
+        assertEquals(2, storage.getEpochs(sessionId).size)
+    }
+
+    @Test
+    fun retrieve_missing_epoch() {
+        storage.store(RawGroup(GroupInfo(identity), generateTickets(1)))
+
+        try {
+            storage.retrieve(sessionId, 1L)
+            fail()
+        } catch (exception: FileGroupStorageException) {
+            assertEquals(FileGroupStorageException.Description.EMPTY_FILE, exception.description)
+        }
+    }
+
+    @Test
+    fun incomplete_record_ignored() {
+        val tickets = generateTickets(3)
+        storage.store(RawGroup(GroupInfo(identity), tickets))
+
+        // Simulate crash in the middle of append
+        RandomAccessFile(segmentFile(), "rw").use {
+            it.setLength(it.length() - 10)
+        }
+        assertEquals(tickets.take(2), storage.retrieve(sessionId, 10).tickets)
+
+        storage.store(RawGroup(GroupInfo(identity), tickets.takeLast(1)))
+        assertEquals(tickets, storage.retrieve(sessionId, 10).tickets)
+    }
+
+    @Test
+    fun migrate_ticket_files() {
+        val tickets = generateTickets(3)
+
+        // Tickets layout of previous versions
+        val fullPath = rootPath + File.separator + identity + File.separator +
+                       Const.STORAGE_POSTFIX_E3KIT + File.separator + "GROUPS"
+        val fileSystem = FileSystemEncrypted(fullPath,
+                                             FileSystemEncryptedCredentials(crypto, keyPair))
+        val sessionIdHex = sessionId.toHexString()
+        fileSystem.write(GroupInfo(identity).serialize(), "GROUP_INFO", sessionIdHex)
+        tickets.forEach {
+            fileSystem.write(it.serialize(),
+                             it.groupMessage.epoch.toString(),
+                             sessionIdHex + File.separator + "TICKETS")
+        }
+
+        assertEquals(setOf("0", "1", "2"), storage.getEpochs(sessionId))
+        assertEquals(tickets, storage.retrieve(sessionId, 10).tickets)
+        assertFalse(File(fullPath, sessionIdHex + File.separator + "TICKETS").exists())
+        assertTrue(segmentFile().exists())
+    }
+
+    @Test
+    fun delete() {
+        storage.store(RawGroup(GroupInfo(identity), generateTickets(2)))
+
+        storage.delete(sessionId)
+
+        assertTrue(storage.getEpochs(sessionId).isEmpty())
+        assertFalse(segmentFile().exists())
+    }
+
+    @Test
+    fun prune() {
+        val tickets = generateTickets(5)
+        storage.store(RawGroup(GroupInfo(identity), tickets))
+
+        storage.prune(sessionId, 3)
+
+        assertEquals(setOf("3", "4"), storage.getEpochs(sessionId))
+        assertEquals(3, storage.getMinEpoch(sessionId))
+        assertEquals(tickets.takeLast(2), storage.retrieve(sessionId, 10).tickets)
+
+        // Pruned epochs are not stored again
+        storage.store(RawGroup(GroupInfo(identity), tickets))
+        assertEquals(setOf("3", "4"), storage.getEpochs(sessionId))
+    }
+
+    @Test
+    fun superseded_records_rewritten() {
+        val tickets = generateTickets(2)
+        storage.store(RawGroup(GroupInfo(identity), tickets))
+        storage.setParticipants(hashSetOf(identity, UUID.randomUUID().toString()), sessionId)
+
+        // All records have the same size, as participants sets have the same size
+        val recordSize = (segmentFile().length() - 8) / 3
+
+        var lastParticipants = emptySet<String>()
+        repeat(100) {
+            lastParticipants = hashSetOf(identity, UUID.randomUUID().toString())
+            storage.setParticipants(lastParticipants, sessionId)
+        }
+
+        val maxRecords = tickets.size + TicketSegment.MAX_SUPERSEDED_RECORDS
+        assertTrue(segmentFile().length() <= 8 + maxRecords * recordSize)
+        assertEquals(setOf("0", "1"), storage.getEpochs(sessionId))
+        val lastTicket = storage.retrieve(sessionId, 1).tickets.single()
+        assertEquals(lastParticipants, lastTicket.participants)
+
+        // Segment index is scanned again by new storage
+        val storage2 = FileGroupStorage(identity, crypto, keyPair, rootPath)
+        assertEquals(tickets.first(), storage2.retrieve(sessionId, 2).tickets.first())
+        assertEquals(lastTicket, storage2.retrieve(sessionId, 1).tickets.single())
+    }
+
+    @Test
+    fun prune_removes_superseded_records() {
+        val segment = TicketSegment(segmentFile(), crypto, keyPair)
+        val tickets = generateTickets(3)
+        segment.append(tickets)
+        val length = segmentFile().length()
+
+        segment.append(listOf(Ticket(tickets.last().groupMessage, hashSetOf(identity))))
+        segment.prune(0)
+
+        assertEquals(length, segmentFile().length())
+        assertEquals(setOf(0L, 1L, 2L), segment.readIndex().keys)
+        assertEquals(tickets, segment.read(segment.readIndex().values))
+    }
+
+    @Test
+    fun segment_operations_time() {
+        storage.store(RawGroup(GroupInfo(identity), generateTickets(50)))
+        repeat(50) {
+            storage.setParticipants(hashSetOf(identity, UUID.randomUUID().toString()), sessionId)
+        }
+        val tickets = generateTickets(51)
+
+        // Cold storage scans segment index on the first access, warm one uses cached index
+        val coldStorage1 = FileGroupStorage(identity, crypto, keyPair, rootPath)
+        val coldStorage2 = FileGroupStorage(identity, crypto, keyPair, rootPath)
+        val coldRetrieve = measureMillis { coldStorage1.retrieve(sessionId, 50) }
+        val coldEpochs = measureMillis { coldStorage2.getEpochs(sessionId) }
+
+        val iterations = 50
+        val retrieve = measureMillis { repeat(iterations) { storage.retrieve(sessionId, 50) } }
+        val epochs = measureMillis { repeat(iterations) { storage.getEpochs(sessionId) } }
+        val store = measureMillis {
+            repeat(iterations) {
+                storage.store(RawGroup(GroupInfo(identity), listOf(tickets.last())))
+            }
+        }
+
+        println("Segment of 50 epochs, cold: retrieve $coldRetrieve ms, getEpochs $coldEpochs ms")
+        println("Segment of 50 epochs, warm: retrieve ${retrieve.toDouble() / iterations} ms, " +
+                "getEpochs ${epochs.toDouble() / iterations} ms, " +
+                "store ${store.toDouble() / iterations} ms")
+
+        assertEquals(51, storage.getEpochs(sessionId).size)
+    }
+
+    @Test
+    fun index_follows_changes() {
+        val tickets = generateTickets(3)
+        storage.store(RawGroup(GroupInfo(identity), tickets))
+
+        val summary = storage.listGroups().single()
+        assertEquals(sessionId.toHexString(), summary.sessionId.toHexString())
+        assertEquals(identity, summary.initiator)
+        assertEquals(2, summary.epoch)
+        assertEquals(setOf(identity), summary.participants)
+
+        val participant = UUID.randomUUID().toString()
+        storage.setParticipants(hashSetOf(identity, participant), sessionId)
+        assertEquals(1, storage.groupsWithParticipant(participant).size)
+
+        // Older epoch doesn't override actual state
+        storage.store(RawGroup(GroupInfo(identity), tickets.take(1)))
+        assertEquals(2, storage.listGroups().single().epoch)
+
+        // Index is persisted
+        val otherStorage = FileGroupStorage(identity, crypto, keyPair, rootPath)
+        assertEquals(1, otherStorage.groupsWithParticipant(participant).size)
+
+        storage.delete(sessionId)
+        assertTrue(storage.listGroups().isEmpty())
+        assertTrue(storage.groupsWithParticipant(participant).isEmpty())
+    }
+
+    @Test
+    fun index_written_once_per_batch() {
+        val sessionIds = mutableListOf<Data>()
+        // Creates empty index file
+        assertTrue(storage.listGroups().isEmpty())
+
+        storage.batch {
+            repeat(3) {
+                this.sessionId = crypto.generateRandomData(32).toData()
+                sessionIds.add(this.sessionId)
+                storage.store(RawGroup(GroupInfo(identity), generateTickets(2)))
+            }
+
+            // Changes are visible in storage, but not written yet
+            assertEquals(3, storage.listGroups().size)
+            val otherStorage = FileGroupStorage(identity, crypto, keyPair, rootPath)
+            assertTrue(otherStorage.listGroups().isEmpty())
+        }
+
+        val otherStorage = FileGroupStorage(identity, crypto, keyPair, rootPath)
+        assertEquals(sessionIds.map { it.toHexString() }.toSet(),
+                     otherStorage.listGroups().map { it.sessionId.toHexString() }.toSet())
+    }
+
+    @Test
+    fun index_rebuilt() {
+        storage.store(RawGroup(GroupInfo(identity), generateTickets(2)))
+
+        val indexFile = File(rootPath + File.separator + identity + File.separator +
+                             Const.STORAGE_POSTFIX_E3KIT + File.separator + "GROUPS",
+                             "GROUPS.index")
+        assertTrue(indexFile.delete())
+
+        val otherStorage = FileGroupStorage(identity, crypto, keyPair, rootPath)
+        val summary = otherStorage.listGroups().single()
+        assertEquals(sessionId.toHexString(), summary.sessionId.toHexString())
+        assertEquals(1, summary.epoch)
+        assertTrue(indexFile.exists())
+    }
+
+    private fun measureMillis(block: () -> Unit): Long {
+        val start = System.nanoTime()
+        block()
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+    }
+
+    private fun segmentFile() = File(rootPath + File.separator + identity + File.separator +
+                                     Const.STORAGE_POSTFIX_E3KIT + File.separator + "GROUPS" +
+                                     File.separator + sessionId.toHexString(),
+                                     "TICKETS.segment")
+
+    private fun generateTickets(count: Int): List<Ticket> {
+        val participants = hashSetOf(identity)
+        val firstTicket = Ticket(crypto, sessionId, participants)
+
+        val session = GroupSession()
+        session.setRng(crypto.rng)
+        session.addEpoch(firstTicket.groupMessage)
+
+        val tickets = mutableListOf(firstTicket)
+        for (i in 1 until count) {
+            val ticketMessage = session.createGroupTicket().ticketMessage
+            session.addEpoch(ticketMessage)
+            tickets.add(Ticket(ticketMessage, participants))
+        }
+
+        return tickets
+    }
+}
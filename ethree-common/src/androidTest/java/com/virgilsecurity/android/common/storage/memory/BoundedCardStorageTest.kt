@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.storage.memory
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.virgilsecurity.android.common.storage.CardStorage
+import com.virgilsecurity.android.common.storage.CardStorageConformanceTest
+import org.junit.Assert.*
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class BoundedCardStorageTest : CardStorageConformanceTest() {
+
+    override fun createStorage(): CardStorage = BoundedCardStorage(MAX_IDENTITIES, crypto)
+
+    @Test
+    fun evicts_least_recently_used_identity() {
+        val storage = BoundedCardStorage(1, crypto)
+
+        storage.storeCard(cards.getValue(cCardId3))
+        assertNotNull(storage.getCard(cCardId3))
+
+        val card1 = cards.getValue(cCardId1)
+        card1.previousCard = cards.getValue(cCardId2)
+        storage.storeCard(card1)
+
+        // Whole chain of the newest identity is kept
+        assertNull(storage.getCard(cCardId3))
+        assertNotNull(storage.getCard(cCardId1))
+        assertNotNull(storage.getCard(cCardId2))
+        assertEquals(listOf(cCardId1), storage.getNewestCardIds())
+    }
+
+    companion object {
+        private const val MAX_IDENTITIES = 10
+    }
+}
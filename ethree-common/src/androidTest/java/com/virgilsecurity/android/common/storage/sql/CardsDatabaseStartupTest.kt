@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.storage.sql
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+import com.virgilsecurity.android.common.callback.OnGetTokenCallback
+import com.virgilsecurity.android.common.utils.TestConfig
+import com.virgilsecurity.android.common.utils.TestUtils
+import com.virgilsecurity.android.ethree.interaction.EThree
+import com.virgilsecurity.sdk.cards.CardManager
+import com.virgilsecurity.sdk.cards.validation.VirgilCardVerifier
+import com.virgilsecurity.sdk.crypto.VirgilCardCrypto
+import com.virgilsecurity.sdk.crypto.VirgilCrypto
+import com.virgilsecurity.sdk.jwt.accessProviders.CachingJwtProvider
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.InputStreamReader
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Measures startup cost of cards database, which is opened lazily and cards of which are updated
+ * in background, against opening and querying it on the thread that creates [EThree].
+ */
+@RunWith(AndroidJUnit4::class)
+class CardsDatabaseStartupTest {
+
+    private val cIdentity1 = "8DA6A11D-F8BC-4A1D-A221-CEE3A2D70631"
+
+    private val crypto = VirgilCrypto()
+
+    @Test
+    fun startup_time() {
+        val lazyIdentity = createFixture()
+        val eagerIdentity = createFixture()
+
+        val lazy = measure(lazyIdentity, eager = false)
+        val eager = measure(eagerIdentity, eager = true)
+
+        println("Cards database startup, lazy: constructor ${lazy.first} ms, " +
+                "first findCachedUser ${lazy.second} ms")
+        println("Cards database startup, eager: constructor ${eager.first} ms, " +
+                "first findCachedUser ${eager.second} ms")
+    }
+
+    /**
+     * Creates [EThree] for [identity] and finds cached card. If [eager], cards database is
+     * queried in constructor, like it was done before cached cards were updated in background.
+     *
+     * @return durations of constructor and of the first [EThree.findCachedUser] in milliseconds.
+     */
+    private fun measure(identity: String, eager: Boolean): Pair<Long, Long> {
+        val tokenCallback = object : OnGetTokenCallback {
+            override fun onGetToken(): String {
+                return TestUtils.generateTokenString(identity)
+            }
+        }
+
+        val constructorStart = System.nanoTime()
+        val ethree = EThree(identity, tokenCallback, TestConfig.context)
+        if (eager) {
+            ethree.lookupManager.cardStorage.getNewestCardIds()
+        }
+        val constructorEnd = System.nanoTime()
+
+        val card = ethree.findCachedUser(cIdentity1).get()
+        val findEnd = System.nanoTime()
+
+        assertNotNull(card)
+        assertEquals(cIdentity1, card!!.identity)
+
+        return Pair(TimeUnit.NANOSECONDS.toMillis(constructorEnd - constructorStart),
+                    TimeUnit.NANOSECONDS.toMillis(findEnd - constructorEnd))
+    }
+
+    /**
+     * Writes sample cards to cards database of new identity.
+     */
+    private fun createFixture(): String {
+        val identity = UUID.randomUUID().toString()
+        val verifier = VirgilCardVerifier(VirgilCardCrypto(crypto))
+        val storage = SQLCardStorage(TestConfig.context, identity, crypto, verifier)
+
+        val tokenProvider = CachingJwtProvider(CachingJwtProvider.RenewJwtCallback(function = {
+            return@RenewJwtCallback null
+        }))
+        val cardManager = CardManager(VirgilCardCrypto(crypto), tokenProvider, verifier)
+
+        val databasesDataStream =
+                this.javaClass.classLoader?.getResourceAsStream("databases/cards.json")
+        val json = JsonParser().parse(InputStreamReader(databasesDataStream)) as JsonObject
+
+        // Outdated cards go first, so newer cards mark them outdated
+        json.entrySet()
+                .sortedByDescending { (it.value as JsonObject)["is_outdated"].asBoolean }
+                .forEach {
+                    val cardData = (it.value as JsonObject)["card"].asString
+                    storage.storeCard(cardManager.importCardAsJson(cardData))
+                }
+
+        return identity
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.storage.sql
+
+import androidx.room.Room
+import androidx.room.testing.MigrationTestHelper
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+import com.virgilsecurity.android.common.utils.TestConfig
+import com.virgilsecurity.sdk.cards.validation.VirgilCardVerifier
+import com.virgilsecurity.sdk.crypto.VirgilCardCrypto
+import com.virgilsecurity.sdk.crypto.VirgilCrypto
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.InputStreamReader
+
+@RunWith(AndroidJUnit4::class)
+class ETheeDatabaseMigrationTest {
+
+    private val cIdentity1 = "8DA6A11D-F8BC-4A1D-A221-CEE3A2D70631"
+    private val cCardId1 = "b2e6c8bee5cfa40fa2ac2bc8961057600bced26bc5b29aab04014c5141a91bd4"
+    private val cCardId2 = "9ff917a7a1aa0891b875d4a9e43972a0fb694879bf8987790c1615dd864a38a4"
+
+    @get:Rule
+    val helper = MigrationTestHelper(InstrumentationRegistry.getInstrumentation(),
+                                     ETheeDatabase::class.java.canonicalName,
+                                     FrameworkSQLiteOpenHelperFactory())
+
+    @Test
+    fun migrate_1_2() {
+        createVersion1()
+
+        val db = helper.runMigrationsAndValidate(TEST_DB, 2, true, ETheeDatabase.MIGRATION_1_2)
+
+        db.query("SELECT last_access FROM ethree_cards").use { cursor ->
+            assertEquals(3, cursor.count)
+            while (cursor.moveToNext()) {
+                assertFalse(cursor.isNull(0))
+                assertEquals(0L, cursor.getLong(0))
+            }
+        }
+        db.close()
+
+        checkCardsReadable()
+    }
+
+    @Test
+    fun migrate_1_2_3() {
+        createVersion1()
+
+        helper.runMigrationsAndValidate(TEST_DB, 2, true, ETheeDatabase.MIGRATION_1_2).close()
+        val db = helper.runMigrationsAndValidate(TEST_DB, 3, true, ETheeDatabase.MIGRATION_2_3)
+
+        db.query("SELECT last_access, verified_hash, verified_at FROM ethree_cards").use { cursor ->
+            assertEquals(3, cursor.count)
+            while (cursor.moveToNext()) {
+                assertEquals(0L, cursor.getLong(0))
+                assertTrue(cursor.isNull(1))
+                assertTrue(cursor.isNull(2))
+            }
+        }
+        db.close()
+
+        // Old cards were never verified by this version, so they are verified on read
+        checkCardsReadable()
+    }
+
+    /**
+     * Creates database of version 1 with sample cards.
+     */
+    private fun createVersion1() {
+        val db = helper.createDatabase(TEST_DB, 1)
+
+        val stream = this.javaClass.classLoader?.getResourceAsStream("databases/cards.json")
+        val sampleJson = JsonParser().parse(InputStreamReader(stream)) as JsonObject
+        sampleJson.entrySet().forEach {
+            val card = it.value as JsonObject
+            db.execSQL("INSERT INTO ethree_cards (id, identity, is_outdated, card) "
+                       + "VALUES (?, ?, ?, ?)",
+                       arrayOf(it.key,
+                               card["identity"].asString,
+                               if (card["is_outdated"].asBoolean) 1 else 0,
+                               card["card"].asString))
+        }
+
+        db.close()
+    }
+
+    /**
+     * Opens migrated database with Room and reads sample cards from it.
+     */
+    private fun checkCardsReadable() {
+        val db = Room.databaseBuilder(TestConfig.context, ETheeDatabase::class.java, TEST_DB)
+                .addMigrations(ETheeDatabase.MIGRATION_1_2, ETheeDatabase.MIGRATION_2_3)
+                .build()
+        val crypto = VirgilCrypto()
+        val storage = SQLCardStorage(TestConfig.context,
+                                     TEST_DB,
+                                     crypto,
+                                     VirgilCardVerifier(VirgilCardCrypto(crypto)),
+                                     db)
+
+        try {
+            val card = storage.getCard(cCardId1)
+            assertNotNull(card)
+            assertEquals(cCardId2, card!!.previousCardId)
+
+            val cards = storage.searchCards(listOf(cIdentity1))
+            assertEquals(1, cards.size)
+            assertEquals(cCardId2, cards[0].previousCard.identifier)
+        } finally {
+            db.close()
+        }
+    }
+
+    companion object {
+        private const val TEST_DB = "ethree-migration-test"
+    }
+}
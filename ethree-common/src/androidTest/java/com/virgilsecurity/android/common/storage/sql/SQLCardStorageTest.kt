@@ -40,8 +40,13 @@ import com.google.gson.JsonParser
 import com.virgilsecurity.android.common.storage.CardStorage
 import com.virgilsecurity.android.common.storage.sql.model.CardEntity
 import com.virgilsecurity.android.common.utils.TestConfig
+import com.virgilsecurity.common.util.toHexString
+import com.virgilsecurity.sdk.cards.Card
 import com.virgilsecurity.sdk.cards.CardManager
+import com.virgilsecurity.sdk.cards.validation.CardVerifier
 import com.virgilsecurity.sdk.cards.validation.VirgilCardVerifier
+import com.virgilsecurity.sdk.common.TimeSpan
+import com.virgilsecurity.sdk.crypto.HashAlgorithm
 import com.virgilsecurity.sdk.crypto.VirgilCardCrypto
 import com.virgilsecurity.sdk.crypto.VirgilCrypto
 import com.virgilsecurity.sdk.jwt.accessProviders.CachingJwtProvider
@@ -52,6 +57,7 @@ import org.junit.Test
 import org.junit.runner.RunWith
 import java.io.InputStreamReader
 import java.util.*
+import java.util.concurrent.TimeUnit
 
 
 @RunWith(AndroidJUnit4::class)
@@ -180,6 +186,156 @@ class SQLCardStorageTest {
         assertNull(storage2.getCard(this.cCardId3))
     }
 
+    @Test
+    fun compact_evicts_orphaned_outdated_cards_first() {
+        val storage = SQLCardStorage(TestConfig.context,
+                                     identity,
+                                     crypto,
+                                     verifier,
+                                     db,
+                                     CardCacheLimits(maxCards = 2))
+        // Current card of identity was evicted earlier
+        db.cardDao().deleteByIds(listOf(this.cCardId3))
+        db.cardDao().insert(CardEntity(this.cCardId3,
+                                       this.cIdentity2,
+                                       true,
+                                       cardJson(this.cCardId3)))
+
+        storage.compact()
+
+        assertNotNull(storage.getCard(this.cCardId1))
+        assertNotNull(storage.getCard(this.cCardId2))
+        assertNull(storage.getCard(this.cCardId3))
+    }
+
+    @Test
+    fun compact_keeps_previous_cards_of_cached_identities() {
+        val storage = SQLCardStorage(TestConfig.context,
+                                     identity,
+                                     crypto,
+                                     verifier,
+                                     db,
+                                     CardCacheLimits(maxCards = 2))
+        db.cardDao().touchByIdentity(listOf(this.cIdentity1), System.currentTimeMillis())
+
+        storage.compact()
+
+        // Identity 2 is evicted instead of the previous card of identity 1
+        assertNull(storage.getCard(this.cCardId3))
+        val cards = storage.searchCards(listOf(this.cIdentity1))
+        assertEquals(1, cards.size)
+        assertEquals(this.cCardId1, cards[0].identifier)
+        assertEquals(this.cCardId2, cards[0].previousCard.identifier)
+        assertTrue(cards[0].previousCard.isOutdated)
+    }
+
+    @Test
+    fun compact_evicts_least_recently_used_identity() {
+        val storage = SQLCardStorage(TestConfig.context,
+                                     identity,
+                                     crypto,
+                                     verifier,
+                                     db,
+                                     CardCacheLimits(maxCards = 1))
+        db.cardDao().touchByIdentity(listOf(this.cIdentity1), System.currentTimeMillis())
+
+        storage.compact()
+
+        assertNotNull(storage.getCard(this.cCardId1))
+        assertNull(storage.getCard(this.cCardId2))
+        assertNull(storage.getCard(this.cCardId3))
+        assertEquals(listOf(this.cCardId1), storage.getNewestCardIds())
+    }
+
+    @Test
+    fun compact_within_limits() {
+        val storage = SQLCardStorage(TestConfig.context,
+                                     identity,
+                                     crypto,
+                                     verifier,
+                                     db,
+                                     CardCacheLimits(maxCards = 3, maxBytes = 1024 * 1024))
+
+        storage.compact()
+
+        checkCardsById(storage)
+    }
+
+    @Test
+    fun getCard_stored_card_not_verified_again() {
+        val storage2 = SQLCardStorage(TestConfig.context,
+                                      UUID.randomUUID().toString(),
+                                      crypto,
+                                      RejectingCardVerifier())
+
+        val cards = storage.searchCards(listOf(this.cIdentity1, this.cIdentity2))
+        storage2.storeCard(cards[0])
+        storage2.storeCard(cards[1])
+
+        checkCardsByIdentity(storage2)
+        checkCardsById(storage2)
+    }
+
+    @Test
+    fun getCard_unverified_card_verified() {
+        val storage2 = SQLCardStorage(TestConfig.context,
+                                      identity,
+                                      crypto,
+                                      RejectingCardVerifier(),
+                                      db)
+
+        try {
+            storage2.getCard(this.cCardId3)
+            fail()
+        } catch (exception: Exception) {
+            // Sample cards were never verified by this storage
+        }
+    }
+
+    @Test
+    fun getCard_forged_verification_rejected() {
+        val cardJson = cardJson(this.cCardId3)
+        val hash = crypto.computeHash(cardJson.toByteArray(Charsets.UTF_8), HashAlgorithm.SHA256)
+                .toHexString()
+        val entity = db.cardDao().load(this.cCardId3)!!
+        db.cardDao().insert(entity.copy(verifiedHash = hash,
+                                        verifiedAt = System.currentTimeMillis()))
+
+        val storage2 = SQLCardStorage(TestConfig.context,
+                                      identity,
+                                      crypto,
+                                      RejectingCardVerifier(),
+                                      db)
+
+        try {
+            storage2.getCard(this.cCardId3)
+            fail()
+        } catch (exception: Exception) {
+            // Unkeyed hash written to database doesn't skip verification
+        }
+    }
+
+    @Test
+    fun getCard_verified_again_after_interval() {
+        val storage2 = SQLCardStorage(TestConfig.context,
+                                      identity,
+                                      crypto,
+                                      RejectingCardVerifier(),
+                                      db,
+                                      reverificationInterval = TimeSpan.fromTime(1,
+                                                                                 TimeUnit.MILLISECONDS))
+
+        storage2.storeCard(storage.getCard(this.cCardId3)!!)
+        Thread.sleep(10)
+
+        try {
+            storage2.getCard(this.cCardId3)
+            fail()
+        } catch (exception: Exception) {
+            // Interval has passed since the card was verified
+        }
+    }
+
     private fun checkCardsById(storage: CardStorage = this.storage) {
         val card1 = storage.getCard(this.cCardId1)
         assertNotNull(card1)
@@ -224,11 +380,21 @@ class SQLCardStorageTest {
         assertFalse(card2.isOutdated)
     }
 
-    private fun prePopulateDatabase() {
+    private class RejectingCardVerifier : CardVerifier {
+        override fun verifyCard(card: Card): Boolean = false
+    }
+
+    private fun cardJson(cardId: String): String =
+            (sampleJson()[cardId] as JsonObject)["card"].asString
+
+    private fun sampleJson(): JsonObject {
         val databasesDataStream =
                 this.javaClass.classLoader?.getResourceAsStream("databases/cards.json")
-        val sampleJson = JsonParser().parse(InputStreamReader(databasesDataStream)) as JsonObject
-        sampleJson.entrySet().forEach {
+        return JsonParser().parse(InputStreamReader(databasesDataStream)) as JsonObject
+    }
+
+    private fun prePopulateDatabase() {
+        sampleJson().entrySet().forEach {
             val cardId = it.key
             val identity = (it.value as JsonObject)["identity"].asString
             val isOutdated = (it.value as JsonObject)["is_outdated"].asBoolean
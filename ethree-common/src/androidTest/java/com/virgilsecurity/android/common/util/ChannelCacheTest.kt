@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.util
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.*
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class ChannelCacheTest {
+
+    @Test
+    fun get_cached_channel() {
+        val cache = ChannelCache<String, Any>()
+        val channel = Any()
+
+        cache["key"] = channel
+
+        assertSame(channel, cache["key"])
+        assertNull(cache["other"])
+    }
+
+    @Test
+    fun unused_channels_dropped() {
+        val cache = ChannelCache<String, Any>(maxRecent = 2)
+        for (i in 0 until 100) {
+            cache["key$i"] = Any()
+        }
+
+        for (i in 0 until 10) {
+            if (cache.size() <= 2) break
+
+            System.gc()
+            Thread.sleep(100)
+        }
+
+        // Only recently used channels are kept when application doesn't use them
+        assertTrue(cache.size() <= 2)
+        assertNotNull(cache["key99"])
+        assertNotNull(cache["key98"])
+    }
+
+    @Test
+    fun used_channels_kept() {
+        val cache = ChannelCache<String, Any>(maxRecent = 1)
+        val channels = (0 until 10).map { Any() }
+        channels.forEachIndexed { i, channel -> cache["key$i"] = channel }
+
+        System.gc()
+
+        channels.forEachIndexed { i, channel -> assertSame(channel, cache["key$i"]) }
+    }
+
+    @Test
+    fun putIfAbsent_after_remove() {
+        val cache = ChannelCache<String, Any>()
+        val generation = cache.generation
+
+        // Channel is deleted while other thread loads its session
+        cache.remove("key")
+
+        assertNull(cache.putIfAbsent("key", generation) { Any() })
+        assertNull(cache["key"])
+
+        val channel = Any()
+        assertSame(channel, cache.putIfAbsent("key", cache.generation) { channel })
+        assertSame(channel, cache.putIfAbsent("key", cache.generation) { Any() })
+    }
+}
@@ -38,6 +38,7 @@ import com.google.gson.JsonObject
 import com.google.gson.JsonParser
 import com.virgilsecurity.android.common.build.VirgilInfo
 import com.virgilsecurity.android.common.callback.OnGetTokenCallback
+import com.virgilsecurity.android.common.callback.OnProgressCallback
 import com.virgilsecurity.android.common.exception.*
 import com.virgilsecurity.android.common.manager.GroupManager
 import com.virgilsecurity.android.common.manager.LookupManager
@@ -73,7 +74,9 @@ import org.junit.Test
 import org.junit.runner.RunWith
 import java.io.InputStreamReader
 import java.util.*
+import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 
 @RunWith(AndroidJUnit4::class)
 class GroupTests {
@@ -116,6 +119,72 @@ class GroupTests {
         assertTrue(group.participants.contains(newLookup.keys.first()))
     }
 
+    @Test fun create_large_group() {
+        val ethree2 = createEThree()
+
+        val lookup = this.ethree.findUsers(listOf(ethree2.identity)).get()
+        repeat(120) {
+            val card = TestUtils.publishCard()
+            lookup[card.identity] = card
+        }
+
+        try {
+            this.ethree.createGroup(groupId, lookup).get()
+            fail()
+        } catch (exception: GroupException) {
+            assertEquals(GroupException.Description.INVALID_PARTICIPANTS_COUNT,
+                         exception.description)
+        }
+
+        val group1 = this.ethree.createGroup(groupId, lookup, isLarge = true).get()
+        assertTrue(group1.isLarge)
+        assertEquals(122, group1.participants.size)
+
+        val card1 = ethree2.findUser(this.ethree.identity).get()
+        val group2 = ethree2.loadGroup(groupId, card1).get()
+        assertTrue(group2.isLarge)
+        assertEquals(group1.participants, group2.participants)
+
+        val newCard = TestUtils.publishCard()
+        group1.add(newCard).execute()
+        group2.update().execute()
+        assertEquals(123, group2.participants.size)
+
+        val message = UUID.randomUUID().toString()
+        assertEquals(message, group2.decrypt(group1.encrypt(message), card1))
+    }
+
+    @Test fun large_group_restored_by_initiator() {
+        val ethree2 = createEThree()
+
+        val lookup = this.ethree.findUsers(listOf(ethree2.identity)).get()
+        this.ethree.createGroup(groupId, lookup, isLarge = true).get()
+
+        // Initiator on another device, without local copy of group
+        val ethree1New = createEThree(this.ethree.identity)
+        ethree1New.getGroupManager().reset()
+
+        val card1 = ethree1New.findUser(this.ethree.identity).get()
+        val group1 = ethree1New.loadGroup(groupId, card1).get()
+        assertFalse(group1.isLarge)
+
+        val newLookup = FindUsersResult()
+        repeat(100) {
+            val card = TestUtils.publishCard()
+            newLookup[card.identity] = card
+        }
+
+        group1.add(newLookup).execute()
+        assertTrue(group1.isLarge)
+        assertEquals(102, group1.participants.size)
+
+        // Group pulled with more participants than usual group can have is large on any device
+        val card1ForEthree2 = ethree2.findUser(this.ethree.identity).get()
+        val group2 = ethree2.loadGroup(groupId, card1ForEthree2).get()
+        assertTrue(group2.isLarge)
+        assertTrue(ethree1New.getGroupManager().reload(group1.sessionId).isLarge)
+    }
+
     // test002 STE_27
     @Test fun create_should_add_self() {
         val ethree2 = createEThree()
@@ -167,6 +236,45 @@ class GroupTests {
         assertEquals(cachedGroup.initiator, group.initiator)
     }
 
+    @Test fun get_group_returns_cached_instance() {
+        val ethree2 = createEThree()
+        val lookup = this.ethree.findUsers(listOf(ethree2.identity)).get()
+
+        val group1 = this.ethree.createGroup(groupId, lookup).get()
+        assertSame(group1, this.ethree.getGroup(groupId))
+
+        val card1 = ethree2.findUser(this.ethree.identity).get()
+        val group2 = ethree2.loadGroup(groupId, card1).get()
+        assertSame(group2, ethree2.getGroup(groupId))
+
+        this.ethree.deleteGroup(groupId).execute()
+        assertNull(this.ethree.getGroup(groupId))
+    }
+
+    @Test fun cached_group_follows_changes() {
+        val ethree2 = createEThree()
+        val ethree3 = createEThree()
+        val lookup = this.ethree.findUsers(listOf(ethree2.identity, ethree3.identity)).get()
+
+        val group1 = this.ethree.createGroup(groupId, lookup).get()
+        val card1 = ethree2.findUser(this.ethree.identity).get()
+        val group2 = ethree2.loadGroup(groupId, card1).get()
+
+        group1.remove(lookup[ethree3.identity]!!).execute()
+        val cachedGroup1 = this.ethree.getGroup(groupId)
+        assertNotNull(cachedGroup1)
+        assertEquals(group1.participants, cachedGroup1!!.participants)
+
+        group2.update().execute()
+        val cachedGroup2 = ethree2.getGroup(groupId)
+        assertNotNull(cachedGroup2)
+        assertEquals(group1.participants, cachedGroup2!!.participants)
+
+        val message = UUID.randomUUID().toString()
+        val encrypted = cachedGroup1.encrypt(message)
+        assertEquals(message, cachedGroup2.decrypt(encrypted, card1))
+    }
+
     // test005 STE_30
     @Test fun load_group() {
         val ethree2 = createEThree()
@@ -183,6 +291,134 @@ class GroupTests {
         assertEquals(group1.initiator, group2.initiator)
     }
 
+    @Test fun load_groups() {
+        val ethree2 = createEThree()
+
+        val lookup = this.ethree.findUsers(listOf(ethree2.identity)).get()
+
+        val groupIds = (0 until 3).map { this.crypto.generateRandomData(100).toData() }
+        val groups1 = groupIds.map { this.ethree.createGroup(it, lookup).get() }
+        val missingId = this.crypto.generateRandomData(100).toData()
+
+        val card = ethree2.findUser(this.ethree.identity).get()
+
+        val results = ethree2.loadGroups((groupIds + missingId).map { it to card }).get()
+        assertEquals(4, results.size)
+
+        groups1.forEachIndexed { index, group1 ->
+            assertTrue(results[index].isSuccess)
+            assertEquals(group1.participants, results[index].group!!.participants)
+        }
+
+        val error = results[3].error
+        assertFalse(results[3].isSuccess)
+        assertTrue(error is GroupException)
+        assertEquals(GroupException.Description.GROUP_WAS_NOT_FOUND,
+                     (error as GroupException).description)
+
+        val cached = ethree2.getGroups(groupIds + missingId)
+        assertEquals(results.take(3).map { it.group }, cached.take(3))
+        assertNull(cached[3])
+
+        val message = UUID.randomUUID().toString()
+        assertEquals(message, cached[1]!!.decrypt(groups1[1].encrypt(message), card))
+    }
+
+    @Test fun list_groups() {
+        val ethree2 = createEThree()
+        val ethree3 = createEThree()
+
+        val lookup = this.ethree.findUsers(listOf(ethree2.identity, ethree3.identity)).get()
+        val otherGroupId = this.crypto.generateRandomData(100).toData()
+
+        this.ethree.createGroup(groupId, lookup).get()
+        this.ethree.createGroup(otherGroupId, FindUsersResult(mapOf(
+            ethree2.identity to lookup[ethree2.identity]!!
+        ))).get()
+
+        assertEquals(2, this.ethree.listGroups().size)
+        assertEquals(2, this.ethree.groupsWithParticipant(ethree2.identity).size)
+
+        val summary = this.ethree.groupsWithParticipant(ethree3.identity).single()
+        assertEquals(this.ethree.identity, summary.initiator)
+        assertEquals(3, summary.participants.size)
+
+        val group = this.ethree.getGroup(summary)
+        assertNotNull(group)
+        assertEquals(summary.participants, group!!.participants)
+
+        group.remove(lookup[ethree3.identity]!!).execute()
+        assertTrue(this.ethree.groupsWithParticipant(ethree3.identity).isEmpty())
+        assertEquals(setOf(0L, 1L), this.ethree.listGroups().map { it.epoch }.toSet())
+
+        this.ethree.deleteGroup(otherGroupId).execute()
+        assertEquals(1, this.ethree.listGroups().size)
+    }
+
+    @Test fun compact_group() {
+        val ethree2 = createEThree()
+        val ethree3 = createEThree()
+
+        val lookup = this.ethree.findUsers(listOf(ethree2.identity, ethree3.identity)).get()
+        val group1 = this.ethree.createGroup(groupId, lookup).get()
+        val oldMessage = group1.encrypt(UUID.randomUUID().toString())
+
+        repeat(3) {
+            group1.remove(lookup[ethree3.identity]!!).execute()
+            group1.add(lookup[ethree3.identity]!!).execute()
+        }
+
+        group1.compact(GroupRetentionPolicy(2)).execute()
+
+        val card1 = this.ethree.findUser(this.ethree.identity).get()
+        try {
+            group1.decrypt(oldMessage, card1)
+            fail()
+        } catch (exception: GroupException) {
+            assertEquals(GroupException.Description.EPOCH_WAS_REMOVED, exception.description)
+        }
+
+        // Removed epochs are not shared with participants anymore
+        val card1ForEthree2 = ethree2.findUser(this.ethree.identity).get()
+        val group2 = ethree2.loadGroup(groupId, card1ForEthree2).get()
+        assertEquals(group1.participants, group2.participants)
+
+        val message = UUID.randomUUID().toString()
+        assertEquals(message, group2.decrypt(group1.encrypt(message), card1ForEthree2))
+        assertEquals(listOf(3L), this.ethree.listGroups().map { it.epoch })
+    }
+
+    @Test fun compact_group_by_initiator_removes_epochs_of_participants() {
+        val ethree2 = createEThree()
+        val ethree3 = createEThree()
+
+        val lookup = this.ethree.findUsers(listOf(ethree2.identity, ethree3.identity)).get()
+        val group1 = this.ethree.createGroup(groupId, lookup).get()
+        val oldMessage = group1.encrypt(UUID.randomUUID().toString())
+
+        repeat(3) {
+            group1.remove(lookup[ethree3.identity]!!).execute()
+            group1.add(lookup[ethree3.identity]!!).execute()
+        }
+
+        val card1 = ethree2.findUser(this.ethree.identity).get()
+        val group2 = ethree2.loadGroup(groupId, card1).get()
+        group2.decrypt(oldMessage, card1)
+
+        group1.compact(GroupRetentionPolicy(2)).execute()
+        group2.update().execute()
+
+        try {
+            group2.decrypt(oldMessage, card1)
+            fail()
+        } catch (exception: GroupException) {
+            assertEquals(GroupException.Description.EPOCH_WAS_REMOVED, exception.description)
+        }
+
+        val message = UUID.randomUUID().toString()
+        assertEquals(message, group2.decrypt(group1.encrypt(message), card1))
+    }
+
     // test006 STE_31
     @Test fun load_alien_or_unexistent_group() {
         val ethree2 = createEThree()
@@ -712,6 +948,230 @@ class GroupTests {
         assertEquals(message, decrypted)
     }
 
+    @Test fun add_reports_progress() {
+        val ethree2 = createEThree()
+        val ethree3 = createEThree()
+
+        val lookup = this.ethree.findUsers(listOf(ethree2.identity, ethree3.identity)).get()
+        val group1 = this.ethree.createGroup(groupId, lookup).get()
+        group1.remove(lookup[ethree3.identity]!!).execute()
+
+        val progress = Collections.synchronizedList(mutableListOf<Pair<Int, Int>>())
+        val callback = object : OnProgressCallback {
+            override fun onProgress(completed: Int, total: Int) {
+                progress.add(completed to total)
+            }
+        }
+        group1.add(lookup[ethree3.identity]!!, callback).execute()
+
+        assertEquals(2, progress.size)
+        assertTrue(progress.all { it.second == 2 })
+        assertEquals(setOf(1, 2), progress.map { it.first }.toSet())
+
+        val card1 = ethree3.findUser(this.ethree.identity).get()
+        val group3 = ethree3.loadGroup(groupId, card1).get()
+        val message = UUID.randomUUID().toString()
+        assertEquals(message, group3.decrypt(group1.encrypt(message), card1))
+    }
+
+    @Test fun encrypt_decrypt_multiple() {
+        val ethree2 = createEThree()
+
+        val lookup = this.ethree.findUsers(listOf(ethree2.identity)).get()
+        val group1 = this.ethree.createGroup(groupId, lookup).get()
+
+        val card1 = ethree2.findUser(this.ethree.identity).get()
+        val group2 = ethree2.loadGroup(groupId, card1).get()
+
+        val messages = (0 until 20).map { UUID.randomUUID().toString() }
+        val encrypted = group1.encryptMultiple(Group.MultipleString(messages))
+        assertEquals(messages.size, encrypted.multipleText.size)
+
+        val decrypted = group2.decryptMultiple(encrypted, card1)
+        assertEquals(messages, decrypted.multipleText)
+
+        val single = group2.decrypt(encrypted.multipleText[3], card1)
+        assertEquals(messages[3], single)
+
+        // Message signed by other participant should fail verification
+        val foreign = group2.encrypt(UUID.randomUUID().toString())
+        try {
+            group1.decryptMultiple(Group.MultipleString(encrypted.multipleText + foreign), card1)
+            fail()
+        } catch (exception: GroupException) {
+            assertEquals(GroupException.Description.VERIFICATION_FAILED, exception.description)
+        }
+    }
+
+    @Test fun decrypt_without_sender_card() {
+        val ethree2 = createEThree()
+        val ethree3 = createEThree()
+
+        val lookup = this.ethree.findUsers(listOf(ethree2.identity, ethree3.identity)).get()
+        val group1 = this.ethree.createGroup(groupId, lookup).get()
+
+        val card1 = ethree2.findUser(this.ethree.identity).get()
+        val group2 = ethree2.loadGroup(groupId, card1).get()
+        val group3 = ethree3.loadGroup(groupId, card1).get()
+
+        val message1 = UUID.randomUUID().toString()
+        val message2 = UUID.randomUUID().toString()
+        val encrypted2 = group2.encrypt(message2)
+
+        assertEquals(message1, group3.decrypt(group1.encrypt(message1)))
+        assertEquals(message2, group3.decrypt(encrypted2))
+        assertEquals(message1, group2.decrypt(group1.encrypt(message1)))
+
+        // Removed participant is not a sender candidate anymore
+        group1.remove(lookup[ethree2.identity]!!).execute()
+        group3.update().execute()
+
+        try {
+            group3.decrypt(encrypted2)
+            fail()
+        } catch (exception: GroupException) {
+            assertEquals(GroupException.Description.SENDER_WAS_NOT_FOUND, exception.description)
+        }
+
+        assertEquals(message1, group3.decrypt(group1.encrypt(message1)))
+    }
+
+    @Test fun decrypt_with_sender_identity() {
+        val ethree2 = createEThree()
+        val ethree3 = createEThree()
+
+        val lookup = this.ethree.findUsers(listOf(ethree2.identity, ethree3.identity)).get()
+        val group1 = this.ethree.createGroup(groupId, lookup).get()
+
+        val card1 = ethree2.findUser(this.ethree.identity).get()
+        val group2 = ethree2.loadGroup(groupId, card1).get()
+
+        val message = UUID.randomUUID().toString()
+        val encrypted = group1.encrypt(message)
+
+        assertEquals(message, group2.decrypt(encrypted, this.ethree.identity))
+
+        try {
+            group2.decrypt(encrypted, ethree3.identity)
+            fail()
+        } catch (exception: GroupException) {
+            assertEquals(GroupException.Description.VERIFICATION_FAILED, exception.description)
+        }
+
+        try {
+            group2.decrypt(encrypted, UUID.randomUUID().toString())
+            fail()
+        } catch (exception: GroupException) {
+            assertEquals(GroupException.Description.SENDER_WAS_NOT_FOUND, exception.description)
+        }
+    }
+
+    @Test fun update_pulls_only_new_epochs() {
+        val ethree2 = createEThree()
+        val ethree3 = createEThree()
+
+        val lookup = this.ethree.findUsers(listOf(ethree2.identity)).get()
+        val group1 = this.ethree.createGroup(groupId, lookup).get()
+
+        val card1 = ethree2.findUser(this.ethree.identity).get()
+        val group2 = ethree2.loadGroup(groupId, card1).get()
+
+        group2.update().execute()
+        assertEquals(GroupUpdateStats(0, 1), ethree2.getGroupUpdateStats())
+
+        // Adding participant doesn't create new epoch, but participants should be refreshed
+        val card3 = this.ethree.findUser(ethree3.identity).get()
+        group1.add(card3).execute()
+
+        group2.update().execute()
+        assertEquals(GroupUpdateStats(0, 2), ethree2.getGroupUpdateStats())
+        assertEquals(group1.participants, group2.participants)
+
+        group1.remove(card3).execute()
+
+        group2.update().execute()
+        assertEquals(GroupUpdateStats(1, 2), ethree2.getGroupUpdateStats())
+        assertEquals(group1.participants, group2.participants)
+
+        val message = UUID.randomUUID().toString()
+        assertEquals(message, group2.decrypt(group1.encrypt(message), card1))
+    }
+
+    @Test fun decrypt_after_new_epoch() {
+        val ethree2 = createEThree()
+        val ethree3 = createEThree()
+
+        val lookup = this.ethree.findUsers(listOf(ethree2.identity, ethree3.identity)).get()
+        val group1 = this.ethree.createGroup(groupId, lookup).get()
+        val selfCard = this.ethree.findUser(this.ethree.identity).get()
+
+        // Decrypt sessions are built and kept idle
+        val messages = (0 until 8).map { UUID.randomUUID().toString() }
+        val encrypted = group1.encryptMultiple(Group.MultipleString(messages))
+        assertEquals(messages, group1.decryptMultiple(encrypted, selfCard).multipleText)
+
+        group1.remove(lookup[ethree3.identity]!!).execute()
+
+        // Idle sessions got new epoch, while old messages are still decrypted
+        val newMessage = UUID.randomUUID().toString()
+        assertEquals(newMessage, group1.decrypt(group1.encrypt(newMessage), selfCard))
+        assertEquals(messages, group1.decryptMultiple(encrypted, selfCard).multipleText)
+    }
+
+    @Test fun concurrent_decrypt_during_membership_changes() {
+        val ethree2 = createEThree()
+        val ethree3 = createEThree()
+
+        val lookup = this.ethree.findUsers(listOf(ethree2.identity, ethree3.identity)).get()
+        val group1 = this.ethree.createGroup(groupId, lookup).get()
+
+        val card1 = ethree2.findUser(this.ethree.identity).get()
+        val group2 = ethree2.loadGroup(groupId, card1).get()
+
+        val messages = (0 until 8).map { UUID.randomUUID().toString() }
+        val encrypted = messages.map { group1.encrypt(it) }
+
+        val running = AtomicBoolean(true)
+        val errors = Collections.synchronizedList(mutableListOf<Throwable>())
+        val executor = Executors.newFixedThreadPool(4)
+
+        repeat(4) {
+            executor.execute {
+                while (running.get()) {
+                    try {
+                        encrypted.forEachIndexed { index, message ->
+                            assertEquals(messages[index], group2.decrypt(message, card1))
+                        }
+                        val multiple = Group.MultipleString(encrypted)
+                        assertEquals(messages, group2.decryptMultiple(multiple, card1).multipleText)
+                        group2.encrypt(UUID.randomUUID().toString())
+                    } catch (throwable: Throwable) {
+                        errors.add(throwable)
+                    }
+                }
+            }
+        }
+
+        try {
+            repeat(3) {
+                group1.remove(lookup[ethree3.identity]!!).execute()
+                group2.update().execute()
+                group1.add(lookup[ethree3.identity]!!).execute()
+                group2.update().execute()
+            }
+        } finally {
+            running.set(false)
+            executor.shutdown()
+            assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES))
+        }
+
+        assertTrue(errors.toString(), errors.isEmpty())
+        assertEquals(group1.participants, group2.participants)
+
+        val message = UUID.randomUUID().toString()
+        assertEquals(message, group2.decrypt(group1.encrypt(message), card1))
+    }
+
     // test020 STE_85
     @Test fun delete_unexistent_channel() {
         val fakeId = UUID.randomUUID().toString()
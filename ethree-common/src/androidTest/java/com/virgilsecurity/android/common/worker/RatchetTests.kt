@@ -34,15 +34,21 @@
 package com.virgilsecurity.android.common.worker
 
 import com.virgilsecurity.android.common.callback.OnGetTokenCallback
+import com.virgilsecurity.android.common.exception.EThreeException
 import com.virgilsecurity.android.common.exception.EThreeRatchetException
+import com.virgilsecurity.android.common.model.ratchet.KeyRotationStats
 import com.virgilsecurity.android.common.model.ratchet.RatchetChannel
+import com.virgilsecurity.android.common.model.ratchet.RatchetPersistence
 import com.virgilsecurity.android.common.storage.local.LocalKeyStorage
+import com.virgilsecurity.android.common.storage.sql.RatchetSessionStorageType
 import com.virgilsecurity.android.common.util.Defaults
 import com.virgilsecurity.android.common.utils.TestConfig
 import com.virgilsecurity.android.common.utils.TestUtils
 import com.virgilsecurity.android.ethree.interaction.EThree
 import com.virgilsecurity.ratchet.securechat.SecureChat
 import com.virgilsecurity.ratchet.securechat.SecureChatContext
+import com.virgilsecurity.ratchet.securechat.SecureSession
+import com.virgilsecurity.ratchet.sessionstorage.SessionStorage
 import com.virgilsecurity.sdk.cards.Card
 import com.virgilsecurity.sdk.common.TimeSpan
 import com.virgilsecurity.sdk.crypto.VirgilCrypto
@@ -51,7 +57,10 @@ import com.virgilsecurity.sdk.storage.DefaultKeyStorage
 import org.junit.Assert.*
 import org.junit.Before
 import org.junit.Test
+import java.io.IOException
 import java.util.*
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * RatchetTests
@@ -66,8 +75,11 @@ class RatchetTests {
         this.keyStorage = DefaultKeyStorage(TestConfig.DIRECTORY_PATH, TestConfig.KEYSTORE_NAME)
     }
 
-    private fun setupDevice(enableRatchet: Boolean = true,
-                            keyRotationInterval: TimeSpan = Defaults.keyRotationInterval): Pair<EThree, Card> {
+    private fun setupDevice(
+            enableRatchet: Boolean = true,
+            keyRotationInterval: TimeSpan = Defaults.keyRotationInterval,
+            ratchetPersistence: RatchetPersistence = RatchetPersistence()
+    ): Pair<EThree, Card> {
         val identityNew = UUID.randomUUID().toString()
 
         val tokenCallback = object : OnGetTokenCallback {
@@ -80,7 +92,8 @@ class RatchetTests {
                             tokenCallback,
                             TestConfig.context,
                             enableRatchet = enableRatchet,
-                            keyRotationInterval = keyRotationInterval)
+                            keyRotationInterval = keyRotationInterval,
+                            ratchetPersistence = ratchetPersistence)
 
         ethree.register().execute()
 
@@ -383,6 +396,40 @@ class RatchetTests {
         assertTrue(keysRotated)
     }
 
+    @Test fun scheduled_keys_rotation_stats() {
+        val interval = TimeSpan.fromTime(3, TimeUnit.SECONDS)
+        val (ethree, _) = setupDevice(keyRotationInterval = interval)
+
+        // First scheduled rotation runs within interval with jitter
+        Thread.sleep(interval.spanMilliseconds * 3)
+
+        val stats = ethree.getKeyRotationStats()
+        assertTrue(stats.succeeded > 0)
+        assertEquals(0L, stats.failed)
+        assertEquals(KeyRotationStats.Outcome.SUCCEEDED, stats.lastOutcome)
+
+        ethree.cleanup()
+
+        try {
+            ethree.getKeyRotationStats()
+            fail()
+        } catch (exception: EThreeException) {
+            assertEquals(EThreeException.Description.MISSING_PRIVATE_KEY, exception.description)
+        }
+    }
+
+    @Test fun stop_keys_rotation() {
+        val interval = TimeSpan.fromTime(3, TimeUnit.SECONDS)
+        val (ethree, _) = setupDevice(keyRotationInterval = interval)
+
+        ethree.stopRatchetKeysRotation()
+        Thread.sleep(interval.spanMilliseconds * 3)
+
+        val stats = ethree.getKeyRotationStats()
+        assertEquals(0L, stats.succeeded)
+        assertEquals(0L, stats.failed)
+    }
+
     // test 016 STE_66
     @Test fun multiple_encrypt_decrypt_should_succeed() {
         val (ethree1, card1) = setupDevice()
@@ -443,6 +490,217 @@ class RatchetTests {
         encryptDecrypt100Times(chat12, chat22)
     }
 
+    @Test fun deferred_session_persistence() {
+        val (ethree1, card1) = setupDevice()
+        val (ethree2, card2) = setupDevice(ratchetPersistence = RatchetPersistence(10))
+
+        val chat1 = ethree1.createRatchetChannel(card2).get()
+        val chat2 = ethree2.joinRatchetChannel(card1).get()
+
+        repeat(5) {
+            assertEquals(TEXT, chat2.decrypt(chat1.encrypt(TEXT)))
+        }
+
+        // Channel with unwritten session continues from its actual state
+        val sameChat2 = ethree2.getRatchetChannel(card1)!!
+        assertEquals(TEXT, sameChat2.decrypt(chat1.encrypt(TEXT)))
+
+        ethree2.flushRatchetChannels()
+
+        // Written session is able to decrypt next message
+        val secureChat = getSecureChat(ethree2)
+        val storedSession = secureChat.existingSession(card1.identity)!!
+        val storedChat = RatchetChannel(storedSession, secureChat.sessionStorage)
+        assertEquals(TEXT, storedChat.decrypt(chat1.encrypt(TEXT)))
+    }
+
+    @Test fun deferred_session_persistence_reduces_writes() {
+        val messages = 50
+
+        val immediate = decryptCountingWrites(RatchetPersistence(), messages)
+        val deferred = decryptCountingWrites(RatchetPersistence(10), messages)
+
+        // Session is written once per 10 decrypted messages instead of each one
+        assertEquals(messages, immediate.writes)
+        assertEquals(messages / 10, deferred.writes)
+
+        println("Decrypt of $messages messages: " +
+                "immediate ${immediate.writes} writes, ${immediate.millis} ms; " +
+                "deferred ${deferred.writes} writes, ${deferred.millis} ms")
+    }
+
+    @Test fun deferred_session_persistence_flushes_on_interval() {
+        val persistence = RatchetPersistence(100, TimeSpan.fromTime(2, TimeUnit.SECONDS))
+        val result = decryptCountingWrites(persistence, 5)
+
+        // Too few messages to write session right away
+        assertEquals(0, result.writes)
+
+        Thread.sleep(4000)
+        assertEquals(1, result.countedWrites())
+
+        // Nothing is left to write
+        result.ethree.flushRatchetChannels()
+        assertEquals(1, result.countedWrites())
+    }
+
+    /**
+     * Decrypts [messages] on device with [persistence], counting writes of sessions to storage
+     * made by decryption.
+     */
+    private fun decryptCountingWrites(persistence: RatchetPersistence,
+                                      messages: Int): CountedWrites {
+        val (ethree1, card1) = setupDevice()
+        val (ethree2, card2) = setupDevice(ratchetPersistence = persistence)
+
+        val writes = AtomicInteger()
+        val storage = ethree2.ratchetSessionStorage!!
+        ethree2.ratchetSessionStorage = object : SessionStorage by storage {
+            override fun storeSession(session: SecureSession) {
+                writes.incrementAndGet()
+                storage.storeSession(session)
+            }
+        }
+
+        val chat1 = ethree1.createRatchetChannel(card2).get()
+        val chat2 = ethree2.joinRatchetChannel(card1).get()
+
+        val encrypted = (0 until messages).map { chat1.encrypt(TEXT) }
+        writes.set(0)
+
+        val start = System.nanoTime()
+        encrypted.forEach { assertEquals(TEXT, chat2.decrypt(it)) }
+        val millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+
+        return CountedWrites(ethree2, writes, writes.get(), millis)
+    }
+
+    private class CountedWrites(val ethree: EThree,
+                                private val counter: AtomicInteger,
+                                val writes: Int,
+                                val millis: Long) {
+        fun countedWrites() = counter.get()
+    }
+
+    @Test fun sqlite_session_storage_takes_sessions_from_files() {
+        val (ethree1, card1) = setupDevice()
+        val (ethree2, card2) = setupDevice()
+
+        val chat1 = ethree1.createRatchetChannel(card2).get()
+        val chat2 = ethree2.joinRatchetChannel(card1).get()
+        encryptDecrypt100Times(chat1, chat2)
+
+        val tokenCallback = object : OnGetTokenCallback {
+            override fun onGetToken(): String {
+                return TestUtils.generateTokenString(ethree2.identity)
+            }
+        }
+        val ethree2Sql = EThree(ethree2.identity,
+                                tokenCallback,
+                                TestConfig.context,
+                                ratchetSessionStorageType = RatchetSessionStorageType.SQLITE)
+
+        val sqlChat2 = ethree2Sql.getRatchetChannel(card1)
+        assertNotNull(sqlChat2)
+        encryptDecrypt100Times(chat1, sqlChat2!!)
+
+        // Session was moved from files to database
+        assertNull(ethree2.getRatchetChannel(card1))
+        assertNotNull(ethree2Sql.getRatchetChannel(card1))
+
+        ethree2Sql.deleteRatchetChannel(card1).execute()
+        assertNull(ethree2Sql.getRatchetChannel(card1))
+    }
+
+    @Test fun channels_are_shared_and_used_in_parallel() {
+        val (ethree1, card1) = setupDevice()
+        val devices = (0 until 4).map { setupDevice() }
+
+        val pairs = devices.map { (ethree, card) ->
+            val chat1 = ethree1.createRatchetChannel(card).get()
+            val chat2 = ethree.joinRatchetChannel(card1).get()
+
+            // The same channel is returned while it exists
+            assertSame(chat1, ethree1.getRatchetChannel(card))
+            assertSame(chat2, ethree.getRatchetChannel(card1))
+
+            Pair(chat1, chat2)
+        }
+
+        val errors = Collections.synchronizedList(mutableListOf<Throwable>())
+        val threads = pairs.map { (chat1, chat2) ->
+            Thread {
+                try {
+                    encryptDecrypt100Times(chat1, chat2)
+                } catch (throwable: Throwable) {
+                    errors.add(throwable)
+                }
+            }
+        }
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+
+        assertTrue(errors.isEmpty())
+
+        ethree1.deleteRatchetChannel(devices[0].second).execute()
+        assertNull(ethree1.getRatchetChannel(devices[0].second))
+    }
+
+    @Test fun create_and_join_several_channels() {
+        val (ethree1, card1) = setupDevice()
+        val (ethree2, card2) = setupDevice()
+        val (ethree3, card3) = setupDevice()
+        val (_, card4) = setupDevice(enableRatchet = false)
+
+        val created = ethree1.createRatchetChannels(listOf(card2, card1, card3, card4)).get()
+
+        assertEquals(4, created.size)
+        assertTrue(created[0].isSuccess)
+        assertTrue(created[2].isSuccess)
+        assertEquals(EThreeRatchetException.Description.SELF_CHANNEL_IS_FORBIDDEN,
+                     (created[1].error as EThreeRatchetException).description)
+        assertEquals(EThreeRatchetException.Description.USER_IS_NOT_USING_RATCHET,
+                     (created[3].error as EThreeRatchetException).description)
+        assertSame(created[0].channel, ethree1.getRatchetChannel(card2))
+
+        val joined = ethree2.joinRatchetChannels(listOf(card1, card3)).get()
+
+        assertTrue(joined[0].isSuccess)
+        assertEquals(EThreeRatchetException.Description.NO_INVITE,
+                     (joined[1].error as EThreeRatchetException).description)
+
+        val chat3 = ethree3.joinRatchetChannel(card1).get()
+
+        encryptDecrypt100Times(created[0].channel!!, joined[0].channel!!)
+        encryptDecrypt100Times(created[2].channel!!, chat3)
+    }
+
+    @Test fun create_several_channels_when_storing_session_fails() {
+        val (ethree1, _) = setupDevice()
+        val (_, card2) = setupDevice()
+        val (_, card3) = setupDevice()
+
+        val storage = ethree1.ratchetSessionStorage!!
+        ethree1.ratchetSessionStorage = object : SessionStorage by storage {
+            override fun storeSession(session: SecureSession) {
+                if (session.participantIdentity == card3.identity) {
+                    throw IOException("Storage is full")
+                }
+                storage.storeSession(session)
+            }
+        }
+
+        val created = ethree1.createRatchetChannels(listOf(card2, card3)).get()
+
+        assertTrue(created[0].isSuccess)
+        assertTrue(created[1].error is IOException)
+
+        // Invite of session which wasn't stored is removed, so channel is created again
+        ethree1.ratchetSessionStorage = storage
+        assertNull(ethree1.getRatchetChannel(card3))
+        assertTrue(ethree1.createRatchetChannels(listOf(card3)).get().single().isSuccess)
+    }
+
     private fun getSecureChat(ethree: EThree): SecureChat {
         val localKeyStorage = LocalKeyStorage(ethree.identity, keyStorage, crypto)
 
@@ -175,6 +175,8 @@ class SearchTests {
                                TestConfig.context,
                                onKeyChangedCallback)
 
+        // Cached cards are updated in background
+        ethreeNew.cachedCardsUpdate!!.get()
         assertTrue(onKeyChangedCallback.called)
 
         val cardCached = ethreeNew.findCachedUser(card.identity).get() ?: error("")
@@ -33,7 +33,6 @@
 
 package com.virgilsecurity.android.common
 
-import android.content.Context
 import com.google.gson.Gson
 import com.virgilsecurity.android.common.build.VirgilInfo
 import com.virgilsecurity.android.common.callback.OnGetTokenCallback
@@ -45,19 +44,26 @@ import com.virgilsecurity.android.common.manager.TempChannelManager
 import com.virgilsecurity.android.common.model.DerivedPasswords
 import com.virgilsecurity.android.common.model.FindUsersResult
 import com.virgilsecurity.android.common.model.Group
+import com.virgilsecurity.android.common.model.GroupResult
+import com.virgilsecurity.android.common.model.GroupRetentionPolicy
+import com.virgilsecurity.android.common.model.GroupSummary
+import com.virgilsecurity.android.common.model.GroupUpdateStats
 import com.virgilsecurity.android.common.model.LookupResult
+import com.virgilsecurity.android.common.model.ratchet.KeyRotationStats
 import com.virgilsecurity.android.common.model.ratchet.RatchetChannel
+import com.virgilsecurity.android.common.model.ratchet.RatchetChannelResult
+import com.virgilsecurity.android.common.model.ratchet.RatchetPersistence
 import com.virgilsecurity.android.common.model.temporary.TemporaryChannel
 import com.virgilsecurity.android.common.storage.cloud.CloudKeyManager
 import com.virgilsecurity.android.common.storage.cloud.CloudRatchetStorage
 import com.virgilsecurity.android.common.storage.cloud.CloudTicketStorage
 import com.virgilsecurity.android.common.storage.local.FileGroupStorage
+import com.virgilsecurity.android.common.storage.StorageProvider
 import com.virgilsecurity.android.common.storage.local.LocalKeyStorage
-import com.virgilsecurity.android.common.storage.sql.SQLCardStorage
 import com.virgilsecurity.android.common.util.Const
 import com.virgilsecurity.android.common.util.Const.VIRGIL_BASE_URL
 import com.virgilsecurity.android.common.util.Const.VIRGIL_CARDS_SERVICE_PATH
-import com.virgilsecurity.android.common.util.RepeatingTimer
+import com.virgilsecurity.android.common.util.KeyRotationScheduler
 import com.virgilsecurity.android.common.worker.*
 import com.virgilsecurity.common.extension.toData
 import com.virgilsecurity.common.model.Completable
@@ -70,6 +76,7 @@ import com.virgilsecurity.ratchet.exception.SecureChatException
 import com.virgilsecurity.ratchet.securechat.SecureChat
 import com.virgilsecurity.ratchet.securechat.SecureChatContext
 import com.virgilsecurity.ratchet.securechat.SecureSession
+import com.virgilsecurity.ratchet.sessionstorage.SessionStorage
 import com.virgilsecurity.sdk.cards.Card
 import com.virgilsecurity.sdk.cards.CardManager
 import com.virgilsecurity.sdk.cards.validation.VirgilCardVerifier
@@ -84,6 +91,8 @@ import com.virgilsecurity.sdk.storage.KeyStorage
 import java.io.InputStream
 import java.io.OutputStream
 import java.util.*
+import java.util.concurrent.Future
+import java.util.logging.Level
 import java.util.logging.Logger
 
 /**
@@ -93,11 +102,13 @@ import java.util.logging.Logger
 abstract class EThreeCore {
 
     private val rootPath: String
+    private val storageProvider: StorageProvider
 
     private var accessTokenProvider: AccessTokenProvider
     private var groupManager: GroupManager? = null
     private var tempChannelManager: TempChannelManager? = null
     private var secureChat: SecureChat? = null
+    internal var ratchetSessionStorage: SessionStorage? = null
 
     private lateinit var authorizationWorker: AuthorizationWorker
     private lateinit var backupWorker: BackupWorker
@@ -117,9 +128,13 @@ abstract class EThreeCore {
 
     internal val enableRatchet: Boolean
     internal val keyRotationInterval: TimeSpan
-    internal var timer: RepeatingTimer? = null
+    internal val ratchetPersistence: RatchetPersistence
+    internal var keyRotation: KeyRotationScheduler.KeyRotation? = null
     internal val keyPairType: KeyPairType
 
+    // Update of cached cards started by initializeCore
+    internal var cachedCardsUpdate: Future<*>? = null
+
     protected val crypto: VirgilCrypto = VirgilCrypto()
 
     protected abstract val keyStorage: KeyStorage
@@ -133,7 +148,7 @@ abstract class EThreeCore {
                           keyPairType: KeyPairType,
                           enableRatchet: Boolean,
                           keyRotationInterval: TimeSpan,
-                          context: Context) {
+                          storageProvider: StorageProvider) {
         logger.fine("Create new EThree instance for $identity")
 
         this.identity = identity
@@ -153,10 +168,14 @@ abstract class EThreeCore {
                                           crypto,
                                           accessTokenProvider)
 
-        val cardStorageSqlite = SQLCardStorage(context, this.identity, crypto, virgilCardVerifier)
+        val cardStorage = storageProvider.createCardStorage(this.identity,
+                                                            crypto,
+                                                            virgilCardVerifier)
 
-        this.lookupManager = LookupManager(cardStorageSqlite, cardManager, keyChangedCallback)
-        this.rootPath = context.filesDir.absolutePath
+        this.lookupManager = LookupManager(cardStorage, cardManager, keyChangedCallback)
+        this.rootPath = storageProvider.rootPath
+        this.storageProvider = storageProvider
+        this.ratchetPersistence = storageProvider.ratchetPersistence
 
         this.keyPairType = keyPairType
         this.enableRatchet = enableRatchet
@@ -191,7 +210,9 @@ abstract class EThreeCore {
         this.ratchetWorker = RatchetWorker(identity,
                                            cloudRatchetStorage,
                                            ::getSecureChat,
-                                           ::startRatchetSessionAsSender)
+                                           ::getRatchetSessionStorage,
+                                           ::startRatchetSessionAsSender,
+                                           ratchetPersistence)
         this.authEncryptWorker = AuthEncryptWorker(localKeyStorage, crypto)
         this.streamsEncryptWorker = StreamsEncryptWorker(localKeyStorage, crypto)
         this.tempChannelWorker = TempChannelWorker(identity, lookupManager, ::getTempChannelManager)
@@ -200,7 +221,8 @@ abstract class EThreeCore {
             privateKeyChanged()
         }
 
-        lookupManager.startUpdateCachedCards()
+        // Opening cards database and checking cards on the server should not block the caller
+        this.cachedCardsUpdate = lookupManager.startUpdateCachedCardsInBackground()
     }
 
     internal fun getGroupManager(): GroupManager =
@@ -218,6 +240,14 @@ abstract class EThreeCore {
                ?: throw EThreeException(EThreeException.Description.MISSING_PRIVATE_KEY)
     }
 
+    internal fun getRatchetSessionStorage(): SessionStorage {
+        if (!enableRatchet)
+            throw EThreeRatchetException(EThreeRatchetException.Description.RATCHET_IS_DISABLED)
+
+        return this.ratchetSessionStorage
+               ?: throw EThreeException(EThreeException.Description.MISSING_PRIVATE_KEY)
+    }
+
     /**
      * Publishes the public key in Virgil's Cards Service in case no public key for current
      * identity is published yet.
@@ -550,14 +580,21 @@ abstract class EThreeCore {
      *
      * @param identifier Identifier of group. Should be *> 10* length.
      * @param users Cards of participants. Result of findUsers call.
+     * @param isLarge Creates large group, which can have up to
+     * [Group.LARGE_PARTICIPANTS_COUNT_RANGE] participants. Groups with more than
+     * [Group.VALID_PARTICIPANTS_COUNT_RANGE] participants can't be loaded by E3Kit versions which
+     * don't support large groups. Large flag is kept in the cloud too, see [Group.isLarge].
      *
      * @return New [Group].
      *
      * @throws GroupException.Description.INVALID_PARTICIPANTS_COUNT If participants count is out
-     * of [Group.VALID_PARTICIPANTS_COUNT_RANGE] range.
+     * of [Group.VALID_PARTICIPANTS_COUNT_RANGE] range, or [Group.LARGE_PARTICIPANTS_COUNT_RANGE]
+     * for large group.
      */
-    @JvmOverloads fun createGroup(identifier: Data, users: FindUsersResult? = null): Result<Group> =
-            groupWorker.createGroup(identifier, users)
+    @JvmOverloads fun createGroup(identifier: Data,
+                                  users: FindUsersResult? = null,
+                                  isLarge: Boolean = false): Result<Group> =
+            groupWorker.createGroup(identifier, users, isLarge)
 
     /**
      * Returns cached local group.
@@ -581,6 +618,30 @@ abstract class EThreeCore {
     fun loadGroup(identifier: Data, card: Card): Result<Group> =
             groupWorker.loadGroup(identifier, card)
 
+    /**
+     * Returns cached local groups.
+     *
+     * @param identifiers Identifiers of groups. Each should be *> 10* length.
+     *
+     * @return [Group] if exists, null otherwise, for each of [identifiers] in the same order.
+     */
+    @JvmName("getGroupsByData")
+    fun getGroups(identifiers: List<Data>): List<Group?> = groupWorker.getGroups(identifiers)
+
+    /**
+     * Loads several groups from cloud at once, saves locally. Groups are pulled concurrently.
+     *
+     * To start execution of the current function, please see [Result] description.
+     *
+     * @param groups Identifiers of groups with Cards of their initiators.
+     *
+     * @return [GroupResult] for each of [groups] in the same order. Group that failed to load
+     * has its error in result and doesn't affect other groups.
+     */
+    @JvmName("loadGroupsByData")
+    fun loadGroups(groups: List<Pair<Data, Card>>): Result<List<GroupResult>> =
+            groupWorker.loadGroups(groups)
+
     /**
      * Deletes group from cloud (if the user is an initiator) and local storage.
      *
@@ -599,12 +660,17 @@ abstract class EThreeCore {
      *
      * @param identifier Identifier of group. Should be *> 10* length.
      * @param users Cards of participants. Result of findUsers call.
+     * @param isLarge Creates large group, which can have up to
+     * [Group.LARGE_PARTICIPANTS_COUNT_RANGE] participants. Large flag is kept in the cloud too,
+     * see [Group.isLarge].
      *
      * @return New [Group].
      */
     @JvmOverloads
-    fun createGroup(identifier: String, users: FindUsersResult? = null): Result<Group> =
-            groupWorker.createGroup(identifier, users)
+    fun createGroup(identifier: String,
+                    users: FindUsersResult? = null,
+                    isLarge: Boolean = false): Result<Group> =
+            groupWorker.createGroup(identifier, users, isLarge)
 
     /**
      * Returns cached local group.
@@ -628,6 +694,28 @@ abstract class EThreeCore {
     fun loadGroup(identifier: String, card: Card): Result<Group> =
             groupWorker.loadGroup(identifier, card)
 
+    /**
+     * Returns cached local groups.
+     *
+     * @param identifiers Identifiers of groups. Each should be *> 10* length.
+     *
+     * @return [Group] if exists, null otherwise, for each of [identifiers] in the same order.
+     */
+    fun getGroups(identifiers: List<String>): List<Group?> = groupWorker.getGroups(identifiers)
+
+    /**
+     * Loads several groups from cloud at once, saves locally. Groups are pulled concurrently.
+     *
+     * To start execution of the current function, please see [Result] description.
+     *
+     * @param groups Identifiers of groups with Cards of their initiators.
+     *
+     * @return [GroupResult] for each of [groups] in the same order. Group that failed to load
+     * has its error in result and doesn't affect other groups.
+     */
+    fun loadGroups(groups: List<Pair<String, Card>>): Result<List<GroupResult>> =
+            groupWorker.loadGroups(groups)
+
     /**
      * Deletes group from cloud and local storage.
      *
@@ -637,6 +725,86 @@ abstract class EThreeCore {
      */
     fun deleteGroup(identifier: String): Completable = groupWorker.deleteGroup(identifier)
 
+    /**
+     * Lists groups stored locally. Groups are listed from local index, without reading their
+     * tickets.
+     *
+     * @return [GroupSummary] of each local group.
+     *
+     * @throws EThreeException.Description.MISSING_PRIVATE_KEY
+     */
+    fun listGroups(): List<GroupSummary> = groupWorker.listGroups()
+
+    /**
+     * Finds groups stored locally which have [identity] as a participant.
+     *
+     * @param identity Identity of participant.
+     *
+     * @return [GroupSummary] of each local group with participant.
+     *
+     * @throws EThreeException.Description.MISSING_PRIVATE_KEY
+     */
+    fun groupsWithParticipant(identity: String): List<GroupSummary> =
+            groupWorker.groupsWithParticipant(identity)
+
+    /**
+     * Returns cached local group by its summary.
+     *
+     * @param summary Summary of group. Result of [listGroups] or [groupsWithParticipant] call.
+     *
+     * @return [Group] if exists, null otherwise.
+     */
+    fun getGroup(summary: GroupSummary): Group? = groupWorker.getGroup(summary)
+
+    /**
+     * Removes old epochs of all local groups according to [policy]. See [Group.compact].
+     *
+     * To start execution of the current function, please see [Completable] description.
+     *
+     * @param policy Defines which epochs to keep.
+     */
+    fun compactGroups(policy: GroupRetentionPolicy): Completable =
+            groupWorker.compactGroups(policy)
+
+    /**
+     * Returns counters of [Group.update] calls, which show how many updates pulled new epochs and
+     * how many of them found group unchanged.
+     *
+     * @return [GroupUpdateStats] since private key was loaded.
+     *
+     * @throws EThreeException.Description.MISSING_PRIVATE_KEY
+     */
+    fun getGroupUpdateStats(): GroupUpdateStats = getGroupManager().getUpdateStats()
+
+    /**
+     * Returns counters and latency of automatic ratchet keys rotations.
+     *
+     * @return [KeyRotationStats] since private key was loaded.
+     *
+     * @throws EThreeRatchetException(EThreeRatchetException.Description.RATCHET_IS_DISABLED)
+     * @throws EThreeException.Description.MISSING_PRIVATE_KEY
+     */
+    fun getKeyRotationStats(): KeyRotationStats {
+        if (!enableRatchet)
+            throw EThreeRatchetException(EThreeRatchetException.Description.RATCHET_IS_DISABLED)
+
+        val keyRotation = this.keyRotation
+                          ?: throw EThreeException(EThreeException.Description.MISSING_PRIVATE_KEY)
+
+        return keyRotation.getStats()
+    }
+
+    /**
+     * Stops automatic ratchet keys rotation of this instance. Call it when this instance is not
+     * used anymore, so scheduled rotations don't keep running until it's garbage collected.
+     *
+     * Rotation that is already running is finished. [getKeyRotationStats] keeps returning stats
+     * collected so far. Rotation is scheduled again next time private key is loaded.
+     */
+    @Synchronized fun stopRatchetKeysRotation() {
+        this.keyRotation?.cancel()
+    }
+
     /**
      * Signs then encrypts data for group of users.
      *
@@ -1106,6 +1274,46 @@ abstract class EThreeCore {
     @JvmOverloads fun joinRatchetChannel(card: Card, name: String? = null): Result<RatchetChannel> =
             ratchetWorker.joinRatchetChannel(card, name)
 
+    /**
+     * Creates double ratchet channels with several users at once, saves them locally. Channels
+     * are started concurrently and their sessions are saved together.
+     *
+     * To start execution of the current function, please see [Result] description.
+     *
+     * @param cards Cards of participants.
+     * @param name Name of channels.
+     *
+     * @return [RatchetChannelResult] for each of [cards] in the same order. Channel that failed to
+     * start has its error in result (see [createRatchetChannel] for possible errors) and doesn't
+     * affect other channels.
+     *
+     * @throws EThreeRatchetException(EThreeRatchetException.Description.RATCHET_IS_DISABLED)
+     */
+    @JvmOverloads fun createRatchetChannels(
+            cards: List<Card>,
+            name: String? = null
+    ): Result<List<RatchetChannelResult>> = ratchetWorker.createRatchetChannels(cards, name)
+
+    /**
+     * Joins double ratchet channels with several users at once, saves them locally. Invites are
+     * pulled concurrently and sessions are saved together.
+     *
+     * To start execution of the current function, please see [Result] description.
+     *
+     * @param cards Cards of initiators.
+     * @param name Name of channels.
+     *
+     * @return [RatchetChannelResult] for each of [cards] in the same order. Channel that failed to
+     * join has its error in result (see [joinRatchetChannel] for possible errors) and doesn't
+     * affect other channels.
+     *
+     * @throws EThreeRatchetException(EThreeRatchetException.Description.RATCHET_IS_DISABLED)
+     */
+    @JvmOverloads fun joinRatchetChannels(
+            cards: List<Card>,
+            name: String? = null
+    ): Result<List<RatchetChannelResult>> = ratchetWorker.joinRatchetChannels(cards, name)
+
     /**
      * Retrieves a double ratchet channel from the local storage.
      *
@@ -1127,6 +1335,13 @@ abstract class EThreeCore {
     @JvmOverloads fun deleteRatchetChannel(card: Card, name: String? = null): Completable =
             ratchetWorker.deleteRatchetChannel(card, name)
 
+    /**
+     * Writes sessions of double ratchet channels which writing was deferred according to
+     * [RatchetPersistence]. Call it when app goes to background, so state of channels is not
+     * lost if app process is killed.
+     */
+    fun flushRatchetChannels() = ratchetWorker.flushRatchetChannels()
+
     /**
      * Creates channel with unregistered user.
      *
@@ -1360,20 +1575,35 @@ abstract class EThreeCore {
         setupTempChannelManager(selfKeyPair)
 
         if (this.enableRatchet) {
+            writePendingRatchetSessions()
             setupRatchet(params, selfKeyPair)
         }
     }
 
+    /**
+     * Writes ratchet sessions deferred according to [RatchetPersistence] before storage of
+     * sessions is replaced or reset.
+     */
+    private fun writePendingRatchetSessions() {
+        try {
+            ratchetWorker.flushRatchetChannels()
+        } catch (throwable: Throwable) {
+            logger.warning("Writing ratchet sessions failed: ${throwable.message}")
+        }
+    }
+
     internal fun privateKeyDeleted() {
         logger.finer("Private key deleted")
+        writePendingRatchetSessions()
         lookupManager.cardStorage.reset()
-        groupManager?.localGroupStorage?.reset()
+        groupManager?.reset()
         tempChannelManager?.localStorage?.reset()
 
         groupManager = null
         tempChannelManager = null
         secureChat = null
-        timer = null
+        ratchetSessionStorage = null
+        cancelKeysRotation()
     }
 
     internal fun computeSessionId(identifier: Data): Data {
@@ -1464,13 +1694,12 @@ abstract class EThreeCore {
                     }
                 }
 
+                getRatchetSessionStorage().reset()
                 cloudRatchetStorage.reset()
             }
 
             logger.info("Key rotation started")
-            val logs = chat.rotateKeys().get()
-            val logsDescription = Gson().toJson(logs)
-            logger.info("Key rotation succeed: $logsDescription")
+            rotateKeys(chat)
 
             scheduleKeysRotation(chat, false)
         } else {
@@ -1495,34 +1724,51 @@ abstract class EThreeCore {
 
         val chat = SecureChat(context)
         this.secureChat = chat
+        this.ratchetSessionStorage = storageProvider.createSessionStorage(this.identity,
+                                                                          crypto,
+                                                                          keyPair,
+                                                                          chat.sessionStorage)
+                                     ?: chat.sessionStorage
 
         return chat
     }
 
-    private fun scheduleKeysRotation(chat: SecureChat, startFromNow: Boolean) {
+    @Synchronized private fun scheduleKeysRotation(chat: SecureChat, startFromNow: Boolean) {
         logger.finer("Schedule keys rotation. Start from now = $startFromNow")
-        val secureChat = getSecureChat()
 
-        this.timer = RepeatingTimer(this.keyRotationInterval, startFromNow, object : TimerTask() {
-            override fun run() {
-                logger.info("Key rotation started")
+        cancelKeysRotation()
+        this.keyRotation = KeyRotationScheduler.schedule(this.keyRotationInterval, startFromNow) {
+            rotateKeys(chat)
+        }
+    }
 
-                try {
-                    val logs = secureChat.rotateKeys().get()
-                    val logsDescription = Gson().toJson(logs)
-                    logger.info("Key rotation succeed: $logsDescription)")
-                } catch (throwable: Throwable) {
-                    logger.severe("Key rotation failed: ${throwable.localizedMessage}")
-                }
-            }
-        })
+    @Synchronized private fun cancelKeysRotation() {
+        this.keyRotation?.cancel()
+        this.keyRotation = null
+    }
 
-        this.timer?.resume()
+    // Fallback for instances that were dropped without stopRatchetKeysRotation or cleanup
+    protected fun finalize() {
+        this.keyRotation?.cancel()
     }
 
     companion object {
         private val logger = Logger.getLogger(unwrapCompanionClass(this.javaClass).name)
 
+        private val gson: Gson by lazy { Gson() }
+
+        /**
+         * Rotates keys of [chat]. Kept out of instance, so scheduled rotation doesn't keep
+         * [EThreeCore] from being collected.
+         */
+        private fun rotateKeys(chat: SecureChat) {
+            val logs = chat.rotateKeys().get()
+
+            if (logger.isLoggable(Level.INFO)) {
+                logger.info("Key rotation succeed: ${gson.toJson(logs)}")
+            }
+        }
+
         /**
          * Derives different passwords for login and for backup from the one provided.
          *
@@ -45,5 +45,7 @@ class FileGroupStorageException @JvmOverloads constructor(
     enum class Description(val errorCode: Int, val errorMessage: String) {
         INVALID_FILE_NAME(ErrorCode.FILE_GROUP_STORAGE + 1, "Invalid file name."),
         EMPTY_FILE(ErrorCode.FILE_GROUP_STORAGE + 2, "File is empty."),
+        INVALID_SEGMENT(ErrorCode.FILE_GROUP_STORAGE + 3, "Tickets segment file is corrupted."),
+        INVALID_ENCODING(ErrorCode.FILE_GROUP_STORAGE + 4, "Group data has invalid encoding."),
     }
 }
@@ -56,5 +56,7 @@ class GroupException @JvmOverloads constructor(
         INCONSISTENT_STATE(ErrorCode.GROUP + 11, "Inconsistent state."),
         INITIATOR_REMOVAL_FAILED(ErrorCode.GROUP + 12, "Group initiator is not able to remove himself from a group."),
         GROUP_ALREADY_EXISTS(ErrorCode.GROUP + 13, "Group with the same ID is already exists."),
+        EPOCH_WAS_REMOVED(ErrorCode.GROUP + 14, "Message epoch was removed from group history by retention policy."),
+        SENDER_WAS_NOT_FOUND(ErrorCode.GROUP + 15, "Message is not signed by any of group participants. This may be caused by rotating sender key."),
     }
 }
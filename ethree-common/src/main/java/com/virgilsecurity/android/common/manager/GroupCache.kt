@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.manager
+
+import com.virgilsecurity.android.common.model.Group
+
+/**
+ * Thread safe cache of [Group] instances. Least recently used groups are evicted when cache
+ * exceeds [maxSize].
+ */
+internal class GroupCache internal constructor(private val maxSize: Int) {
+
+    private val groups = object : LinkedHashMap<String, Group>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Group>?): Boolean =
+                size > maxSize
+    }
+
+    init {
+        require(maxSize > 0) { "\'maxSize\' should be positive" }
+    }
+
+    @Synchronized internal fun get(key: String): Group? = groups[key]
+
+    /**
+     * Caches [group] if there's no group with the same [key] yet. Returns cached group.
+     */
+    @Synchronized internal fun putIfAbsent(key: String, group: Group): Group =
+            groups.getOrPut(key) { group }
+
+    @Synchronized internal fun put(key: String, group: Group) {
+        groups[key] = group
+    }
+
+    @Synchronized internal fun remove(key: String) {
+        groups.remove(key)
+    }
+
+    @Synchronized internal fun removeIf(predicate: (String) -> Boolean) {
+        groups.keys.removeAll(predicate)
+    }
+
+    @Synchronized internal fun clear() = groups.clear()
+}
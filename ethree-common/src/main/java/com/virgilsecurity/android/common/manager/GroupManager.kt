@@ -33,21 +33,42 @@
 
 package com.virgilsecurity.android.common.manager
 
+import com.virgilsecurity.android.common.callback.OnProgressCallback
 import com.virgilsecurity.android.common.exception.GroupException
 import com.virgilsecurity.android.common.model.Group
 import com.virgilsecurity.android.common.model.GroupInfo
+import com.virgilsecurity.android.common.model.GroupResult
+import com.virgilsecurity.android.common.model.GroupRetentionPolicy
+import com.virgilsecurity.android.common.model.GroupSummary
+import com.virgilsecurity.android.common.model.GroupUpdateStats
 import com.virgilsecurity.android.common.model.RawGroup
 import com.virgilsecurity.android.common.model.Ticket
 import com.virgilsecurity.android.common.storage.cloud.CloudTicketStorage
 import com.virgilsecurity.android.common.storage.local.FileGroupStorage
 import com.virgilsecurity.android.common.storage.local.LocalKeyStorage
+import com.virgilsecurity.common.extension.toData
 import com.virgilsecurity.common.model.Data
+import com.virgilsecurity.common.util.toHexString
 import com.virgilsecurity.keyknox.utils.unwrapCompanionClass
 import com.virgilsecurity.sdk.cards.Card
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicLong
 import java.util.logging.Logger
 
 /**
  * GroupManager
+ *
+ * Keeps up to [MAX_CACHED_GROUPS] live [Group] instances in memory, so repeated [retrieve] calls
+ * don't read and decrypt tickets from [localGroupStorage] each time. Up to
+ * [MAX_CACHED_EPOCH_GROUPS] groups of single historical epochs, used to decrypt old messages, are
+ * cached the same way.
+ *
+ * Epochs stored locally are remembered per group, so [pullChanges] can tell whether cloud has
+ * new epochs without reading local storage.
  */
 internal class GroupManager internal constructor(
         internal val localGroupStorage: FileGroupStorage,
@@ -58,54 +79,338 @@ internal class GroupManager internal constructor(
 
     internal val identity: String = localGroupStorage.identity
 
+    private val groupCache = GroupCache(MAX_CACHED_GROUPS)
+    private val epochGroupCache = GroupCache(MAX_CACHED_EPOCH_GROUPS)
+    private val localEpochsCache = ConcurrentHashMap<String, LocalEpochs>()
+
+    private val fullPulls = AtomicLong()
+    private val skippedPulls = AtomicLong()
+
     private fun parse(rawGroup: RawGroup): Group = Group(rawGroup,
                                                          localKeyStorage,
                                                          this,
                                                          lookupManager)
 
-    internal fun store(ticket: Ticket, cards: List<Card>): Group {
+    internal fun store(ticket: Ticket, cards: List<Card>, isLarge: Boolean = false): Group {
+        val info = GroupInfo(this.identity, isLarge)
+        val rawGroup = RawGroup(info, listOf(ticket))
+
+        cloudTicketStorage.store(ticket, cards)
+        if (isLarge) {
+            cloudTicketStorage.storeLargeFlag(ticket.groupMessage.sessionId.toData())
+        }
+        localGroupStorage.store(rawGroup)
+        localEpochsCache.remove(ticket.groupMessage.sessionId.toHexString())
+
+        val group = parse(rawGroup)
+        groupCache.put(ticket.groupMessage.sessionId.toHexString(), group)
+
+        return group
+    }
+
+    /**
+     * Stores new epoch [ticket] of existing group. Group which owns the ticket is responsible for
+     * updating its session and calling [updateCache].
+     */
+    internal fun storeEpoch(ticket: Ticket, cards: List<Card>) {
         val info = GroupInfo(this.identity)
         val rawGroup = RawGroup(info, listOf(ticket))
 
         cloudTicketStorage.store(ticket, cards)
         localGroupStorage.store(rawGroup)
+        localEpochsCache.remove(ticket.groupMessage.sessionId.toHexString())
+    }
 
-        return parse(rawGroup)
+    /**
+     * Pulls new epochs of group from the cloud. If [cache] is false resulting group is not put
+     * into cache.
+     */
+    internal fun pull(sessionId: Data, card: Card, cache: Boolean = true): Group {
+        val cloudEpochs = getCloudEpochs(sessionId, card)
+
+        return pull(sessionId, card, cloudEpochs, cache)
     }
 
-    internal fun pull(sessionId: Data, card: Card): Group {
+    /**
+     * Checks whether group has new epochs in the cloud, and pulls them only if it has.
+     *
+     * Adding participants doesn't create new epoch, so if there are no new epochs, only ticket
+     * of the last epoch is pulled to refresh [participants]. Tickets are not stored again and
+     * session doesn't need to be rebuilt in that case.
+     */
+    internal fun pullChanges(sessionId: Data,
+                             card: Card,
+                             participants: Set<String>): GroupChanges {
+        val cloudEpochs = getCloudEpochs(sessionId, card)
+
+        // Group with pruned epochs is rebuilt from storage as if it had new ones
+        if (pruneRemovedEpochs(sessionId, cloudEpochs)
+            || newEpochs(localEpochs(sessionId), cloudEpochs).isNotEmpty()) {
+            fullPulls.incrementAndGet()
+            val group = pull(sessionId, card, cloudEpochs, cache = false)
+
+            return GroupChanges(group, group.participants)
+        }
+
+        skippedPulls.incrementAndGet()
+        logger.fine("No new epochs of group ${sessionId.toHexString()}, skipping pull")
+
+        val ticket = cloudTicketStorage.retrieve(sessionId,
+                                                 card.identity,
+                                                 card.publicKey,
+                                                 setOf(lastEpoch(cloudEpochs))).single()
+
+        if (ticket.participants != participants) {
+            localGroupStorage.setParticipants(ticket.participants, sessionId)
+        }
+
+        return GroupChanges(null, ticket.participants)
+    }
+
+    internal fun getUpdateStats() = GroupUpdateStats(fullPulls.get(), skippedPulls.get())
+
+    private fun getCloudEpochs(sessionId: Data, card: Card): Set<String> {
         val cloudEpochs = cloudTicketStorage.getEpochs(sessionId, card.identity)
-        val localEpochs = localGroupStorage.getEpochs(sessionId)
 
-        val anyEpoch = cloudEpochs.firstOrNull()
-        if (anyEpoch == null) {
+        if (cloudEpochs.isEmpty()) {
+            invalidateCache(sessionId)
             localGroupStorage.delete(sessionId)
 
             throw GroupException(GroupException.Description.GROUP_WAS_NOT_FOUND)
         }
 
-        val epochs = cloudEpochs.subtract(localEpochs).toMutableSet()
-        epochs.add(anyEpoch)
+        return cloudEpochs
+    }
+
+    private fun pull(sessionId: Data, card: Card, cloudEpochs: Set<String>, cache: Boolean): Group =
+            save(fetch(sessionId, card, cloudEpochs), cache)
+
+    /**
+     * Loads several groups at once. Groups are pulled from the cloud concurrently, then all of
+     * them are stored locally in one pass.
+     *
+     * @return Result for each of [groups] in the same order. Failure of one group doesn't affect
+     * others.
+     */
+    internal fun pullAll(groups: List<Pair<Data, Card>>): List<GroupResult> {
+        val futures = groups.map { (sessionId, card) ->
+            loadExecutor.submit(Callable {
+                fetch(sessionId, card, getCloudEpochs(sessionId, card))
+            })
+        }
+
+        val fetched = futures.map { future ->
+            try {
+                future.get()
+            } catch (exception: ExecutionException) {
+                exception.cause ?: exception
+            }
+        }
+
+        // Storage is locked and index is written once for the whole batch instead of per group
+        return localGroupStorage.batch {
+            fetched.map { result ->
+                if (result is PulledGroup) {
+                    try {
+                        GroupResult(save(result, cache = true), null)
+                    } catch (throwable: Throwable) {
+                        GroupResult(null, throwable)
+                    }
+                } else {
+                    GroupResult(null, result as Throwable)
+                }
+            }
+        }
+    }
+
+    /**
+     * Pulls new tickets of group from the cloud without touching local storage.
+     */
+    private fun fetch(sessionId: Data, card: Card, cloudEpochs: Set<String>): PulledGroup {
+        val localEpochs = localEpochs(sessionId)
+
+        // Last epoch is pulled anyway, as it has actual participants
+        val epochs = newEpochs(localEpochs, cloudEpochs).toMutableSet()
+        epochs.add(lastEpoch(cloudEpochs))
 
         val tickets = cloudTicketStorage.retrieve(sessionId, card.identity, card.publicKey, epochs)
-        val info = GroupInfo(card.identity)
-        val rawGroup = RawGroup(info, tickets)
+        // Only large group could ever have more participants than usual one
+        val isLarge = tickets.any {
+            it.participants.size > Group.VALID_PARTICIPANTS_COUNT_RANGE.last
+        }
+        val info = GroupInfo(card.identity, isLarge)
 
-        localGroupStorage.store(rawGroup)
+        return PulledGroup(sessionId,
+                           RawGroup(info, tickets),
+                           LocalEpochs(localEpochs.epochs.union(epochs), localEpochs.minEpoch),
+                           cloudEpochs)
+    }
+
+    private fun save(pulled: PulledGroup, cache: Boolean): Group {
+        val sessionId = pulled.sessionId
+
+        localGroupStorage.store(pulled.rawGroup)
+        localEpochsCache[sessionId.toHexString()] = pulled.epochs
+        pruneRemovedEpochs(sessionId, pulled.cloudEpochs)
 
-        return retrieve(sessionId)
-               ?: throw GroupException(GroupException.Description.INCONSISTENT_STATE)
+        val group = load(sessionId)
+                    ?: throw GroupException(GroupException.Description.INCONSISTENT_STATE)
+        if (cache) {
+            groupCache.put(sessionId.toHexString(), group)
+        }
+
+        return group
     }
 
-    internal fun addAccess(cards: List<Card>, newSet: Set<String>, sessionId: Data) {
-        cloudTicketStorage.addRecipients(cards, sessionId)
+    private fun localEpochs(sessionId: Data): LocalEpochs =
+            localEpochsCache.getOrPut(sessionId.toHexString()) {
+                LocalEpochs(localGroupStorage.getEpochs(sessionId),
+                            localGroupStorage.getMinEpoch(sessionId))
+            }
+
+    /**
+     * Returns epochs of [cloudEpochs] which are not stored locally and were not pruned.
+     */
+    private fun newEpochs(localEpochs: LocalEpochs, cloudEpochs: Set<String>): Set<String> =
+            cloudEpochs.filterTo(HashSet()) {
+                it !in localEpochs.epochs && epochNumber(it) >= localEpochs.minEpoch
+            }
+
+    /**
+     * Removes epochs of group which are not kept by [policy]. Group initiator removes them from
+     * the cloud too, other participants only locally. Messages of removed epochs can't be
+     * decrypted anymore.
+     *
+     * @return Epoch, older than which epochs were removed, or null if there was nothing to remove.
+     */
+    internal fun compact(sessionId: Data,
+                         policy: GroupRetentionPolicy,
+                         isInitiator: Boolean): Long? {
+        val epochs = localEpochs(sessionId).epochs.map(::epochNumber).sorted()
+        if (epochs.size <= policy.maxEpochs) return null
+
+        val minEpoch = epochs[epochs.size - policy.maxEpochs]
+
+        if (isInitiator) {
+            val staleEpochs = cloudTicketStorage.getEpochs(sessionId, this.identity)
+                    .filterTo(HashSet()) { epochNumber(it) < minEpoch }
+            cloudTicketStorage.deleteEpochs(sessionId, staleEpochs)
+        }
+
+        prune(sessionId, minEpoch)
+
+        return minEpoch
+    }
+
+    /**
+     * Removes local epochs which initiator has already removed from the cloud by
+     * [Group.compact].
+     *
+     * @return true if some epochs were removed.
+     */
+    private fun pruneRemovedEpochs(sessionId: Data, cloudEpochs: Set<String>): Boolean {
+        val minEpoch = cloudEpochs.minOf(::epochNumber)
+        if (localEpochs(sessionId).epochs.none { epochNumber(it) < minEpoch }) return false
+
+        logger.fine("Epochs of group ${sessionId.toHexString()} older than $minEpoch " +
+                    "were removed from the cloud, removing them locally")
+        prune(sessionId, minEpoch)
+
+        return true
+    }
+
+    private fun prune(sessionId: Data, minEpoch: Long) {
+        localGroupStorage.prune(sessionId, minEpoch)
+
+        val sessionIdHex = sessionId.toHexString()
+        localEpochsCache.remove(sessionIdHex)
+        epochGroupCache.removeIf {
+            it.startsWith(sessionIdHex + EPOCH_KEY_SEPARATOR) &&
+            it.substringAfter(EPOCH_KEY_SEPARATOR).toLong() < minEpoch
+        }
+    }
+
+    /**
+     * Reads group from local storage, bypassing cache.
+     */
+    internal fun reload(sessionId: Data): Group =
+            load(sessionId) ?: throw GroupException(GroupException.Description.INCONSISTENT_STATE)
+
+    private fun epochNumber(epoch: String): Long = epoch.toLongOrNull() ?: Long.MAX_VALUE
+
+    private fun lastEpoch(epochs: Set<String>): String = epochs.sortedBy(::epochNumber).last()
+
+    internal fun addAccess(cards: List<Card>,
+                           newSet: Set<String>,
+                           sessionId: Data,
+                           progressCallback: OnProgressCallback? = null) {
+        cloudTicketStorage.addRecipients(cards, sessionId, progressCallback)
         localGroupStorage.setParticipants(newSet, sessionId)
     }
 
-    internal fun reAddAccess(card: Card, sessionId: Data) =
-            cloudTicketStorage.reAddRecipient(card, sessionId)
+    /**
+     * Checks whether group created by self was marked as large in the cloud, which is the case
+     * when it was created on another device or local storage was reset. Flag is stored locally,
+     * if it was set.
+     */
+    internal fun restoreLargeFlag(sessionId: Data): Boolean {
+        if (!cloudTicketStorage.isLarge(sessionId)) return false
+
+        localGroupStorage.markLarge(sessionId)
+
+        return true
+    }
+
+    internal fun reAddAccess(card: Card,
+                             sessionId: Data,
+                             progressCallback: OnProgressCallback? = null) =
+            cloudTicketStorage.reAddRecipient(card, sessionId, progressCallback)
 
     internal fun retrieve(sessionId: Data): Group? {
+        val key = sessionId.toHexString()
+        groupCache.get(key)?.let { return it }
+
+        val group = load(sessionId) ?: return null
+
+        return groupCache.putIfAbsent(key, group)
+    }
+
+    /**
+     * Retrieves several groups at once. Groups missing in cache are read from local storage in
+     * one pass.
+     *
+     * @return Group or null for each of [sessionIds] in the same order.
+     */
+    internal fun retrieveAll(sessionIds: List<Data>): List<Group?> {
+        val cached = sessionIds.map { groupCache.get(it.toHexString()) }
+        if (cached.all { it != null }) {
+            return cached
+        }
+
+        return synchronized(localGroupStorage) {
+            sessionIds.mapIndexed { index, sessionId -> cached[index] ?: retrieve(sessionId) }
+        }
+    }
+
+    /**
+     * Returns summaries of all groups stored locally, from local groups index.
+     */
+    internal fun listGroups(): List<GroupSummary> = localGroupStorage.listGroups()
+
+    /**
+     * Returns summaries of locally stored groups which have [identity] as participant.
+     */
+    internal fun groupsWithParticipant(identity: String): List<GroupSummary> =
+            localGroupStorage.groupsWithParticipant(identity)
+
+    /**
+     * Replaces cached group with [group], which has the most recent state.
+     */
+    internal fun updateCache(group: Group) {
+        groupCache.put(group.sessionId.toHexString(), group)
+    }
+
+    private fun load(sessionId: Data): Group? {
         val ticketsCount = MAX_TICKETS_IN_GROUP
 
         val rawGroup = try {
@@ -119,6 +424,13 @@ internal class GroupManager internal constructor(
     }
 
     internal fun retrieve(sessionId: Data, epoch: Long): Group? {
+        val key = sessionId.toHexString() + EPOCH_KEY_SEPARATOR + epoch
+        epochGroupCache.get(key)?.let { return it }
+
+        if (epoch < localEpochs(sessionId).minEpoch) {
+            throw GroupException(GroupException.Description.EPOCH_WAS_REMOVED)
+        }
+
         val rawGroup = try {
             localGroupStorage.retrieve(sessionId, epoch)
         } catch (throwable: Throwable) {
@@ -126,7 +438,7 @@ internal class GroupManager internal constructor(
             return null
         }
 
-        return parse(rawGroup)
+        return epochGroupCache.putIfAbsent(key, parse(rawGroup))
     }
 
     internal fun removeAccess(identities: Set<String>, sessionId: Data) {
@@ -137,11 +449,58 @@ internal class GroupManager internal constructor(
 
     internal fun delete(sessionId: Data) {
         cloudTicketStorage.delete(sessionId)
+        invalidateCache(sessionId)
         localGroupStorage.delete(sessionId)
     }
 
+    internal fun reset() {
+        groupCache.clear()
+        epochGroupCache.clear()
+        localEpochsCache.clear()
+        localGroupStorage.reset()
+    }
+
+    private fun invalidateCache(sessionId: Data) {
+        val sessionIdHex = sessionId.toHexString()
+
+        groupCache.remove(sessionIdHex)
+        localEpochsCache.remove(sessionIdHex)
+        epochGroupCache.removeIf { it.startsWith(sessionIdHex + EPOCH_KEY_SEPARATOR) }
+    }
+
+    /**
+     * Result of [pullChanges]. [group] is a newer state of group if new epochs were pulled, null
+     * otherwise.
+     */
+    internal class GroupChanges(val group: Group?, val participants: Set<String>)
+
+    /**
+     * Tickets pulled from the cloud, all epochs group will have locally once they're stored, and
+     * epochs group has in the cloud.
+     */
+    private class PulledGroup(val sessionId: Data,
+                              val rawGroup: RawGroup,
+                              val epochs: LocalEpochs,
+                              val cloudEpochs: Set<String>)
+
+    /**
+     * Epochs stored locally, and epoch older than which epochs were pruned.
+     */
+    private class LocalEpochs(val epochs: Set<String>, val minEpoch: Long)
+
     companion object {
         internal const val MAX_TICKETS_IN_GROUP = 50
+        internal const val MAX_CACHED_GROUPS = 32
+        internal const val MAX_CACHED_EPOCH_GROUPS = 16
+
+        private const val EPOCH_KEY_SEPARATOR = ":"
+        private const val MAX_PARALLEL_LOADS = 4
+
+        private val loadExecutor: ExecutorService by lazy {
+            Executors.newFixedThreadPool(MAX_PARALLEL_LOADS) { runnable ->
+                Thread(runnable, "EThree-group-load").apply { isDaemon = true }
+            }
+        }
 
         private val logger = Logger.getLogger(unwrapCompanionClass(this.javaClass).name)
     }
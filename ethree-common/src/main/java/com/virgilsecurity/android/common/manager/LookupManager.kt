@@ -41,6 +41,10 @@ import com.virgilsecurity.android.common.storage.CardStorage
 import com.virgilsecurity.keyknox.utils.unwrapCompanionClass
 import com.virgilsecurity.sdk.cards.Card
 import com.virgilsecurity.sdk.cards.CardManager
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicLong
 import java.util.logging.Logger
 
 /**
@@ -52,6 +56,21 @@ internal class LookupManager internal constructor(
         internal val onKeyChangedCallback: OnKeyChangedCallback? = null
 ) {
 
+    private val cardsVersionCounter = AtomicLong()
+
+    /**
+     * Incremented each time a cached card is replaced with a newer one, so holders of cards can
+     * drop the ones they've got.
+     */
+    internal val cardsVersion: Long
+        get() = cardsVersionCounter.get()
+
+    /**
+     * Runs [startUpdateCachedCards] on a background thread.
+     */
+    internal fun startUpdateCachedCardsInBackground(): Future<*> =
+            updateExecutor.submit { startUpdateCachedCards() }
+
     internal fun startUpdateCachedCards() {
         try {
             logger.fine("Updating cached cards started")
@@ -77,6 +96,7 @@ internal class LookupManager internal constructor(
                     val newCard = lookupCard(outdatedCard.identity, true)
 
                     cardStorage.storeCard(newCard)
+                    cardsVersionCounter.incrementAndGet()
 
                     logger.fine("Cached card with id: $outdatedId updated to card " +
                                 "with id: ${newCard.identifier}")
@@ -154,6 +174,10 @@ internal class LookupManager internal constructor(
                     result[card.identity] = card
                 }
             }
+
+            if (forceReload) {
+                cardsVersionCounter.incrementAndGet()
+            }
         }
 
         if (checkResult && (result.keys != identities.toMutableSet())) {
@@ -177,5 +201,11 @@ internal class LookupManager internal constructor(
         private const val MAX_GET_OUTDATED_COUNT = 1_000
 
         private val logger = Logger.getLogger(unwrapCompanionClass(this.javaClass).name)
+
+        private val updateExecutor: ExecutorService by lazy {
+            Executors.newSingleThreadExecutor { runnable ->
+                Thread(runnable, "EThree-cards-update").apply { isDaemon = true }
+            }
+        }
     }
 }
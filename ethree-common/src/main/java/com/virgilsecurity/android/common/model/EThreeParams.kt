@@ -36,6 +36,10 @@ package com.virgilsecurity.android.common.model
 import android.content.Context
 import com.virgilsecurity.android.common.callback.OnGetTokenCallback
 import com.virgilsecurity.android.common.callback.OnKeyChangedCallback
+import com.virgilsecurity.android.common.model.ratchet.RatchetPersistence
+import com.virgilsecurity.android.common.storage.CardStorage
+import com.virgilsecurity.android.common.storage.sql.CardCacheLimits
+import com.virgilsecurity.android.common.storage.sql.RatchetSessionStorageType
 import com.virgilsecurity.android.common.util.Defaults
 import com.virgilsecurity.sdk.client.CardClient
 import com.virgilsecurity.sdk.common.TimeSpan
@@ -67,4 +71,20 @@ class EThreeParams(
 
     // Default key pair type
     var keyPairType: KeyPairType = Defaults.keyPairType
+
+    // Storage of cached cards. SQLite storage is used if null.
+    var cardStorage: CardStorage? = null
+
+    // Limits of SQLite cards cache. Cache is unlimited by default.
+    var cardCacheLimits: CardCacheLimits = CardCacheLimits()
+
+    // TimeSpan after which cached cards are verified again. Cards are verified once if null.
+    var cardReverificationInterval: TimeSpan? = null
+
+    // Defines when ratchet sessions are written to storage. Sessions are written after each
+    // operation by default.
+    var ratchetPersistence: RatchetPersistence = RatchetPersistence()
+
+    // Storage of double ratchet sessions. Each session is a separate file by default.
+    var ratchetSessionStorageType: RatchetSessionStorageType = RatchetSessionStorageType.FILES
 }
@@ -33,10 +33,12 @@
 
 package com.virgilsecurity.android.common.model
 
+import com.virgilsecurity.android.common.callback.OnProgressCallback
 import com.virgilsecurity.android.common.exception.*
 import com.virgilsecurity.android.common.manager.GroupManager
 import com.virgilsecurity.android.common.manager.LookupManager
 import com.virgilsecurity.android.common.storage.local.LocalKeyStorage
+import com.virgilsecurity.android.common.util.awaitAll
 import com.virgilsecurity.common.extension.toData
 import com.virgilsecurity.common.model.Completable
 import com.virgilsecurity.common.model.Data
@@ -46,11 +48,32 @@ import com.virgilsecurity.crypto.foundation.GroupSessionMessage
 import com.virgilsecurity.sdk.cards.Card
 import com.virgilsecurity.sdk.crypto.VirgilCrypto
 import com.virgilsecurity.sdk.utils.ConvertionUtils
+import java.nio.charset.StandardCharsets
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.locks.ReentrantReadWriteLock
 import kotlin.collections.HashSet
+import kotlin.concurrent.read
+import kotlin.concurrent.write
 
 /**
  * Group
+ *
+ * Group session is built on the first [encrypt] or [decrypt] call, so reading [initiator] and
+ * [participants] of a group doesn't replay its epochs.
+ *
+ * Group is safe to use from several threads. Group session is not thread-safe, so encryption
+ * with it is serialized, while decryption runs in parallel on a small pool of sessions built
+ * from the same epochs, each used by one thread at a time. [update], [add], [reAdd] and
+ * [remove] are serialized with each other; network calls of those are made without blocking
+ * decryption, while swapping session and participants blocks it for a short moment. Messages
+ * of epochs which are too old for current session are decrypted with group of their epoch.
+ *
+ * Cards of participants are cached in group once looked up, so removing participants and
+ * decrypting without sender Card don't look them up each time. Cache is dropped when cached
+ * Cards are updated with new keys.
  */
 class Group internal constructor(
         rawGroup: RawGroup,
@@ -62,54 +85,275 @@ class Group internal constructor(
     private val crypto: VirgilCrypto
 
     val initiator: String = rawGroup.info.initiator
-    var participants: MutableSet<String>
+
+    /**
+     * Whether group is large. Large group can have up to [LARGE_PARTICIPANTS_COUNT_RANGE]
+     * participants instead of [VALID_PARTICIPANTS_COUNT_RANGE].
+     *
+     * Group loaded from the cloud is known to be large once it had more than
+     * [VALID_PARTICIPANTS_COUNT_RANGE] participants. Initiator also checks large flag it stored in
+     * the cloud on creation when adding participants beyond that, so group created as large can
+     * grow on any device.
+     */
+    @Volatile var isLarge: Boolean
         private set
 
-    internal var session: GroupSession
+    // Replaced as a whole on each change, so readers always see consistent set
+    @Volatile var participants: MutableSet<String>
+        private set
+
+    internal val sessionId: Data
+
+    // Guards sessions and ticket messages. Sessions are used under read lock and changed under
+    // write lock, so no session is in use while it's changed
+    private val sessionLock = ReentrantReadWriteLock()
+    // GroupSession doesn't guarantee thread-safety, so session encrypts on one thread at a time
+    private val cryptoLock = Any()
+    private val membershipLock = Any()
+
+    // Serialized ticket messages sorted by epoch, which sessions are built from
+    private var ticketMessages: List<ByteArray>
+    private var builtSession: GroupSession? = null
+
+    // Idle sessions for decryption with the same epochs as session, most recently used first
+    private val decryptSessions = ArrayDeque<GroupSession>()
+
+    internal val session: GroupSession
+        get() = withSession { it }
 
     private val selfIdentity: String = localKeyStorage.identity
 
+    // Epochs older than this one were removed by retention policy
+    @Volatile private var minEpoch: Long = rawGroup.info.minEpoch
+
+    // Card of initiator used by last update
+    @Volatile private var initiatorCard: Card? = null
+
+    // Cards of participants, filled on demand. Most recently used Cards go last
+    private val participantCards = LinkedHashMap<String, Card>(16, 0.75f, true)
+
+    // Version of LookupManager cached Cards which participantCards were taken from
+    private var participantCardsVersion: Long = lookupManager.cardsVersion
+
     init {
         val tickets = rawGroup.tickets.sortedBy { it.groupMessage.epoch }
         val lastTicket = tickets.lastOrNull()
                          ?: throw GroupException(GroupException.Description.INVALID_GROUP)
 
-        validateParticipantsCount(lastTicket.participants.size)
+        this.isLarge = rawGroup.info.isLarge ||
+                       lastTicket.participants.size > VALID_PARTICIPANTS_COUNT_RANGE.last
+        validateParticipantsCount(lastTicket.participants.size, this.isLarge)
 
         this.crypto = localKeyStorage.crypto
         this.participants = lastTicket.participants.toMutableSet()
-        this.session = generateSession(tickets)
+        this.sessionId = lastTicket.groupMessage.sessionId.toData()
+        this.ticketMessages = tickets.map { it.groupMessage.serialize() }
     }
 
-    private fun generateSession(tickets: List<Ticket>, crypto: VirgilCrypto): GroupSession {
+    private fun generateSession(messages: List<GroupSessionMessage>,
+                                crypto: VirgilCrypto): GroupSession {
         val session = GroupSession()
         session.setRng(crypto.rng)
 
-        tickets.forEach {
-            session.addEpoch(it.groupMessage)
+        messages.forEach {
+            session.addEpoch(it)
+        }
+
+        return session
+    }
+
+    /**
+     * Builds session for decryption. Decryption doesn't use random generator, so the shared one
+     * is not set, and sessions don't touch it from several threads.
+     */
+    private fun generateDecryptSession(messages: List<ByteArray>): GroupSession {
+        val session = GroupSession()
+
+        messages.forEach {
+            session.addEpoch(GroupSessionMessage.deserialize(it))
         }
 
         return session
     }
 
-    private fun shareTickets(cards: List<Card>, newSet: Set<String>) {
-        val sessionId = this.session.sessionId.toData()
-        groupManager.addAccess(cards, newSet, sessionId)
+    /**
+     * Runs [action] with built session under read lock. Session is built under write lock first,
+     * if needed. Read lock is never upgraded to write lock, as it leads to deadlock.
+     */
+    private fun <T> withSession(action: (GroupSession) -> T): T {
+        sessionLock.read {
+            builtSession?.let { return action(it) }
+        }
+
+        sessionLock.write {
+            if (builtSession == null) {
+                val messages = ticketMessages.map { GroupSessionMessage.deserialize(it) }
+                builtSession = generateSession(messages, this.crypto)
+            }
+        }
+
+        return withSession(action)
+    }
+
+    /**
+     * Runs [action] with idle session for decryption under read lock. Session is built if there
+     * are no idle ones, and is kept for reuse after [action] if pool is not full.
+     */
+    private fun <T> withDecryptSession(action: (GroupSession) -> T): T {
+        sessionLock.read {
+            val session = synchronized(decryptSessions) { decryptSessions.pollFirst() }
+                          ?: generateDecryptSession(ticketMessages)
+            try {
+                return action(session)
+            } finally {
+                synchronized(decryptSessions) {
+                    if (decryptSessions.size < MAX_DECRYPT_SESSIONS) {
+                        decryptSessions.addFirst(session)
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes session and participants of [group], which is a newer state of this group.
+     * [group] should not be shared with other threads.
+     */
+    private fun takeState(group: Group) {
+        sessionLock.write {
+            this.ticketMessages = group.ticketMessages
+            this.builtSession = group.builtSession
+            synchronized(decryptSessions) { decryptSessions.clear() }
+            this.participants = group.participants
+            this.minEpoch = group.minEpoch
+            this.isLarge = this.isLarge || group.isLarge
+        }
+    }
+
+    private fun shareTickets(cards: List<Card>,
+                             newSet: Set<String>,
+                             progressCallback: OnProgressCallback?) {
+        groupManager.addAccess(cards, newSet, this.sessionId, progressCallback)
         this.participants = newSet.toMutableSet()
     }
 
     private fun addNewTicket(participants: FindUsersResult) {
         val newSet = HashSet(participants.keys)
 
-        val ticketMessage = this.session.createGroupTicket().ticketMessage
+        val ticketMessage = withSession { session ->
+            synchronized(cryptoLock) {
+                session.createGroupTicket().ticketMessage
+            }
+        }
         val ticket = Ticket(ticketMessage, newSet)
 
-        groupManager.store(ticket, participants.values.toList())
-        this.session.addEpoch(ticket.groupMessage)
+        groupManager.storeEpoch(ticket, participants.values.toList())
 
         newSet.add(this.initiator)
 
-        this.participants = newSet
+        sessionLock.write {
+            this.session.addEpoch(ticket.groupMessage)
+            synchronized(decryptSessions) {
+                decryptSessions.forEach { it.addEpoch(ticket.groupMessage) }
+            }
+            this.ticketMessages = (this.ticketMessages + ticket.groupMessage.serialize())
+                    .takeLast(GroupManager.MAX_TICKETS_IN_GROUP)
+            this.participants = newSet
+        }
+    }
+
+    /**
+     * Pulls changes of group using cached initiator Card. If initiator has changed Card since
+     * then, pulling fails and is repeated with actual Card.
+     */
+    private fun pullChanges(): GroupManager.GroupChanges {
+        val cachedCard = this.initiatorCard
+        if (cachedCard != null) {
+            try {
+                return groupManager.pullChanges(this.sessionId, cachedCard, this.participants)
+            } catch (exception: GroupException) {
+                throw exception
+            } catch (exception: Exception) {
+                this.initiatorCard = null
+            }
+        }
+
+        val card = lookupManager.lookupCard(this.initiator)
+        val changes = groupManager.pullChanges(this.sessionId, card, this.participants)
+        this.initiatorCard = card
+
+        return changes
+    }
+
+    /**
+     * Returns Cards of [identities]. Cached Cards are used, the rest are looked up and cached.
+     */
+    private fun participantCards(identities: Collection<String>,
+                                 checkResult: Boolean): FindUsersResult {
+        val result = FindUsersResult()
+        val missing = mutableListOf<String>()
+
+        synchronized(participantCards) {
+            dropOutdatedCards()
+
+            identities.forEach { identity ->
+                val card = participantCards[identity]
+                if (card != null) result[identity] = card else missing.add(identity)
+            }
+        }
+
+        if (missing.isNotEmpty()) {
+            val version = lookupManager.cardsVersion
+            val lookup = lookupManager.lookupCards(missing,
+                                                   forceReload = false,
+                                                   checkResult = checkResult)
+            cacheCards(lookup.values, version)
+            result.putAll(lookup)
+        }
+
+        return result
+    }
+
+    /**
+     * Caches [cards], unless cached Cards of LookupManager were updated after [version].
+     */
+    private fun cacheCards(cards: Collection<Card>, version: Long = lookupManager.cardsVersion) {
+        synchronized(participantCards) {
+            dropOutdatedCards()
+
+            if (version == participantCardsVersion) {
+                cards.forEach { participantCards[it.identity] = it }
+            }
+        }
+    }
+
+    /**
+     * Replaces cached Card of [card] identity if [card] is the next one of the cached.
+     */
+    private fun refreshCard(card: Card) {
+        synchronized(participantCards) {
+            val cached = participantCards[card.identity] ?: return
+
+            if (cached.identifier == card.previousCardId) {
+                participantCards[card.identity] = card
+            }
+        }
+    }
+
+    private fun retainParticipantCards() {
+        synchronized(participantCards) {
+            participantCards.keys.retainAll(this.participants)
+        }
+    }
+
+    // Should be called under participantCards lock
+    private fun dropOutdatedCards() {
+        val version = lookupManager.cardsVersion
+
+        if (version != participantCardsVersion) {
+            participantCards.clear()
+            participantCardsVersion = version
+        }
     }
 
     internal fun checkPermissions() {
@@ -117,9 +361,6 @@ class Group internal constructor(
             throw GroupException(GroupException.Description.GROUP_PERMISSION_DENIED)
     }
 
-    internal fun generateSession(tickets: List<Ticket>): GroupSession =
-            generateSession(tickets, this.crypto)
-
     /**
      * Signs and encrypts data for group.
      *
@@ -148,7 +389,11 @@ class Group internal constructor(
         require(data.isNotEmpty()) { "\'data\' should not be empty" }
 
         val selfKeyPair = this.localKeyStorage.retrieveKeyPair()
-        val encrypted = this.session.encrypt(data, selfKeyPair.privateKey.privateKey)
+        val encrypted = withSession { session ->
+            synchronized(cryptoLock) {
+                session.encrypt(data, selfKeyPair.privateKey.privateKey)
+            }
+        }
         return encrypted.serialize()
     }
 
@@ -165,46 +410,158 @@ class Group internal constructor(
         require(data.isNotEmpty()) { "\'data\' should not be empty" }
 
         val encrypted = GroupSessionMessage.deserialize(data)
-        var card = senderCard
+        val card = actualCard(senderCard, date)
+        refreshCard(senderCard)
 
-        if (date != null) {
-            // Find a card which is actual for the date
-            var previousCard = card.previousCard
-            while (previousCard != null) {
-                if (!date.before(card.createdAt)) {
-                    break
+        return decrypt(encrypted, card)
+    }
+
+    /**
+     * Decrypts and verifies data from group participant. Sender is found among group
+     * participants by message signature.
+     *
+     * Recent senders are tried first. Cards of other participants are looked up in batches of
+     * [SENDER_LOOKUP_BATCH_SIZE] until sender is found, and cached in group. Use overload with
+     * sender identity if it's known, so only its Card is looked up.
+     *
+     * @param data encrypted byte array.
+     * @param date date of message. Use it to prevent verifying new messages with old card.
+     *
+     * @return decrypted byte array.
+     */
+    @JvmOverloads fun decrypt(data: ByteArray, date: Date? = null): ByteArray {
+        require(data.isNotEmpty()) { "\'data\' should not be empty" }
+
+        val encrypted = GroupSessionMessage.deserialize(data)
+        val participants = this.participants
+
+        val cachedCards = synchronized(participantCards) {
+            dropOutdatedCards()
+            participantCards.values.filter { participants.contains(it.identity) }.asReversed()
+        }
+
+        decryptBySomeone(encrypted, cachedCards, date)?.let { return it }
+
+        val cachedIdentities = cachedCards.map { it.identity }.toSet()
+        val otherIdentities = participants.filterNot { cachedIdentities.contains(it) }
+
+        for (identities in otherIdentities.chunked(SENDER_LOOKUP_BATCH_SIZE)) {
+            val otherCards = participantCards(identities, checkResult = false).values
+            decryptBySomeone(encrypted, otherCards.toList(), date)?.let { return it }
+        }
+
+        throw GroupException(GroupException.Description.SENDER_WAS_NOT_FOUND)
+    }
+
+    /**
+     * Decrypts and verifies data from group participant with known identity. Card of sender is
+     * taken from group, and looked up only if it's not cached there yet.
+     *
+     * @param data encrypted byte array.
+     * @param senderIdentity identity of sender.
+     * @param date date of message. Use it to prevent verifying new messages with old card.
+     *
+     * @return decrypted byte array.
+     */
+    @JvmOverloads fun decrypt(data: ByteArray,
+                              senderIdentity: String,
+                              date: Date? = null): ByteArray {
+        require(data.isNotEmpty()) { "\'data\' should not be empty" }
+
+        if (!this.participants.contains(senderIdentity)) {
+            throw GroupException(GroupException.Description.SENDER_WAS_NOT_FOUND)
+        }
+
+        val encrypted = GroupSessionMessage.deserialize(data)
+        val card = participantCards(listOf(senderIdentity), checkResult = true)
+                .getValue(senderIdentity)
+
+        return decryptBySomeone(encrypted, listOf(card), date)
+               ?: throw GroupException(GroupException.Description.VERIFICATION_FAILED)
+    }
+
+    /**
+     * Decrypts [encrypted] with the first of [cards] that verifies it, or returns null if none
+     * does.
+     */
+    private fun decryptBySomeone(encrypted: GroupSessionMessage,
+                                 cards: List<Card>,
+                                 date: Date?): ByteArray? {
+        for (card in cards) {
+            try {
+                val decrypted = decrypt(encrypted, actualCard(card, date))
+
+                // Moves sender to the end of recently used
+                synchronized(participantCards) { participantCards[card.identity] }
+
+                return decrypted
+            } catch (exception: GroupException) {
+                if (exception.description != GroupException.Description.VERIFICATION_FAILED) {
+                    throw exception
                 }
-                previousCard = card.previousCard
-                card = previousCard
             }
         }
 
-        if (!Arrays.equals(this.session.sessionId, encrypted.sessionId))
+        return null
+    }
+
+    private fun decrypt(encrypted: GroupSessionMessage, card: Card): ByteArray {
+        if (!Arrays.equals(this.sessionId.value, encrypted.sessionId))
             throw GroupException(GroupException.Description.MESSAGE_NOT_FROM_THIS_GROUP)
 
         val messageEpoch = encrypted.epoch
-        val currentEpoch = this.session.currentEpoch
 
-        if (currentEpoch < messageEpoch) {
-            throw GroupException(GroupException.Description.GROUP_IS_OUTDATED)
+        if (messageEpoch < this.minEpoch) {
+            throw GroupException(GroupException.Description.EPOCH_WAS_REMOVED)
         }
 
-        try {
-            return if (currentEpoch - messageEpoch < GroupManager.MAX_TICKETS_IN_GROUP) {
-                this.session.decrypt(encrypted, card.publicKey.publicKey)
+        val decrypted = withDecryptSession { session ->
+            val currentEpoch = session.currentEpoch
+
+            if (currentEpoch < messageEpoch) {
+                throw GroupException(GroupException.Description.GROUP_IS_OUTDATED)
+            }
+
+            if (currentEpoch - messageEpoch < GroupManager.MAX_TICKETS_IN_GROUP) {
+                try {
+                    session.decrypt(encrypted, card.publicKey.publicKey)
+                } catch (e: FoundationException) {
+                    throw GroupException(GroupException.Description.VERIFICATION_FAILED)
+                }
             } else {
-                val sessionId = encrypted.sessionId.toData()
+                null
+            }
+        }
+
+        if (decrypted != null) {
+            return decrypted
+        }
+
+        // Message is too old for current session, so it's decrypted with group of its epoch
+        val tempGroup = this.groupManager.retrieve(this.sessionId, messageEpoch.toLong())
+                        ?: throw GroupException(GroupException.Description.MISSING_CACHED_GROUP)
+
+        return tempGroup.decrypt(encrypted, card)
+    }
 
-                val tempGroup = this.groupManager.retrieve(sessionId, messageEpoch.toLong())
-                                ?: throw GroupException(
-                                    GroupException.Description.MISSING_CACHED_GROUP
-                                )
+    /**
+     * Finds a card of [senderCard] chain which is actual for the [date].
+     */
+    private fun actualCard(senderCard: Card, date: Date?): Card {
+        var card = senderCard
 
-                tempGroup.decrypt(data, senderCard)
+        if (date != null) {
+            var previousCard = card.previousCard
+            while (previousCard != null) {
+                if (!date.before(card.createdAt)) {
+                    break
+                }
+                previousCard = card.previousCard
+                card = previousCard
             }
-        } catch (e: FoundationException) {
-            throw GroupException(GroupException.Description.VERIFICATION_FAILED)
         }
+
+        return card
     }
 
     /**
@@ -230,16 +587,187 @@ class Group internal constructor(
         return ConvertionUtils.toString(decryptedData)
     }
 
+    /**
+     * Decrypts and verifies base64 string from group participant. Sender is found among group
+     * participants by message signature.
+     *
+     * @param text encrypted String.
+     * @param date date of message. Use it to prevent verifying new messages with old card.
+     *
+     * @return decrypted String.
+     */
+    @JvmOverloads fun decrypt(text: String, date: Date? = null): String {
+        require(text.isNotEmpty()) { "\'text\' should not be empty" }
+
+        val data: Data
+        try {
+            data = Data.fromBase64String(text)
+        } catch (exception: Exception) {
+            throw EThreeException(EThreeException.Description.STR_TO_DATA_FAILED, exception)
+        }
+
+        val decryptedData = this.decrypt(data.value, date)
+        return ConvertionUtils.toString(decryptedData)
+    }
+
+    /**
+     * Decrypts and verifies base64 string from group participant with known identity.
+     *
+     * @param text encrypted String.
+     * @param senderIdentity identity of sender.
+     * @param date date of message. Use it to prevent verifying new messages with old card.
+     *
+     * @return decrypted String.
+     */
+    @JvmOverloads fun decrypt(text: String, senderIdentity: String, date: Date? = null): String {
+        require(text.isNotEmpty()) { "\'text\' should not be empty" }
+
+        val data: Data
+        try {
+            data = Data.fromBase64String(text)
+        } catch (exception: Exception) {
+            throw EThreeException(EThreeException.Description.STR_TO_DATA_FAILED, exception)
+        }
+
+        val decryptedData = this.decrypt(data.value, senderIdentity, date)
+        return ConvertionUtils.toString(decryptedData)
+    }
+
+    data class MultipleData(val multipleData: List<Data>)
+
+    /**
+     * Signs and encrypts multiple data for group.
+     *
+     * @param data Multiple data to encrypt.
+     *
+     * @return encrypted data in the same order.
+     *
+     * @notice Requires private key in local storage.
+     */
+    fun encryptMultiple(data: MultipleData): MultipleData {
+        require(data.multipleData.isNotEmpty()) { "\'data\' should not be empty" }
+
+        data.multipleData.forEach {
+            require(it.value.isNotEmpty()) { "\'data\' should not contain empty items" }
+        }
+
+        val selfKeyPair = this.localKeyStorage.retrieveKeyPair()
+
+        val result = withSession { session ->
+            synchronized(cryptoLock) {
+                data.multipleData.map {
+                    session.encrypt(it.value, selfKeyPair.privateKey.privateKey)
+                            .serialize()
+                            .toData()
+                }
+            }
+        }
+
+        return MultipleData(result)
+    }
+
+    /**
+     * Decrypts and verifies multiple data from one group participant. Sender card is resolved
+     * once for all messages, and large batches are decrypted in parallel.
+     *
+     * If any message fails, exception of the first failed message is thrown.
+     *
+     * @param data Multiple encrypted data.
+     * @param senderCard sender Card to verify with.
+     * @param date date of messages. Use it to prevent verifying new messages with old card.
+     *
+     * @return decrypted data in the same order.
+     */
+    @JvmOverloads fun decryptMultiple(data: MultipleData,
+                                      senderCard: Card,
+                                      date: Date? = null): MultipleData {
+        require(data.multipleData.isNotEmpty()) { "\'data\' should not be empty" }
+
+        val messages = data.multipleData.map {
+            require(it.value.isNotEmpty()) { "\'data\' should not contain empty items" }
+
+            GroupSessionMessage.deserialize(it.value)
+        }
+        val card = actualCard(senderCard, date)
+        refreshCard(senderCard)
+
+        if (messages.size < PARALLEL_DECRYPT_THRESHOLD) {
+            return MultipleData(messages.map { decrypt(it, card).toData() })
+        }
+
+        val futures = messages.map { message ->
+            decryptExecutor.submit(Callable { decrypt(message, card).toData() })
+        }
+
+        return MultipleData(awaitAll(futures))
+    }
+
+    data class MultipleString(val multipleText: List<String>)
+
+    /**
+     * Signs and encrypts multiple strings for group.
+     *
+     * @param text Multiple strings to encrypt.
+     *
+     * @return encrypted base64 strings in the same order.
+     *
+     * @notice Requires private key in local storage.
+     */
+    fun encryptMultiple(text: MultipleString): MultipleString {
+        val data = text.multipleText.map { it.toByteArray(StandardCharsets.UTF_8).toData() }
+
+        val encryptedData = encryptMultiple(MultipleData(data))
+        val encryptedStrings = encryptedData.multipleData.map { it.toBase64String() }
+
+        return MultipleString(encryptedStrings)
+    }
+
+    /**
+     * Decrypts and verifies multiple base64 strings from one group participant.
+     *
+     * @param text Multiple encrypted strings.
+     * @param senderCard sender Card to verify with.
+     * @param date date of messages. Use it to prevent verifying new messages with old card.
+     *
+     * @return decrypted strings in the same order.
+     */
+    @JvmOverloads fun decryptMultiple(text: MultipleString,
+                                      senderCard: Card,
+                                      date: Date? = null): MultipleString {
+        val data = text.multipleText.map {
+            try {
+                Data.fromBase64String(it)
+            } catch (exception: Exception) {
+                throw EThreeException(EThreeException.Description.STR_TO_DATA_FAILED, exception)
+            }
+        }
+
+        val decryptedData = decryptMultiple(MultipleData(data), senderCard, date)
+        val decryptedStrings = decryptedData.multipleData.map { String(it.value, Charsets.UTF_8) }
+
+        return MultipleString(decryptedStrings)
+    }
+
     /**
      * Updates group.
+     *
+     * New epochs are pulled and session is rebuilt only if group has changed since last update.
      */
     fun update(): Completable = object : Completable {
         override fun execute() {
-            val sessionId = this@Group.session.sessionId.toData()
-            val card = lookupManager.lookupCard(this@Group.initiator)
-            val group = groupManager.pull(sessionId, card)
-            this@Group.session = group.session
-            this@Group.participants = group.participants
+            synchronized(membershipLock) {
+                val changes = this@Group.pullChanges()
+
+                val group = changes.group
+                if (group != null) {
+                    this@Group.takeState(group)
+                } else if (changes.participants != this@Group.participants) {
+                    this@Group.participants = changes.participants.toMutableSet()
+                }
+
+                this@Group.retainParticipantCards()
+                groupManager.updateCache(this@Group)
+            }
         }
     }
 
@@ -247,35 +775,52 @@ class Group internal constructor(
      * Adds new participants to group.
      *
      * @param participants Cards of users to add. Result of findUsers call.
+     * @param progressCallback Notified each time history of one more epoch is shared.
      *
-     * @notice New participant will be able to decrypt all history
+     * @notice New participant will be able to decrypt all history. If adding fails, it can be
+     * called again with the same participants to complete sharing of history.
      */
-    fun add(participants: FindUsersResult): Completable = object : Completable {
+    @JvmOverloads fun add(
+            participants: FindUsersResult,
+            progressCallback: OnProgressCallback? = null
+    ): Completable = object : Completable {
         override fun execute() {
-            checkPermissions()
+            synchronized(membershipLock) {
+                checkPermissions()
+
+                val oldSet = this@Group.participants
+                val newSet = oldSet.union(participants.keys)
 
-            val oldSet = this@Group.participants
-            val newSet = oldSet.union(participants.keys)
+                if (!this@Group.isLarge
+                    && newSet.size > VALID_PARTICIPANTS_COUNT_RANGE.last
+                    && groupManager.restoreLargeFlag(this@Group.sessionId)) {
+                    this@Group.isLarge = true
+                }
 
-            validateParticipantsCount(newSet.size)
+                validateParticipantsCount(newSet.size, this@Group.isLarge)
 
-            if (newSet == oldSet) {
-                throw GroupException(
-                    GroupException.Description.INVALID_CHANGE_PARTICIPANTS
-                )
-            }
+                if (newSet == oldSet) {
+                    throw GroupException(
+                        GroupException.Description.INVALID_CHANGE_PARTICIPANTS
+                    )
+                }
 
-            val addSet = newSet.subtract(oldSet)
+                val addSet = newSet.subtract(oldSet)
 
-            val addedCards = mutableListOf<Card>()
-            addSet.forEach {
-                val card = participants[it]
-                           ?: throw GroupException(GroupException.Description.INCONSISTENT_STATE)
+                val addedCards = mutableListOf<Card>()
+                addSet.forEach {
+                    val card = participants[it] ?: throw GroupException(
+                        GroupException.Description.INCONSISTENT_STATE
+                    )
 
-                addedCards.add(card)
-            }
+                    addedCards.add(card)
+                }
 
-            this@Group.shareTickets(addedCards, newSet)
+                this@Group.shareTickets(addedCards, newSet, progressCallback)
+                this@Group.cacheCards(addedCards)
+
+                groupManager.updateCache(this@Group)
+            }
         }
     }
 
@@ -283,12 +828,21 @@ class Group internal constructor(
      * Share group access and history on new Card of existing participant.
      *
      * @param Participant Card.
+     * @param progressCallback Notified each time history of one more epoch is shared.
      */
-    fun reAdd(participant: Card): Completable = object : Completable {
+    @JvmOverloads fun reAdd(
+            participant: Card,
+            progressCallback: OnProgressCallback? = null
+    ): Completable = object : Completable {
         override fun execute() {
-            checkPermissions()
+            synchronized(membershipLock) {
+                checkPermissions()
 
-            groupManager.reAddAccess(participant, this@Group.session.sessionId.toData())
+                groupManager.reAddAccess(participant,
+                                         this@Group.sessionId,
+                                         progressCallback)
+                this@Group.cacheCards(listOf(participant))
+            }
         }
     }
 
@@ -302,46 +856,99 @@ class Group internal constructor(
      */
     fun remove(participants: FindUsersResult): Completable = object : Completable {
         override fun execute() {
-            checkPermissions()
+            synchronized(membershipLock) {
+                checkPermissions()
 
-            val oldSet = this@Group.participants
-            val newSet = oldSet.subtract(participants.keys)
+                val oldSet = this@Group.participants
+                val newSet = oldSet.subtract(participants.keys)
 
-            validateParticipantsCount(newSet.size)
+                validateParticipantsCount(newSet.size, this@Group.isLarge)
 
-            // Group initiator should not be able to remove himself from a group
-            if (participants.containsKey(this@Group.initiator)) {
-                throw GroupException(GroupException.Description.INITIATOR_REMOVAL_FAILED)
-            }
+                // Group initiator should not be able to remove himself from a group
+                if (participants.containsKey(this@Group.initiator)) {
+                    throw GroupException(GroupException.Description.INITIATOR_REMOVAL_FAILED)
+                }
 
-            if (newSet == oldSet) {
-                throw GroupException(
-                    GroupException.Description.INVALID_CHANGE_PARTICIPANTS
-                )
-            }
+                if (newSet == oldSet) {
+                    throw GroupException(
+                        GroupException.Description.INVALID_CHANGE_PARTICIPANTS
+                    )
+                }
 
-            val newSetLookup = lookupManager.lookupCards(newSet.toList(),
-                                                         forceReload = false,
-                                                         checkResult = true)
-            addNewTicket(newSetLookup)
+                val newSetLookup = this@Group.participantCards(newSet, checkResult = true)
+                addNewTicket(newSetLookup)
+                this@Group.retainParticipantCards()
 
-            val removedSet = oldSet.subtract(newSet)
-            groupManager.removeAccess(removedSet, this@Group.session.sessionId.toData())
+                groupManager.updateCache(this@Group)
+
+                val removedSet = oldSet.subtract(newSet)
+                groupManager.removeAccess(removedSet, this@Group.sessionId)
+            }
         }
     }
 
-    fun add(participant: Card): Completable =
-            add(FindUsersResult(mapOf(participant.identity to participant)))
+    /**
+     * Removes old epochs of group according to [policy]. If called by group initiator, epochs
+     * are removed from the cloud too, so other participants remove them locally on their next
+     * [update] or when they load group again. Other participants remove epochs only locally.
+     *
+     * *Note* Messages of removed epochs can't be decrypted anymore.
+     *
+     * @param policy Defines which epochs to keep.
+     */
+    fun compact(policy: GroupRetentionPolicy): Completable = object : Completable {
+        override fun execute() {
+            synchronized(membershipLock) {
+                val minEpoch = groupManager.compact(this@Group.sessionId,
+                                                    policy,
+                                                    this@Group.selfIdentity == this@Group.initiator)
+                               ?: return
+                this@Group.minEpoch = minEpoch
+
+                // Session has the last MAX_TICKETS_IN_GROUP epochs, some of which were removed
+                if (policy.maxEpochs < GroupManager.MAX_TICKETS_IN_GROUP) {
+                    this@Group.takeState(groupManager.reload(this@Group.sessionId))
+                    groupManager.updateCache(this@Group)
+                }
+            }
+        }
+    }
+
+    @JvmOverloads fun add(participant: Card,
+                          progressCallback: OnProgressCallback? = null): Completable =
+            add(FindUsersResult(mapOf(participant.identity to participant)), progressCallback)
 
     fun remove(participant: Card): Completable =
             remove(FindUsersResult(mapOf(participant.identity to participant)))
 
     companion object {
-        internal fun validateParticipantsCount(count: Int) {
-            if (count !in VALID_PARTICIPANTS_COUNT_RANGE)
+        internal fun validateParticipantsCount(count: Int, isLarge: Boolean = false) {
+            val range = if (isLarge) LARGE_PARTICIPANTS_COUNT_RANGE
+                        else VALID_PARTICIPANTS_COUNT_RANGE
+
+            if (count !in range)
                 throw GroupException(GroupException.Description.INVALID_PARTICIPANTS_COUNT)
         }
 
         val VALID_PARTICIPANTS_COUNT_RANGE = 1..100
+
+        val LARGE_PARTICIPANTS_COUNT_RANGE = 1..5000
+
+        /**
+         * Count of participant Cards looked up at once while sender of message is searched.
+         */
+        const val SENDER_LOOKUP_BATCH_SIZE = 50
+
+        private const val PARALLEL_DECRYPT_THRESHOLD = 4
+
+        // Threads decrypting a batch, and the most idle decrypt sessions kept by group
+        private val MAX_DECRYPT_SESSIONS =
+                Runtime.getRuntime().availableProcessors().coerceAtLeast(2)
+
+        private val decryptExecutor: ExecutorService by lazy {
+            Executors.newFixedThreadPool(MAX_DECRYPT_SESSIONS) { runnable ->
+                Thread(runnable, "EThree-group-decrypt").apply { isDaemon = true }
+            }
+        }
     }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.model
+
+import com.virgilsecurity.android.common.exception.FileGroupStorageException
+import com.virgilsecurity.crypto.foundation.GroupSessionMessage
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+
+/**
+ * Compact binary encoding of [Ticket] and [GroupInfo] for local storage.
+ *
+ * Encoded data starts with [MARKER], type of encoded object and [VERSION], followed by fields
+ * prefixed with their length. Participants are interned on decoding, as the same identities
+ * repeat in every ticket of a group.
+ *
+ * Earlier versions stored both objects as JSON, which never starts with [MARKER], so such data
+ * is recognized with [isEncoded] and read the old way.
+ */
+internal object GroupCodec {
+
+    private const val MARKER: Byte = 0xE3.toByte()
+    private const val VERSION: Byte = 1
+    private const val TYPE_TICKET: Byte = 0x54 // 'T'
+    private const val TYPE_GROUP_INFO: Byte = 0x49 // 'I'
+
+    private const val PREFIX_SIZE = 3
+    private const val LENGTH_SIZE = 4
+    private const val FLAGS_SIZE = 1
+    private const val EPOCH_SIZE = 8
+
+    private const val FLAG_LARGE_GROUP = 1
+
+    internal fun isTicket(data: ByteArray) = isEncoded(data, TYPE_TICKET)
+
+    internal fun isGroupInfo(data: ByteArray) = isEncoded(data, TYPE_GROUP_INFO)
+
+    internal fun encode(groupMessage: ByteArray, participants: Collection<String>): ByteArray {
+        val encodedParticipants = participants.map { it.toByteArray(StandardCharsets.UTF_8) }
+        val size = PREFIX_SIZE +
+                   LENGTH_SIZE + groupMessage.size +
+                   LENGTH_SIZE + encodedParticipants.sumOf { LENGTH_SIZE + it.size }
+
+        val buffer = ByteBuffer.allocate(size)
+        putPrefix(buffer, TYPE_TICKET)
+        putBytes(buffer, groupMessage)
+        buffer.putInt(encodedParticipants.size)
+        encodedParticipants.forEach { putBytes(buffer, it) }
+
+        return buffer.array()
+    }
+
+    internal fun decodeTicket(data: ByteArray): Ticket = decode(data, TYPE_TICKET) { buffer ->
+        val groupMessage = GroupSessionMessage.deserialize(getBytes(buffer))
+
+        val count = buffer.int
+        if (count < 0) invalidEncoding()
+
+        val participants = HashSet<String>(count * 2)
+        repeat(count) {
+            participants.add(getString(buffer).intern())
+        }
+
+        Ticket(groupMessage, participants)
+    }
+
+    internal fun encode(info: GroupInfo): ByteArray {
+        val initiator = info.initiator.toByteArray(StandardCharsets.UTF_8)
+        val flags = if (info.isLarge) FLAG_LARGE_GROUP else 0
+
+        val size = PREFIX_SIZE + LENGTH_SIZE + initiator.size + FLAGS_SIZE + EPOCH_SIZE
+
+        val buffer = ByteBuffer.allocate(size)
+        putPrefix(buffer, TYPE_GROUP_INFO)
+        putBytes(buffer, initiator)
+        buffer.put(flags.toByte())
+        buffer.putLong(info.minEpoch)
+
+        return buffer.array()
+    }
+
+    internal fun decodeGroupInfo(data: ByteArray): GroupInfo =
+            decode(data, TYPE_GROUP_INFO) { buffer ->
+                val initiator = getString(buffer).intern()
+                val flags = buffer.get().toInt()
+                val minEpoch = buffer.long
+
+                GroupInfo(initiator, (flags and FLAG_LARGE_GROUP) != 0, minEpoch)
+            }
+
+    private fun isEncoded(data: ByteArray, type: Byte) =
+            data.size >= PREFIX_SIZE && data[0] == MARKER && data[1] == type
+
+    private fun <T> decode(data: ByteArray, type: Byte, read: (ByteBuffer) -> T): T {
+        if (!isEncoded(data, type) || data[2] > VERSION) invalidEncoding()
+
+        val buffer = ByteBuffer.wrap(data, PREFIX_SIZE, data.size - PREFIX_SIZE)
+        val result = try {
+            read(buffer)
+        } catch (exception: BufferUnderflowException) {
+            invalidEncoding()
+        }
+        if (buffer.hasRemaining()) invalidEncoding()
+
+        return result
+    }
+
+    private fun putPrefix(buffer: ByteBuffer, type: Byte) {
+        buffer.put(MARKER)
+        buffer.put(type)
+        buffer.put(VERSION)
+    }
+
+    private fun putBytes(buffer: ByteBuffer, bytes: ByteArray) {
+        buffer.putInt(bytes.size)
+        buffer.put(bytes)
+    }
+
+    private fun getBytes(buffer: ByteBuffer): ByteArray {
+        val size = buffer.int
+        if (size < 0 || size > buffer.remaining()) invalidEncoding()
+
+        val bytes = ByteArray(size)
+        buffer.get(bytes)
+
+        return bytes
+    }
+
+    private fun getString(buffer: ByteBuffer): String {
+        val size = buffer.int
+        if (size < 0 || size > buffer.remaining()) invalidEncoding()
+
+        val string = String(buffer.array(), buffer.arrayOffset() + buffer.position(), size,
+                            StandardCharsets.UTF_8)
+        buffer.position(buffer.position() + size)
+
+        return string
+    }
+
+    private fun invalidEncoding(): Nothing =
+            throw FileGroupStorageException(FileGroupStorageException.Description.INVALID_ENCODING)
+}
@@ -33,20 +33,33 @@
 
 package com.virgilsecurity.android.common.model
 
+import com.virgilsecurity.common.extension.toData
 import com.virgilsecurity.common.model.Data
 import com.virgilsecurity.common.util.SerializeUtils
 
 /**
  * GroupInfo
+ *
+ * Serialized with [GroupCodec]. Group info serialized as JSON by earlier versions is still
+ * deserialized.
+ *
+ * @param isLarge Whether group was created as large group, see [Group.isLarge].
+ * @param minEpoch Epochs older than this one were removed by [GroupRetentionPolicy].
  */
-internal class GroupInfo(internal val initiator: String) {
+internal class GroupInfo(
+        internal val initiator: String,
+        internal val isLarge: Boolean = false,
+        internal val minEpoch: Long = 0
+) {
 
-    internal fun serialize(): Data {
-        return SerializeUtils.serialize(this)
-    }
+    internal fun serialize(): Data = GroupCodec.encode(this).toData()
 
     companion object {
         internal fun deserialize(data: Data): GroupInfo {
+            if (GroupCodec.isGroupInfo(data.value)) {
+                return GroupCodec.decodeGroupInfo(data.value)
+            }
+
             return SerializeUtils.deserialize(data, GroupInfo::class.java)
         }
     }
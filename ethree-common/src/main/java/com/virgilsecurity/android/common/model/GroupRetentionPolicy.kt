@@ -7,7 +7,7 @@
  *
  * Redistribution and use in source and binary forms, with or without
  * modification, are permitted provided that the following conditions are met:
- *
+ *  
  *     (1) Redistributions of source code must retain the above copyright notice, this
  *     list of conditions and the following disclaimer.
  *
@@ -31,41 +31,19 @@
  * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
-package com.virgilsecurity.android.common.util
-
-import com.virgilsecurity.sdk.common.TimeSpan
-import java.util.*
+package com.virgilsecurity.android.common.model
 
 /**
- * RepeatingTimer
+ * GroupRetentionPolicy
+ *
+ * Defines how much of group history is kept by [Group.compact]. Each removal of participants
+ * starts a new epoch of group, and messages of removed epochs can't be decrypted anymore.
+ *
+ * @param maxEpochs Count of the latest epochs to keep.
  */
-internal class RepeatingTimer(
-        private val interval: TimeSpan,
-        private val startFromNow: Boolean,
-        private val timerTask: TimerTask
-) {
-
-    private val timer: Timer
-    private var isRunning: Boolean = false
+class GroupRetentionPolicy(val maxEpochs: Int) {
 
     init {
-        this.timer = Timer(TIMER_NAME)
-    }
-
-    @Synchronized internal fun resume() {
-        if (this.isRunning) return
-
-        val startAfter = if (startFromNow) 0L else this.interval.spanMilliseconds
-
-        this.timer.scheduleAtFixedRate(timerTask, startAfter, interval.spanMilliseconds)
-        this.isRunning = true
-    }
-
-    protected fun finalize() {
-        timer.cancel()
-    }
-
-    companion object {
-        private const val TIMER_NAME = "Repeating_Timer"
+        require(maxEpochs > 0) { "\'maxEpochs\' should be positive" }
     }
 }
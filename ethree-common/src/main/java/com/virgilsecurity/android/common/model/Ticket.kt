@@ -33,8 +33,7 @@
 
 package com.virgilsecurity.android.common.model
 
-import android.os.Parcel
-import android.os.Parcelable
+import com.virgilsecurity.common.extension.toData
 import com.virgilsecurity.common.model.Data
 import com.virgilsecurity.common.util.SerializeUtils
 import com.virgilsecurity.crypto.foundation.GroupSessionMessage
@@ -45,20 +44,17 @@ import java.io.Serializable
 
 /**
  * Ticket
+ *
+ * Ticket is serialized with [GroupCodec]. Tickets serialized as JSON by earlier versions are
+ * still deserialized.
  */
-internal class Ticket : Parcelable {
+internal class Ticket {
 
     internal val groupMessage: GroupSessionMessage
     internal val participants: Set<String>
 
-    private constructor(parcel: Parcel) {
-        val groupMessageDataLength = parcel.readInt()
-        val serializedGroupMessage = ByteArray(groupMessageDataLength)
-        parcel.readByteArray(serializedGroupMessage)
-        this.groupMessage = GroupSessionMessage.deserialize(serializedGroupMessage)
-
-        this.participants = parcel.readSerializable() as Set<String>
-    }
+    // Serialized group message, used for serialization and comparison
+    private val groupMessageBytes: ByteArray by lazy { groupMessage.serialize() }
 
     internal constructor(groupMessage: GroupSessionMessage, participants: Set<String>) {
         this.groupMessage = groupMessage
@@ -79,22 +75,7 @@ internal class Ticket : Parcelable {
         this.participants = participants
     }
 
-    internal fun serialize(): Data {
-        val dto = TicketDto(this.groupMessage.serialize(), this.participants)
-        return SerializeUtils.serialize(dto)
-    }
-
-    override fun writeToParcel(parcel: Parcel, flags: Int) {
-        val groupMessageData = this.groupMessage.serialize()
-        parcel.writeInt(groupMessageData.size)
-        parcel.writeByteArray(groupMessageData)
-
-        parcel.writeSerializable(participants as Serializable)
-    }
-
-    override fun describeContents(): Int {
-        return hashCode()
-    }
+    internal fun serialize(): Data = GroupCodec.encode(groupMessageBytes, participants).toData()
 
     override fun equals(other: Any?): Boolean {
         if (this === other) return true
@@ -102,14 +83,14 @@ internal class Ticket : Parcelable {
 
         other as Ticket
 
-        if (!groupMessage.serialize().contentEquals(other.groupMessage.serialize())) return false
+        if (!groupMessageBytes.contentEquals(other.groupMessageBytes)) return false
         if (participants != other.participants) return false
 
         return true
     }
 
     override fun hashCode(): Int {
-        var result = groupMessage.hashCode()
+        var result = groupMessageBytes.contentHashCode()
         result = 31 * result + participants.hashCode()
         return result
     }
@@ -118,19 +99,12 @@ internal class Ticket : Parcelable {
 
     companion object {
         @JvmStatic internal fun deserialize(data: Data): Ticket {
-            val dto = SerializeUtils.deserialize(data, TicketDto::class.java)
-            return Ticket(GroupSessionMessage.deserialize(dto.groupMessage), dto.participants)
-        }
-
-        @JvmField
-        val CREATOR = object : Parcelable.Creator<Ticket> {
-            override fun createFromParcel(parcel: Parcel): Ticket {
-                return Ticket(parcel)
+            if (GroupCodec.isTicket(data.value)) {
+                return GroupCodec.decodeTicket(data.value)
             }
 
-            override fun newArray(size: Int): Array<Ticket?> {
-                return arrayOfNulls(size)
-            }
+            val dto = SerializeUtils.deserialize(data, TicketDto::class.java)
+            return Ticket(GroupSessionMessage.deserialize(dto.groupMessage), dto.participants)
         }
     }
 }
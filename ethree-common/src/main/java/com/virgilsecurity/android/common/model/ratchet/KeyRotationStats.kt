@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.model.ratchet
+
+/**
+ * KeyRotationStats
+ *
+ * Counters of automatic ratchet keys rotations since
+ * [com.virgilsecurity.android.common.EThreeCore] got its private key.
+ *
+ * @param succeeded Count of rotations that succeeded.
+ * @param failed Count of rotations that failed. Failed rotation is retried with exponential
+ * backoff.
+ * @param skippedOffline Count of rotations skipped because Virgil Cloud was not reachable.
+ * @param lastLatencyMillis Duration of the last rotation attempt, *0* if there were no attempts.
+ * @param averageLatencyMillis Average duration of rotation attempts, *0* if there were no
+ * attempts.
+ * @param lastOutcome Outcome of the last rotation attempt, *null* if there were no attempts.
+ */
+data class KeyRotationStats(val succeeded: Long,
+                            val failed: Long,
+                            val skippedOffline: Long,
+                            val lastLatencyMillis: Long,
+                            val averageLatencyMillis: Long,
+                            val lastOutcome: Outcome?) {
+
+    /**
+     * Outcome of one rotation attempt.
+     */
+    enum class Outcome {
+        SUCCEEDED,
+        FAILED,
+        SKIPPED_OFFLINE
+    }
+}
@@ -35,6 +35,7 @@ package com.virgilsecurity.android.common.model.ratchet
 
 import com.virgilsecurity.android.common.exception.EThreeException
 import com.virgilsecurity.android.common.exception.EThreeRatchetException
+import com.virgilsecurity.android.common.storage.local.RatchetSessionWriter
 import com.virgilsecurity.common.extension.toData
 import com.virgilsecurity.common.model.Data
 import com.virgilsecurity.crypto.ratchet.RatchetMessage
@@ -44,15 +45,65 @@ import java.nio.charset.StandardCharsets
 
 /**
  * Class representing Ratchet Chat.
+ *
+ * Session is written to storage after each operation, unless channel was created by EThree with
+ * deferred [RatchetPersistence].
+ *
+ * Channel is safe to use from several threads, its operations are serialized on [session].
+ * EThree returns the same channel for the same participant and name while it is not deleted.
  */
 class RatchetChannel(
         internal val session: SecureSession,
         internal val sessionStorage: SessionStorage
 ) {
 
+    private var sessionWriter: RatchetSessionWriter? = null
+
+    // Name of channel as given to EThree, null for default one
+    internal var name: String? = null
+        private set
+
+    internal constructor(session: SecureSession,
+                         sessionStorage: SessionStorage,
+                         sessionWriter: RatchetSessionWriter,
+                         name: String?) : this(session, sessionStorage) {
+        this.sessionWriter = sessionWriter
+        this.name = name
+    }
+
     val participant: String
         get() = session.participantIdentity
 
+    private val writerKey: RatchetSessionWriter.Key
+        get() = RatchetSessionWriter.Key(participant, name)
+
+    private fun storeSession() {
+        val writer = this.sessionWriter
+
+        if (writer != null) {
+            writer.store(writerKey, this.session)
+        } else {
+            sessionStorage.storeSession(this.session)
+        }
+    }
+
+    private fun storeSessionDeferred(messages: Int) {
+        val writer = this.sessionWriter
+
+        if (writer != null) {
+            writer.storeDeferred(writerKey, this.session, messages)
+        } else {
+            sessionStorage.storeSession(this.session)
+        }
+    }
+
+    /**
+     * Writes session to storage if its writing was deferred by [RatchetPersistence].
+     */
+    fun flush() {
+        this.sessionWriter?.flush(writerKey)
+    }
+
     /**
      * Encrypts data.
      *
@@ -61,8 +112,9 @@ class RatchetChannel(
     fun encrypt(data: Data): Data {
         require(data.value.isNotEmpty()) { "\'data\' should not be empty" }
 
-        val ratchetMessage = this.session.encrypt(data.value)
-        sessionStorage.storeSession(this.session)
+        val ratchetMessage = synchronized(session) {
+            this.session.encrypt(data.value).also { storeSession() }
+        }
 
         return ratchetMessage.serialize().toData()
     }
@@ -76,11 +128,10 @@ class RatchetChannel(
         require(data.value.isNotEmpty()) { "\'data\' should not be empty" }
 
         val message = RatchetMessage.deserialize(data.value)
-        val decrypted = session.decryptData(message).toData()
-
-        sessionStorage.storeSession(this.session)
 
-        return decrypted
+        return synchronized(session) {
+            session.decryptData(message).toData().also { storeSessionDeferred(1) }
+        }
     }
 
     /**
@@ -132,14 +183,16 @@ class RatchetChannel(
 
         val result = mutableListOf<Data>()
 
-        data.multipleData.forEach {
-            val ratchetMessage = session.encrypt(it.value)
-            val encrypted = ratchetMessage.serialize().toData()
+        synchronized(session) {
+            data.multipleData.forEach {
+                val ratchetMessage = session.encrypt(it.value)
+                val encrypted = ratchetMessage.serialize().toData()
 
-            result.add(encrypted)
-        }
+                result.add(encrypted)
+            }
 
-        sessionStorage.storeSession(this.session)
+            storeSession()
+        }
 
         return MultipleData(result)
     }
@@ -157,14 +210,16 @@ class RatchetChannel(
 
         val result = mutableListOf<Data>()
 
-        data.multipleData.forEach {
-            val ratchetMessage = RatchetMessage.deserialize(it.value)
-            val decrypted = session.decryptData(ratchetMessage).toData()
+        synchronized(session) {
+            data.multipleData.forEach {
+                val ratchetMessage = RatchetMessage.deserialize(it.value)
+                val decrypted = session.decryptData(ratchetMessage).toData()
 
-            result.add(decrypted)
-        }
+                result.add(decrypted)
+            }
 
-        sessionStorage.storeSession(this.session)
+            storeSessionDeferred(result.size)
+        }
 
         return MultipleData(result)
     }
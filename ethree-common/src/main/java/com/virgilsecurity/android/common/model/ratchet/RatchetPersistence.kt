@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.model.ratchet
+
+import com.virgilsecurity.sdk.common.TimeSpan
+
+/**
+ * Defines when ratchet sessions are written to storage after decryption.
+ *
+ * By default session is written after each decryption. Writing can be deferred until
+ * [flushEveryMessages] messages are decrypted in channel or [flushInterval] passes since the
+ * first unwritten one, whichever comes first. Deferred sessions are also written by
+ * [RatchetChannel.flush] and [com.virgilsecurity.android.common.EThreeCore.flushRatchetChannels],
+ * which is worth calling when app goes to background.
+ *
+ * Session is always written before encrypted data is returned, together with deferred changes.
+ * Otherwise session restored after crash would encrypt next messages with the same keys.
+ *
+ * If process dies before deferred session is written, channel is restored to its last written
+ * state. Messages decrypted since then can be decrypted once again, so app should tolerate
+ * duplicates. Next messages are decrypted as usual, as ratchet handles skipped messages.
+ *
+ * @param flushEveryMessages Count of decrypted messages after which session is written, up to
+ * [MAX_FLUSH_EVERY_MESSAGES].
+ * @param flushInterval Time after the first unwritten decryption when session is written. Session
+ * is written only by count and on flush if *null*.
+ */
+class RatchetPersistence @JvmOverloads constructor(
+        val flushEveryMessages: Int = 1,
+        val flushInterval: TimeSpan? = null
+) {
+
+    init {
+        require(flushEveryMessages in 1..MAX_FLUSH_EVERY_MESSAGES) {
+            "\'flushEveryMessages\' should be in 1..$MAX_FLUSH_EVERY_MESSAGES"
+        }
+    }
+
+    internal val isDeferred: Boolean
+        get() = flushEveryMessages > 1
+
+    companion object {
+        /**
+         * Ratchet handles gaps of up to 2000 messages, so unwritten messages are kept well below
+         * that.
+         */
+        const val MAX_FLUSH_EVERY_MESSAGES = 1000
+    }
+}
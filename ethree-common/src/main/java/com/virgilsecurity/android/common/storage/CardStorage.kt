@@ -37,16 +37,34 @@ import com.virgilsecurity.sdk.cards.Card
 
 /**
  * Virgil Cards storage.
+ *
+ * Implement this interface to provide your own cache for Virgil Cards. Implementations should be
+ * thread safe.
  */
-internal interface CardStorage {
+interface CardStorage {
 
+    /**
+     * Stores [card] together with all its previous cards. Previous cards are stored as outdated.
+     */
     fun storeCard(card: Card)
 
+    /**
+     * Returns card with provided [cardId], or *null* if there's no such card.
+     */
     fun getCard(cardId: String): Card?
 
+    /**
+     * Returns newest cards for provided [identities] with previous cards linked.
+     */
     fun searchCards(identities: List<String>): List<Card>
 
+    /**
+     * Returns identifiers of all cards that are not outdated.
+     */
     fun getNewestCardIds(): List<String>
 
+    /**
+     * Removes all cards from the storage.
+     */
     fun reset()
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.storage
+
+import com.virgilsecurity.android.common.model.ratchet.RatchetPersistence
+import com.virgilsecurity.ratchet.sessionstorage.SessionStorage
+import com.virgilsecurity.sdk.cards.validation.CardVerifier
+import com.virgilsecurity.sdk.crypto.VirgilCrypto
+import com.virgilsecurity.sdk.crypto.VirgilKeyPair
+
+/**
+ * Provides platform specific storages for [com.virgilsecurity.android.common.EThreeCore].
+ */
+interface StorageProvider {
+
+    /**
+     * Absolute path of directory where groups, temporary channels and ratchet sessions are stored.
+     */
+    val rootPath: String
+
+    /**
+     * Defines when ratchet sessions are written to storage. Sessions are written after each
+     * operation by default.
+     */
+    val ratchetPersistence: RatchetPersistence
+        get() = RatchetPersistence()
+
+    /**
+     * Creates Virgil Cards storage for user with provided [identity].
+     *
+     * @param identity Identity of current user.
+     * @param crypto Crypto to use.
+     * @param verifier Verifier for cards read from the storage.
+     */
+    fun createCardStorage(identity: String,
+                          crypto: VirgilCrypto,
+                          verifier: CardVerifier): CardStorage
+
+    /**
+     * Creates storage of ratchet sessions for user with provided [identity]. Sessions are kept in
+     * [fileStorage] of secure chat if *null* is returned.
+     *
+     * @param identity Identity of current user.
+     * @param crypto Crypto to use.
+     * @param identityKeyPair Key pair of current user to encrypt sessions with.
+     * @param fileStorage File storage of secure chat, where sessions were kept before.
+     */
+    fun createSessionStorage(identity: String,
+                             crypto: VirgilCrypto,
+                             identityKeyPair: VirgilKeyPair,
+                             fileStorage: SessionStorage): SessionStorage? = null
+}
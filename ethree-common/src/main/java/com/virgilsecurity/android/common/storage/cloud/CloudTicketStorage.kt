@@ -33,10 +33,12 @@
 
 package com.virgilsecurity.android.common.storage.cloud
 
+import com.virgilsecurity.android.common.callback.OnProgressCallback
 import com.virgilsecurity.android.common.exception.GroupException
 import com.virgilsecurity.android.common.model.Ticket
 import com.virgilsecurity.android.common.storage.local.LocalKeyStorage
 import com.virgilsecurity.android.common.util.Const
+import com.virgilsecurity.android.common.util.awaitAll
 import com.virgilsecurity.common.model.Data
 import com.virgilsecurity.common.util.toHexString
 import com.virgilsecurity.crypto.foundation.GroupSessionMessage
@@ -47,6 +49,10 @@ import com.virgilsecurity.sdk.cards.Card
 import com.virgilsecurity.sdk.crypto.VirgilPublicKey
 import com.virgilsecurity.sdk.jwt.contract.AccessTokenProvider
 import java.net.URL
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * CloudTicketStorage
@@ -65,6 +71,10 @@ internal class CloudTicketStorage internal constructor(
         this.keyknoxManager = KeyknoxManager(keyknoxClient)
     }
 
+    /**
+     * Shares [ticket] with [cards]. Ticket is pushed for at most [MAX_RECIPIENTS_PER_PUSH]
+     * participants at a time, so large groups are shared in several pushes.
+     */
     internal fun store(ticket: Ticket, cards: Collection<Card>) {
         val selfKeyPair = localKeyStorage.retrieveKeyPair()
 
@@ -74,15 +84,18 @@ internal class CloudTicketStorage internal constructor(
         val epoch = groupMessage.epoch
         val ticketData = groupMessage.serialize()
 
-        val identities = cards.map { it.identity }
-        val publicKeys = cards.map { it.publicKey }
+        val shards = cards.chunked(MAX_RECIPIENTS_PER_PUSH)
+        val firstShard = shards.firstOrNull().orEmpty()
+
+        val identities = firstShard.map { it.identity }
+        val publicKeys = firstShard.map { it.publicKey }
 
         val params = KeyknoxPushParams(identities + this.identity,
                                        GROUP_SESSION_ROOT,
                                        sessionId,
                                        "$epoch")
 
-        try {
+        val response = try {
             keyknoxManager.pushValue(params,
                     ticketData,
                     null,
@@ -102,6 +115,42 @@ internal class CloudTicketStorage internal constructor(
                 throw e
             }
         }
+
+        var keyknoxHash: ByteArray? = response.keyknoxHash
+        shards.drop(1).forEach { shard ->
+            keyknoxHash = pushShard(shard, sessionId, "$epoch", ticketData, keyknoxHash)
+        }
+    }
+
+    /**
+     * Marks session as large group in the cloud, so its initiator knows it on other devices.
+     * Group tickets have no place for the flag, so it's kept as a separate value shared only
+     * with self, as only initiator can change participants.
+     */
+    internal fun storeLargeFlag(sessionId: Data) {
+        val selfKeyPair = localKeyStorage.retrieveKeyPair()
+
+        val params = KeyknoxPushParams(listOf(this.identity),
+                                       GROUP_INFO_ROOT,
+                                       sessionId.toHexString(),
+                                       LARGE_FLAG_KEY)
+
+        keyknoxManager.pushValue(params,
+                                 LARGE_FLAG_VALUE,
+                                 null,
+                                 listOf(selfKeyPair.publicKey),
+                                 selfKeyPair.privateKey)
+    }
+
+    /**
+     * Returns true if session was marked as large group by [storeLargeFlag].
+     */
+    internal fun isLarge(sessionId: Data): Boolean {
+        val getParams = KeyknoxGetKeysParams(this.identity,
+                                             GROUP_INFO_ROOT,
+                                             sessionId.toHexString())
+
+        return keyknoxManager.getKeys(getParams).contains(LARGE_FLAG_KEY)
     }
 
     internal fun getEpochs(sessionId: Data, identity: String): Set<String> {
@@ -114,6 +163,13 @@ internal class CloudTicketStorage internal constructor(
         return keyknoxManager.getKeys(getParams)
     }
 
+    /**
+     * Pulls tickets of [epochs] concurrently, at most [MAX_PARALLEL_REQUESTS] at a time.
+     *
+     * Returns tickets sorted by epoch. Retrieval is all-or-nothing: if any epoch fails, pulls
+     * that haven't started yet are cancelled and exception of the earliest failed epoch is thrown,
+     * with exceptions of other failed epochs added as suppressed.
+     */
     internal fun retrieve(sessionId: Data,
                           identity: String,
                           identityPublicKey: VirgilPublicKey,
@@ -122,8 +178,7 @@ internal class CloudTicketStorage internal constructor(
 
         val sessionIdHex = sessionId.toHexString()
 
-        val tickets = mutableListOf<Ticket>()
-        for (epoch in epochs) {
+        val pullTicket = { epoch: String ->
             val pullParams = KeyknoxPullParams(identity,
                                                GROUP_SESSION_ROOT,
                                                sessionIdHex,
@@ -134,21 +189,37 @@ internal class CloudTicketStorage internal constructor(
 
             val groupMessage = GroupSessionMessage.deserialize(response.value)
             val participants = response.identities.toSet()
-            val ticket = Ticket(groupMessage, participants)
+            Ticket(groupMessage, participants)
+        }
 
-            tickets.add(ticket)
+        val sortedEpochs = epochs.sortedBy { it.toLongOrNull() ?: Long.MAX_VALUE }
+        if (sortedEpochs.size <= 1) {
+            return sortedEpochs.map(pullTicket)
         }
 
-        return tickets
+        val futures = sortedEpochs.map { epoch -> executor.submit(Callable { pullTicket(epoch) }) }
+
+        return awaitAll(futures)
     }
 
-    internal fun addRecipients(cards: Collection<Card>, sessionId: Data) {
+    /**
+     * Shares all epochs of session with [cards]. Epochs are re-shared concurrently, at most
+     * [MAX_PARALLEL_REQUESTS] at a time, reporting each finished epoch to [progressCallback].
+     *
+     * Each epoch is pushed for at most [MAX_RECIPIENTS_PER_PUSH] of [cards] at a time, so
+     * only new participants are touched, however large group is.
+     *
+     * Sharing an epoch again is harmless, so if this call fails, it can be repeated with the
+     * same cards to complete it.
+     */
+    internal fun addRecipients(cards: Collection<Card>,
+                               sessionId: Data,
+                               progressCallback: OnProgressCallback? = null) {
         val selfKeyPair = localKeyStorage.retrieveKeyPair()
 
         val sessionIdHex = sessionId.toHexString()
 
-        val identities = cards.map { it.identity }
-        val publicKeys = cards.map { it.publicKey }
+        val shards = cards.chunked(MAX_RECIPIENTS_PER_PUSH)
 
         val getParams = KeyknoxGetKeysParams(this.identity,
                                              GROUP_SESSION_ROOT,
@@ -156,7 +227,7 @@ internal class CloudTicketStorage internal constructor(
 
         val epochs = keyknoxManager.getKeys(getParams)
 
-        for (epoch in epochs) {
+        forEachEpoch(epochs, progressCallback) { epoch ->
             val pullParams = KeyknoxPullParams(this.identity,
                                                GROUP_SESSION_ROOT,
                                                sessionIdHex,
@@ -165,20 +236,20 @@ internal class CloudTicketStorage internal constructor(
                                                     listOf(selfKeyPair.publicKey),
                                                     selfKeyPair.privateKey)
 
-            val pushParams = KeyknoxPushParams(identities,
-                                               GROUP_SESSION_ROOT,
-                                               sessionIdHex,
-                                               epoch)
-
-            keyknoxManager.pushValue(pushParams,
-                                     response.value,
-                                     response.keyknoxHash,
-                                     publicKeys + selfKeyPair.publicKey,
-                                     selfKeyPair.privateKey)
+            var keyknoxHash: ByteArray? = response.keyknoxHash
+            shards.forEach { shard ->
+                keyknoxHash = pushShard(shard, sessionIdHex, epoch, response.value, keyknoxHash)
+            }
         }
     }
 
-    internal fun reAddRecipient(card: Card, sessionId: Data) {
+    /**
+     * Shares all epochs of session with new [card] of existing participant. Works the same way
+     * as [addRecipients].
+     */
+    internal fun reAddRecipient(card: Card,
+                                sessionId: Data,
+                                progressCallback: OnProgressCallback? = null) {
         val selfKeyPair = localKeyStorage.retrieveKeyPair()
 
         val path = sessionId.toHexString()
@@ -189,7 +260,7 @@ internal class CloudTicketStorage internal constructor(
 
         val epochs = keyknoxManager.getKeys(getParams)
 
-        for (epoch in epochs) {
+        forEachEpoch(epochs, progressCallback) { epoch ->
             val pullParams = KeyknoxPullParams(this.identity,
                                                GROUP_SESSION_ROOT,
                                                path,
@@ -231,9 +302,85 @@ internal class CloudTicketStorage internal constructor(
         val params = KeyknoxResetParams(GROUP_SESSION_ROOT, sessionIdHex, null)
 
         keyknoxManager.resetValue(params)
+
+        try {
+            keyknoxManager.resetValue(KeyknoxResetParams(GROUP_INFO_ROOT, sessionIdHex, null))
+        } catch (e: KeyknoxServiceException) {
+            // Only large groups have info in the cloud
+        }
+    }
+
+    /**
+     * Removes [epochs] of session from the cloud for all participants.
+     */
+    internal fun deleteEpochs(sessionId: Data, epochs: Set<String>) {
+        val sessionIdHex = sessionId.toHexString()
+
+        forEachEpoch(epochs, null) { epoch ->
+            val params = KeyknoxResetParams(GROUP_SESSION_ROOT, sessionIdHex, epoch)
+
+            keyknoxManager.resetValue(params)
+        }
+    }
+
+    /**
+     * Shares value of [epoch] with [cards] in addition to its current recipients.
+     *
+     * @return Hash of updated value.
+     */
+    private fun pushShard(cards: List<Card>,
+                          sessionIdHex: String,
+                          epoch: String,
+                          value: ByteArray,
+                          keyknoxHash: ByteArray?): ByteArray? {
+        val selfKeyPair = localKeyStorage.retrieveKeyPair()
+
+        val pushParams = KeyknoxPushParams(cards.map { it.identity },
+                                           GROUP_SESSION_ROOT,
+                                           sessionIdHex,
+                                           epoch)
+
+        return keyknoxManager.pushValue(pushParams,
+                                        value,
+                                        keyknoxHash,
+                                        cards.map { it.publicKey } + selfKeyPair.publicKey,
+                                        selfKeyPair.privateKey).keyknoxHash
+    }
+
+    /**
+     * Runs [action] for each of [epochs] concurrently, and waits for all of them. Errors are
+     * handled the same way as in [retrieve].
+     */
+    private fun forEachEpoch(epochs: Set<String>,
+                             progressCallback: OnProgressCallback?,
+                             action: (String) -> Unit) {
+        val total = epochs.size
+        val completed = AtomicInteger()
+
+        val futures = epochs.sortedBy { it.toLongOrNull() ?: Long.MAX_VALUE }.map { epoch ->
+            executor.submit(Callable {
+                action(epoch)
+                progressCallback?.onProgress(completed.incrementAndGet(), total)
+            })
+        }
+
+        awaitAll(futures)
     }
 
     companion object {
         private const val GROUP_SESSION_ROOT = "group-sessions"
+        private const val GROUP_INFO_ROOT = "group-info"
+        private const val LARGE_FLAG_KEY = "large"
+        private val LARGE_FLAG_VALUE = byteArrayOf(1)
+        private const val MAX_PARALLEL_REQUESTS = 8
+
+        // One key of each push is taken by self public key
+        private const val MAX_RECIPIENTS_PER_PUSH = 99
+
+        private val executor: ExecutorService by lazy {
+            Executors.newFixedThreadPool(MAX_PARALLEL_REQUESTS) { runnable ->
+                Thread(runnable, "EThree-keyknox").apply { isDaemon = true }
+            }
+        }
     }
 }
@@ -37,11 +37,14 @@ import com.virgilsecurity.android.common.exception.FileGroupStorageException
 import com.virgilsecurity.android.common.exception.GroupException
 import com.virgilsecurity.android.common.exception.RawGroupException
 import com.virgilsecurity.android.common.model.GroupInfo
+import com.virgilsecurity.android.common.model.GroupSummary
 import com.virgilsecurity.android.common.model.RawGroup
 import com.virgilsecurity.android.common.model.Ticket
 import com.virgilsecurity.android.common.util.Const
+import com.virgilsecurity.common.extension.toData
 import com.virgilsecurity.common.model.Data
 import com.virgilsecurity.common.util.toHexString
+import com.virgilsecurity.keyknox.utils.unwrapCompanionClass
 import com.virgilsecurity.sdk.crypto.VirgilCrypto
 import com.virgilsecurity.sdk.crypto.VirgilKeyPair
 import com.virgilsecurity.sdk.storage.FileSystem
@@ -50,61 +53,97 @@ import com.virgilsecurity.sdk.storage.FileSystemEncryptedCredentials
 import com.virgilsecurity.sdk.storage.exceptions.DirectoryNotExistsException
 import java.io.File
 import java.io.FileNotFoundException
+import java.util.*
+import java.util.logging.Logger
 
 /**
  * FileGroupStorage
+ *
+ * Keeps [GroupInfo] of each group in a separate encrypted file and all tickets of a group in one
+ * [TicketSegment]. Tickets stored one file per epoch by previous versions are moved to the
+ * segment on first access to the group.
+ *
+ * Summaries of all groups are kept in [GroupIndex], which is stored encrypted in one file and
+ * updated on each change, so groups are listed without reading their tickets. Changes made in
+ * [batch] are written to index file once at its end. If index file is missing or corrupted, it's
+ * rebuilt from stored groups.
  */
 internal class FileGroupStorage internal constructor(
         internal val identity: String,
-        crypto: VirgilCrypto,
-        identityKeyPair: VirgilKeyPair,
+        private val crypto: VirgilCrypto,
+        private val identityKeyPair: VirgilKeyPair,
         rootPath: String
 ) {
 
+    private val fullPath: String = rootPath +
+                                   File.separator +
+                                   identity +
+                                   File.separator +
+                                   Const.STORAGE_POSTFIX_E3KIT +
+                                   File.separator +
+                                   STORAGE_POSTFIX_GROUPS
     private val fileSystemEncrypted: FileSystem
+    private val indexFile: File = File(fullPath, INDEX_NAME)
+    private var loadedIndex: GroupIndex? = null
+
+    // Segments of recently used groups, which keep epochs index in memory
+    private val segments = object : LinkedHashMap<String, TicketSegment>(16, 0.75f, true) {
+        override fun removeEldestEntry(
+                eldest: MutableMap.MutableEntry<String, TicketSegment>?
+        ): Boolean = size > MAX_CACHED_SEGMENTS
+    }
+
+    // Depth of nested batches, index is written when the outermost one ends
+    private var batchDepth = 0
+    private var isIndexChanged = false
 
     init {
         val credentials = FileSystemEncryptedCredentials(crypto, identityKeyPair)
-        val fullPath: String = rootPath +
-                               File.separator +
-                               identity +
-                               File.separator +
-                               Const.STORAGE_POSTFIX_E3KIT +
-                               File.separator +
-                               STORAGE_POSTFIX_GROUPS
 
         fileSystemEncrypted = FileSystemEncrypted(fullPath, credentials)
     }
 
-    internal fun getEpochs(sessionId: Data): Set<String> {
-        val subdir = sessionId.toHexString() + File.separator + TICKETS_SUBDIR
-        val epochs = try {
-            fileSystemEncrypted.listFiles(subdir).sorted()
-        } catch (exception: DirectoryNotExistsException) {
-            setOf<String>()
+    /**
+     * Runs [block] with storage locked and writes index once after it instead of after each
+     * change, so storing many groups at once doesn't rewrite whole index for each of them.
+     */
+    @Synchronized internal fun <T> batch(block: () -> T): T {
+        batchDepth++
+        try {
+            return block()
+        } finally {
+            batchDepth--
+            if (batchDepth == 0 && isIndexChanged) {
+                isIndexChanged = false
+                saveIndex(index())
+            }
         }
-
-        return HashSet(epochs)
     }
 
-    internal fun store(group: RawGroup) {
+    @Synchronized internal fun getEpochs(sessionId: Data): Set<String> =
+            segment(sessionId).readIndex().keys.mapTo(HashSet()) { it.toString() }
+
+    @Synchronized internal fun store(group: RawGroup) {
         val ticket = group.tickets.lastOrNull()
                      ?: throw RawGroupException(RawGroupException.Description.EMPTY_TICKETS)
 
-        val subdir = ticket.groupMessage.sessionId.toHexString()
+        val sessionId = ticket.groupMessage.sessionId.toData()
 
-        store(group.info, subdir)
-        group.tickets.forEach {
-            store(it, subdir)
-        }
-    }
+        // Group pulled from the cloud doesn't know it was created as large group or was pruned
+        val storedInfo = findGroupInfo(sessionId)
+        val info = GroupInfo(group.info.initiator,
+                             group.info.isLarge || storedInfo?.isLarge == true,
+                             maxOf(group.info.minEpoch, storedInfo?.minEpoch ?: 0))
+
+        val tickets = group.tickets
+                .filter { it.groupMessage.epoch >= info.minEpoch }
+                .sortedBy { it.groupMessage.epoch }
+        if (tickets.isEmpty()) return
 
-    private fun store(ticket: Ticket, subdir: String) {
-        val subdirNew = subdir + File.separator + TICKETS_SUBDIR
-        val name = ticket.groupMessage.epoch.toString()
+        store(info, sessionId.toHexString())
+        segment(sessionId).append(tickets)
 
-        val data = ticket.serialize()
-        fileSystemEncrypted.write(data, name, subdirNew)
+        updateIndex(sessionId, info.initiator, tickets.last())
     }
 
     private fun store(info: GroupInfo, subdir: String) {
@@ -112,93 +151,255 @@ internal class FileGroupStorage internal constructor(
         fileSystemEncrypted.write(data, GROUP_INFO_NAME, subdir)
     }
 
-    internal fun setParticipants(newParticipants: Set<String>, sessionId: Data) {
-        val tickets = retrieveLastTickets(1, sessionId)
-        val lastTicket = tickets.firstOrNull()
+    @Synchronized internal fun setParticipants(newParticipants: Set<String>, sessionId: Data) {
+        val segment = segment(sessionId)
+        val lastTicket = retrieveLastTickets(1, segment).firstOrNull()
                          ?: throw GroupException(GroupException.Description.INVALID_GROUP)
         val newTicket = Ticket(lastTicket.groupMessage, newParticipants)
-        val subdir = sessionId.toHexString()
 
-        store(newTicket, subdir)
+        segment.append(listOf(newTicket))
+
+        val initiator = index().get(sessionId.toHexString())?.initiator
+                        ?: retrieveGroupInfo(sessionId).initiator
+        updateIndex(sessionId, initiator, newTicket)
+    }
+
+    /**
+     * Marks stored group as large, see [GroupInfo.isLarge].
+     */
+    @Synchronized internal fun markLarge(sessionId: Data) {
+        val info = retrieveGroupInfo(sessionId)
+        if (info.isLarge) return
+
+        store(GroupInfo(info.initiator, true, info.minEpoch), sessionId.toHexString())
+    }
+
+    /**
+     * Returns epoch, older than which epochs were removed by [prune].
+     */
+    @Synchronized internal fun getMinEpoch(sessionId: Data): Long =
+            findGroupInfo(sessionId)?.minEpoch ?: 0
+
+    /**
+     * Removes tickets of epochs older than [minEpoch]. Such epochs are not stored again.
+     */
+    @Synchronized internal fun prune(sessionId: Data, minEpoch: Long) {
+        val info = retrieveGroupInfo(sessionId)
+        if (minEpoch <= info.minEpoch) return
+
+        segment(sessionId).prune(minEpoch)
+        store(GroupInfo(info.initiator, info.isLarge, minEpoch), sessionId.toHexString())
     }
 
-    internal fun retrieve(sessionId: Data, count: Int): RawGroup {
-        val tickets = retrieveLastTickets(count, sessionId)
+    @Synchronized internal fun listGroups(): List<GroupSummary> = index().all()
+
+    @Synchronized internal fun groupsWithParticipant(identity: String): List<GroupSummary> =
+            index().withParticipant(identity)
+
+    @Synchronized internal fun retrieve(sessionId: Data, count: Int): RawGroup {
+        val tickets = retrieveLastTickets(count, segment(sessionId))
         val groupInfo = retrieveGroupInfo(sessionId)
 
         return RawGroup(groupInfo, tickets)
     }
 
-    internal fun retrieve(sessionId: Data, epoch: Long): RawGroup {
-        val ticket = retrieveTicket(sessionId, epoch)
+    @Synchronized internal fun retrieve(sessionId: Data, epoch: Long): RawGroup {
+        val segment = segment(sessionId)
+        val offset = segment.readIndex()[epoch]
+                     ?: throw FileGroupStorageException(
+                         FileGroupStorageException.Description.EMPTY_FILE
+                     )
+        val ticket = segment.read(listOf(offset)).first()
         val groupInfo = retrieveGroupInfo(sessionId)
 
         return RawGroup(groupInfo, listOf(ticket))
     }
 
-    internal fun delete(sessionId: Data) = fileSystemEncrypted.deleteDirectory(sessionId.toHexString())
+    @Synchronized internal fun delete(sessionId: Data) {
+        fileSystemEncrypted.deleteDirectory(sessionId.toHexString())
+        segments.remove(sessionId.toHexString())
+
+        index().remove(sessionId.toHexString())
+        indexChanged()
+    }
+
+    @Synchronized internal fun reset() {
+        fileSystemEncrypted.delete()
+        segments.clear()
+        loadedIndex = null
+        isIndexChanged = false
+    }
+
+    private fun retrieveLastTickets(count: Int, segment: TicketSegment): List<Ticket> {
+        val offsets = segment.readIndex().values.toList().takeLast(count)
 
-    internal fun reset() = fileSystemEncrypted.delete()
+        return segment.read(offsets)
+    }
 
-    private fun retrieveTicket(sessionId: Data, epoch: Long): Ticket {
-        val subdir = sessionId.toHexString() + File.separator + TICKETS_SUBDIR
-        val name = epoch.toString()
+    private fun retrieveGroupInfo(sessionId: Data): GroupInfo {
+        val subdir = sessionId.toHexString()
 
         val data = try {
-            fileSystemEncrypted.read(name, subdir)
+            fileSystemEncrypted.read(GROUP_INFO_NAME, subdir)
         } catch (exception: FileNotFoundException) {
             throw FileGroupStorageException(FileGroupStorageException.Description.EMPTY_FILE)
         }
 
-        return Ticket.deserialize(data)
+        return GroupInfo.deserialize(data)
     }
 
-    private fun retrieveLastTickets(count: Int, sessionId: Data): List<Ticket> {
-        val result = mutableListOf<Ticket>()
+    private fun updateIndex(sessionId: Data, initiator: String, lastTicket: Ticket) {
+        val index = index()
+        val epoch = lastTicket.groupMessage.epoch
 
-        val subdir = sessionId.toHexString() + File.separator + TICKETS_SUBDIR
+        // Older epochs may be stored after newer ones, e.g. when group is pulled again
+        val current = index.get(sessionId.toHexString())
+        if (current != null && current.epoch > epoch) return
 
-        var epochs = listOf<Long>()
-        try {
-            epochs = fileSystemEncrypted
-                    .listFiles(subdir).map { name ->
-                        try {
-                            name.toLong()
-                        } catch (exception: NumberFormatException) {
-                            throw FileGroupStorageException(
-                                FileGroupStorageException.Description.INVALID_FILE_NAME
-                            )
-                        }
-                    }
-                    .sorted()
-                    .takeLast(count)
-        } catch (e: DirectoryNotExistsException) {
-            // No tickets for this session
+        index.put(GroupSummary(sessionId, initiator, epoch, lastTicket.participants, Date()))
+        indexChanged()
+    }
+
+    private fun indexChanged() {
+        if (batchDepth > 0) {
+            isIndexChanged = true
+        } else {
+            saveIndex(index())
         }
+    }
+
+    private fun index(): GroupIndex {
+        loadedIndex?.let { return it }
 
-        epochs.forEach { epoch ->
-            val ticket = retrieveTicket(sessionId, epoch)
-            result.add(ticket)
+        val index = readIndex() ?: rebuildIndex().also { saveIndex(it) }
+        loadedIndex = index
+
+        return index
+    }
+
+    private fun readIndex(): GroupIndex? {
+        if (!indexFile.exists()) return null
+
+        return try {
+            val decrypted = crypto.authDecrypt(indexFile.readBytes(),
+                                               identityKeyPair.privateKey,
+                                               identityKeyPair.publicKey)
+            GroupIndex.deserialize(decrypted)
+        } catch (exception: Exception) {
+            logger.warning("Groups index is corrupted, rebuilding it: ${exception.message}")
+            null
         }
+    }
 
-        return result
+    private fun saveIndex(index: GroupIndex) {
+        val encrypted = crypto.authEncrypt(index.serialize(),
+                                           identityKeyPair.privateKey,
+                                           identityKeyPair.publicKey)
+
+        indexFile.parentFile?.mkdirs()
+        val tempFile = File(indexFile.path + TEMP_SUFFIX)
+        tempFile.writeBytes(encrypted)
+        if (!tempFile.renameTo(indexFile)) {
+            indexFile.delete()
+            tempFile.renameTo(indexFile)
+        }
     }
 
-    private fun retrieveGroupInfo(sessionId: Data): GroupInfo {
-        val subdir = sessionId.toHexString()
+    /**
+     * Builds index from group directories. Groups that can't be read are skipped.
+     */
+    private fun rebuildIndex(): GroupIndex {
+        val index = GroupIndex()
+        val directories = File(fullPath).listFiles { file -> file.isDirectory }.orEmpty()
+
+        directories.forEach { directory ->
+            try {
+                val sessionId = directory.name.chunked(2)
+                        .map { it.toInt(HEX_RADIX).toByte() }
+                        .toByteArray()
+                        .toData()
+                val lastTicket = retrieveLastTickets(1, segment(sessionId)).lastOrNull()
+                                 ?: return@forEach
+                val info = retrieveGroupInfo(sessionId)
+
+                index.put(GroupSummary(sessionId,
+                                       info.initiator,
+                                       lastTicket.groupMessage.epoch,
+                                       lastTicket.participants,
+                                       Date(directory.lastModified())))
+            } catch (exception: Exception) {
+                logger.warning("Group ${directory.name} is skipped in index: ${exception.message}")
+            }
+        }
 
-        val data = try {
-            fileSystemEncrypted.read(GROUP_INFO_NAME, subdir)
-        } catch (exception: FileNotFoundException) {
-            throw FileGroupStorageException(FileGroupStorageException.Description.EMPTY_FILE)
+        return index
+    }
+
+    private fun findGroupInfo(sessionId: Data): GroupInfo? =
+            try {
+                retrieveGroupInfo(sessionId)
+            } catch (exception: FileGroupStorageException) {
+                null
+            }
+
+    private fun segment(sessionId: Data): TicketSegment {
+        val sessionIdHex = sessionId.toHexString()
+        segments[sessionIdHex]?.let { return it }
+
+        val segmentFile = File(fullPath + File.separator + sessionIdHex, SEGMENT_NAME)
+        val segment = TicketSegment(segmentFile, crypto, identityKeyPair)
+
+        migrateTicketFiles(sessionIdHex, segment)
+        segments[sessionIdHex] = segment
+
+        return segment
+    }
+
+    /**
+     * Moves tickets stored one file per epoch to [segment].
+     */
+    private fun migrateTicketFiles(sessionIdHex: String, segment: TicketSegment) {
+        val subdir = sessionIdHex + File.separator + TICKETS_SUBDIR
+        if (!File(fullPath, subdir).exists()) return
+
+        val epochs = try {
+            fileSystemEncrypted.listFiles(subdir).map { name ->
+                try {
+                    name.toLong()
+                } catch (exception: NumberFormatException) {
+                    throw FileGroupStorageException(
+                        FileGroupStorageException.Description.INVALID_FILE_NAME
+                    )
+                }
+            }.sorted()
+        } catch (exception: DirectoryNotExistsException) {
+            return
         }
 
-        return GroupInfo.deserialize(data)
+        val tickets = epochs.map { epoch ->
+            val data = try {
+                fileSystemEncrypted.read(epoch.toString(), subdir)
+            } catch (exception: FileNotFoundException) {
+                throw FileGroupStorageException(FileGroupStorageException.Description.EMPTY_FILE)
+            }
+
+            Ticket.deserialize(data)
+        }
+
+        segment.append(tickets)
+        fileSystemEncrypted.deleteDirectory(subdir)
     }
 
     companion object {
         private const val GROUP_INFO_NAME = "GROUP_INFO"
         private const val TICKETS_SUBDIR = "TICKETS"
+        private const val SEGMENT_NAME = "TICKETS.segment"
         private const val STORAGE_POSTFIX_GROUPS = "GROUPS"
+        private const val INDEX_NAME = "GROUPS.index"
+        private const val TEMP_SUFFIX = ".tmp"
+        private const val HEX_RADIX = 16
+        private const val MAX_CACHED_SEGMENTS = 64
+
+        private val logger = Logger.getLogger(unwrapCompanionClass(this.javaClass).name)
     }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.storage.local
+
+import com.virgilsecurity.android.common.model.GroupSummary
+import com.virgilsecurity.common.extension.toData
+import com.virgilsecurity.common.util.toHexString
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.util.*
+
+/**
+ * Index of groups stored locally, with groups of each participant.
+ *
+ * Not thread-safe, access is synchronized by [FileGroupStorage].
+ */
+internal class GroupIndex {
+
+    private val groups = HashMap<String, GroupSummary>()
+    private val groupsByParticipant = HashMap<String, MutableSet<String>>()
+
+    internal fun get(sessionIdHex: String): GroupSummary? = groups[sessionIdHex]
+
+    internal fun put(summary: GroupSummary) {
+        val sessionIdHex = summary.sessionId.toHexString()
+
+        remove(sessionIdHex)
+
+        groups[sessionIdHex] = summary
+        summary.participants.forEach {
+            groupsByParticipant.getOrPut(it) { HashSet() }.add(sessionIdHex)
+        }
+    }
+
+    internal fun remove(sessionIdHex: String) {
+        val summary = groups.remove(sessionIdHex) ?: return
+
+        summary.participants.forEach { participant ->
+            val sessionIds = groupsByParticipant[participant] ?: return@forEach
+            sessionIds.remove(sessionIdHex)
+            if (sessionIds.isEmpty()) groupsByParticipant.remove(participant)
+        }
+    }
+
+    internal fun clear() {
+        groups.clear()
+        groupsByParticipant.clear()
+    }
+
+    internal fun all(): List<GroupSummary> = groups.values.toList()
+
+    internal fun withParticipant(identity: String): List<GroupSummary> =
+            groupsByParticipant[identity].orEmpty().mapNotNull { groups[it] }
+
+    internal fun serialize(): ByteArray {
+        val buffer = ByteArrayOutputStream()
+        DataOutputStream(buffer).use { output ->
+            output.writeInt(VERSION)
+            output.writeInt(groups.size)
+
+            groups.values.forEach { summary ->
+                val sessionId = summary.sessionId.value
+                output.writeInt(sessionId.size)
+                output.write(sessionId)
+                output.writeUTF(summary.initiator)
+                output.writeLong(summary.epoch)
+                output.writeLong(summary.updatedAt.time)
+                output.writeInt(summary.participants.size)
+                summary.participants.forEach { output.writeUTF(it) }
+            }
+        }
+
+        return buffer.toByteArray()
+    }
+
+    companion object {
+        private const val VERSION = 1
+
+        /**
+         * Reads index serialized with [serialize].
+         *
+         * @throws IOException If data is corrupted.
+         */
+        internal fun deserialize(data: ByteArray): GroupIndex {
+            val index = GroupIndex()
+
+            DataInputStream(ByteArrayInputStream(data)).use { input ->
+                if (input.readInt() != VERSION) throw IOException("Unsupported index version")
+
+                repeat(input.readInt()) {
+                    val sessionIdSize = input.readInt()
+                    if (sessionIdSize < 0) throw IOException("Invalid session id size")
+
+                    val sessionId = ByteArray(sessionIdSize)
+                    input.readFully(sessionId)
+                    val initiator = input.readUTF()
+                    val epoch = input.readLong()
+                    val updatedAt = Date(input.readLong())
+                    val participants = HashSet<String>()
+                    repeat(input.readInt()) {
+                        participants.add(input.readUTF().intern())
+                    }
+
+                    index.put(GroupSummary(sessionId.toData(),
+                                           initiator,
+                                           epoch,
+                                           participants,
+                                           updatedAt))
+                }
+            }
+
+            return index
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.storage.local
+
+import com.virgilsecurity.android.common.model.ratchet.RatchetPersistence
+import com.virgilsecurity.keyknox.utils.unwrapCompanionClass
+import com.virgilsecurity.ratchet.securechat.SecureSession
+import com.virgilsecurity.ratchet.sessionstorage.SessionStorage
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.logging.Logger
+
+/**
+ * Writes ratchet sessions to [storage] according to [persistence]. Sessions of channels are
+ * identified by participant identity and channel name, as given to channel.
+ *
+ * Deferred sessions are kept in memory until written, and should be taken with [pendingSession]
+ * before reading session from [storage]. Sessions are written under their own lock, which channels
+ * hold while changing them.
+ */
+internal class RatchetSessionWriter(
+        internal val storage: SessionStorage,
+        private val persistence: RatchetPersistence
+) {
+
+    private val pending = HashMap<Key, PendingSession>()
+
+    /**
+     * Writes [session] right away, with deferred changes if any.
+     */
+    internal fun store(key: Key, session: SecureSession) {
+        discard(key)
+        storage.storeSession(session)
+    }
+
+    /**
+     * Writes [session] after [messages] more decrypted messages if persistence allows deferring,
+     * or right away otherwise.
+     */
+    internal fun storeDeferred(key: Key, session: SecureSession, messages: Int = 1) {
+        if (!persistence.isDeferred) {
+            storage.storeSession(session)
+            return
+        }
+
+        val writeNow = synchronized(pending) {
+            val entry = pending.getOrPut(key) { PendingSession(session) }
+            entry.messages += messages
+
+            if (entry.messages >= persistence.flushEveryMessages) {
+                pending.remove(key)
+                entry.flushTask?.cancel(false)
+                true
+            } else {
+                val interval = persistence.flushInterval
+                if (entry.flushTask == null && interval != null) {
+                    entry.flushTask = scheduler.schedule(Runnable { flush(key) },
+                                                                  interval.spanMilliseconds,
+                                                                  TimeUnit.MILLISECONDS)
+                }
+                false
+            }
+        }
+
+        if (writeNow) {
+            storage.storeSession(session)
+        }
+    }
+
+    /**
+     * Returns session of [key] which is not written yet, if any.
+     */
+    internal fun pendingSession(key: Key): SecureSession? = synchronized(pending) {
+        pending[key]?.session
+    }
+
+    /**
+     * Drops deferred changes of [key] session, e.g. when it's deleted.
+     */
+    internal fun discard(key: Key) {
+        synchronized(pending) {
+            pending.remove(key)?.flushTask?.cancel(false)
+        }
+    }
+
+    /**
+     * Writes deferred session of [key] if any.
+     */
+    internal fun flush(key: Key) {
+        val entry = synchronized(pending) {
+            pending.remove(key)?.also { it.flushTask?.cancel(false) }
+        } ?: return
+
+        try {
+            synchronized(entry.session) {
+                storage.storeSession(entry.session)
+            }
+        } catch (throwable: Throwable) {
+            logger.severe("Writing ratchet session failed: ${throwable.message}")
+            throw throwable
+        }
+    }
+
+    /**
+     * Writes all deferred sessions.
+     */
+    internal fun flushAll() {
+        val keys = synchronized(pending) { pending.keys.toList() }
+
+        keys.forEach { flush(it) }
+    }
+
+    internal data class Key(val identity: String, val name: String?)
+
+    private class PendingSession(val session: SecureSession) {
+        var messages: Int = 0
+        var flushTask: ScheduledFuture<*>? = null
+    }
+
+    companion object {
+        private val logger = Logger.getLogger(unwrapCompanionClass(this.javaClass).name)
+
+        private val scheduler: ScheduledExecutorService by lazy {
+            Executors.newSingleThreadScheduledExecutor { runnable ->
+                Thread(runnable, "EThree-ratchet-flush").apply { isDaemon = true }
+            }
+        }
+    }
+}
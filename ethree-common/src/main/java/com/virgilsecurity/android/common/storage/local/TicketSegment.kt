@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.storage.local
+
+import com.virgilsecurity.android.common.exception.FileGroupStorageException
+import com.virgilsecurity.android.common.model.Ticket
+import com.virgilsecurity.common.extension.toData
+import com.virgilsecurity.sdk.crypto.VirgilCrypto
+import com.virgilsecurity.sdk.crypto.VirgilKeyPair
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.RandomAccessFile
+import java.util.*
+
+/**
+ * Append-only file with tickets of one group.
+ *
+ * File starts with [MAGIC] and [VERSION], followed by records of epoch, length of encrypted ticket
+ * and the ticket encrypted with identity key pair. Epochs are kept in plain, so epochs index is
+ * read without decryption. Later record of an epoch overrides earlier ones. Incomplete record at
+ * the end of file (e.g. after a crash during append) is ignored and overwritten on next append.
+ *
+ * Epochs index is scanned once and kept in memory while file is not changed by someone else.
+ * When more than [MAX_SUPERSEDED_RECORDS] records are overridden by later ones, e.g. after
+ * participants of the last epoch changed many times, file is rewritten without them.
+ */
+internal class TicketSegment internal constructor(
+        private val file: File,
+        private val crypto: VirgilCrypto,
+        private val keyPair: VirgilKeyPair
+) {
+
+    private var cachedIndex: TreeMap<Long, Long>? = null
+
+    // End of the last complete record, count of complete records, and length and modification
+    // time of file when index was scanned
+    private var end = 0L
+    private var recordsCount = 0
+    private var scannedLength = -1L
+    private var scannedModified = -1L
+
+    /**
+     * Returns offsets of the latest records of each epoch, sorted by epoch.
+     */
+    internal fun readIndex(): SortedMap<Long, Long> {
+        if (!file.exists() || file.length() < HEADER_SIZE) return TreeMap()
+
+        return Collections.unmodifiableSortedMap(index())
+    }
+
+    /**
+     * Reads tickets stored at [offsets] taken from [readIndex].
+     */
+    internal fun read(offsets: Collection<Long>): List<Ticket> =
+            RandomAccessFile(file, READ_MODE).use { input ->
+                offsets.map { offset ->
+                    input.seek(offset + EPOCH_SIZE)
+                    val encrypted = ByteArray(input.readInt())
+                    input.readFully(encrypted)
+
+                    val decrypted = crypto.authDecrypt(encrypted,
+                                                       keyPair.privateKey,
+                                                       keyPair.publicKey)
+                    Ticket.deserialize(decrypted.toData())
+                }
+            }
+
+    internal fun append(tickets: List<Ticket>) {
+        if (tickets.isEmpty()) return
+
+        val buffer = ByteArrayOutputStream()
+        val offsets = mutableListOf<Pair<Long, Long>>()
+        DataOutputStream(buffer).use { output ->
+            tickets.forEach { ticket ->
+                val encrypted = crypto.authEncrypt(ticket.serialize().value,
+                                                   keyPair.privateKey,
+                                                   keyPair.publicKey)
+                offsets.add(Pair(ticket.groupMessage.epoch, output.size().toLong()))
+                output.writeLong(ticket.groupMessage.epoch)
+                output.writeInt(encrypted.size)
+                output.write(encrypted)
+            }
+        }
+
+        file.parentFile?.mkdirs()
+        val index = if (file.length() < HEADER_SIZE) {
+            RandomAccessFile(file, WRITE_MODE).use { output ->
+                output.setLength(0)
+                output.writeInt(MAGIC)
+                output.writeInt(VERSION)
+            }
+            TreeMap<Long, Long>().also { setIndex(it, HEADER_SIZE, 0) }
+        } else {
+            index()
+        }
+
+        val start = end
+        RandomAccessFile(file, WRITE_MODE).use { output ->
+            output.setLength(start)
+            output.seek(start)
+            output.write(buffer.toByteArray())
+            output.fd.sync()
+        }
+
+        offsets.forEach { (epoch, offset) -> index[epoch] = start + offset }
+        setIndex(index, start + buffer.size(), recordsCount + tickets.size)
+
+        if (recordsCount - index.size > MAX_SUPERSEDED_RECORDS) {
+            rewrite(index)
+        }
+    }
+
+    /**
+     * Removes records of epochs older than [minEpoch], and earlier records of remaining epochs.
+     */
+    internal fun prune(minEpoch: Long) {
+        if (!file.exists()) return
+
+        val index = index()
+        val kept = TreeMap(index.tailMap(minEpoch))
+        if (kept.size == index.size && recordsCount == index.size) return
+
+        rewrite(kept)
+    }
+
+    /**
+     * Rewrites file with records at offsets of [kept] only. Kept records are copied to a
+     * temporary file, which then replaces the segment, so crash during rewriting leaves the
+     * segment intact.
+     */
+    private fun rewrite(kept: SortedMap<Long, Long>) {
+        val tempFile = File(file.path + TEMP_SUFFIX)
+        val newIndex = TreeMap<Long, Long>()
+
+        val newEnd = RandomAccessFile(file, READ_MODE).use { input ->
+            RandomAccessFile(tempFile, WRITE_MODE).use { output ->
+                output.setLength(0)
+                output.writeInt(MAGIC)
+                output.writeInt(VERSION)
+
+                kept.forEach { (epoch, offset) ->
+                    input.seek(offset + EPOCH_SIZE)
+                    val record = ByteArray(input.readInt())
+                    input.readFully(record)
+
+                    newIndex[epoch] = output.filePointer
+                    output.writeLong(epoch)
+                    output.writeInt(record.size)
+                    output.write(record)
+                }
+                output.fd.sync()
+
+                output.filePointer
+            }
+        }
+
+        if (!tempFile.renameTo(file)) {
+            file.delete()
+            tempFile.renameTo(file)
+        }
+
+        setIndex(newIndex, newEnd, newIndex.size)
+    }
+
+    /**
+     * Returns cached epochs index, which is scanned again if file was changed since.
+     */
+    private fun index(): TreeMap<Long, Long> {
+        val index = cachedIndex
+        if (index != null && file.length() == scannedLength
+            && file.lastModified() == scannedModified) {
+            return index
+        }
+
+        RandomAccessFile(file, READ_MODE).use { scan(it) }
+
+        return cachedIndex!!
+    }
+
+    private fun setIndex(index: TreeMap<Long, Long>, end: Long, recordsCount: Int) {
+        this.cachedIndex = index
+        this.end = end
+        this.recordsCount = recordsCount
+        this.scannedLength = file.length()
+        this.scannedModified = file.lastModified()
+    }
+
+    /**
+     * Scans epochs index and the end of the last complete record.
+     */
+    private fun scan(input: RandomAccessFile) {
+        input.seek(0)
+        if (input.length() < HEADER_SIZE || input.readInt() != MAGIC || input.readInt() > VERSION) {
+            cachedIndex = null
+            throw FileGroupStorageException(FileGroupStorageException.Description.INVALID_SEGMENT)
+        }
+
+        val index = TreeMap<Long, Long>()
+        val length = input.length()
+        var offset = HEADER_SIZE
+        var count = 0
+        while (offset + RECORD_HEADER_SIZE <= length) {
+            input.seek(offset)
+            val epoch = input.readLong()
+            val recordEnd = offset + RECORD_HEADER_SIZE + input.readInt()
+            if (recordEnd < offset + RECORD_HEADER_SIZE || recordEnd > length) break
+
+            index[epoch] = offset
+            offset = recordEnd
+            count++
+        }
+
+        setIndex(index, offset, count)
+    }
+
+    companion object {
+        private const val MAGIC = 0x45335453 // "E3TS"
+        private const val VERSION = 1
+
+        private const val HEADER_SIZE = 8L
+        private const val EPOCH_SIZE = 8L
+        private const val RECORD_HEADER_SIZE = 12L
+
+        // Overridden records kept in file before it's rewritten without them
+        internal const val MAX_SUPERSEDED_RECORDS = 16
+
+        private const val READ_MODE = "r"
+        private const val WRITE_MODE = "rw"
+        private const val TEMP_SUFFIX = ".tmp"
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.storage.memory
+
+import com.virgilsecurity.android.common.storage.CardStorage
+import com.virgilsecurity.sdk.cards.Card
+import com.virgilsecurity.sdk.crypto.VirgilCrypto
+
+/**
+ * Thread safe in-memory Virgil Cards storage that keeps cards of at most [maxIdentities]
+ * identities. Cards of least recently used identity are evicted first.
+ *
+ * Reads are not serialized, only stores and access order updates are.
+ */
+class BoundedCardStorage @JvmOverloads constructor(
+        private val maxIdentities: Int,
+        crypto: VirgilCrypto = VirgilCrypto()
+) : CardStorage {
+
+    private val storage = InMemoryCardStorage(crypto)
+
+    // Identities in access order, the eldest one is evicted first.
+    private val identities = LinkedHashMap<String, String>(INITIAL_CAPACITY, LOAD_FACTOR, true)
+
+    init {
+        require(maxIdentities > 0) { "\'maxIdentities\' should be positive" }
+    }
+
+    @Synchronized override fun storeCard(card: Card) {
+        storage.storeCard(card)
+        touch(card.identity)
+
+        while (identities.size > maxIdentities) {
+            val eldest = identities.keys.first()
+            identities.remove(eldest)
+            storage.remove(eldest)
+        }
+    }
+
+    override fun getCard(cardId: String): Card? {
+        val card = storage.getCard(cardId) ?: return null
+        synchronized(this) { touchIfPresent(card.identity) }
+
+        return card
+    }
+
+    override fun searchCards(identities: List<String>): List<Card> {
+        val cards = storage.searchCards(identities)
+        synchronized(this) { cards.forEach { touchIfPresent(it.identity) } }
+
+        return cards
+    }
+
+    override fun getNewestCardIds(): List<String> = storage.getNewestCardIds()
+
+    @Synchronized override fun reset() {
+        storage.reset()
+        identities.clear()
+    }
+
+    private fun touch(identity: String) {
+        identities[identity] = identity
+    }
+
+    // Card could be evicted by concurrent store while it was read.
+    private fun touchIfPresent(identity: String) {
+        if (identities.containsKey(identity)) touch(identity)
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 16
+        private const val LOAD_FACTOR = 0.75f
+    }
+}
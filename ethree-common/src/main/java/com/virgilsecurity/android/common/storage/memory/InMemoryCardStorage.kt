@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.storage.memory
+
+import com.virgilsecurity.android.common.exception.SQLiteStorageException
+import com.virgilsecurity.android.common.storage.CardStorage
+import com.virgilsecurity.sdk.cards.Card
+import com.virgilsecurity.sdk.cards.CardManager
+import com.virgilsecurity.sdk.cards.model.RawSignedModel
+import com.virgilsecurity.sdk.crypto.VirgilCardCrypto
+import com.virgilsecurity.sdk.crypto.VirgilCrypto
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * Thread safe in-memory Virgil Cards storage.
+ *
+ * Cards are kept as raw signed models and are parsed on each read without signatures
+ * verification, as they were verified before being stored. Nothing is persisted.
+ */
+class InMemoryCardStorage @JvmOverloads constructor(
+        crypto: VirgilCrypto = VirgilCrypto()
+) : CardStorage {
+
+    private val cardCrypto = VirgilCardCrypto(crypto)
+    private val lock = ReentrantReadWriteLock()
+
+    private val cards = mutableMapOf<String, CardEntry>()
+    private val identities = mutableMapOf<String, MutableSet<String>>()
+
+    override fun storeCard(card: Card) = lock.write {
+        var currentCard: Card? = card
+        var previousCardId: String? = null
+        var isOutdated = card.isOutdated
+        while (currentCard != null) {
+            put(CardEntry(currentCard.identifier,
+                          currentCard.identity,
+                          isOutdated,
+                          CardManager.exportCardAsRawCard(currentCard)))
+
+            previousCardId = currentCard.previousCardId
+            currentCard = currentCard.previousCard
+            isOutdated = true
+        }
+        if (previousCardId != null) {
+            val previousEntry = cards[previousCardId]
+            if (previousEntry != null) {
+                cards[previousCardId] = previousEntry.copy(isOutdated = true)
+            }
+        }
+    }
+
+    override fun getCard(cardId: String): Card? {
+        val entry = lock.read { cards[cardId] } ?: return null
+
+        return parse(entry)
+    }
+
+    override fun searchCards(identities: List<String>): List<Card> {
+        if (identities.isEmpty()) {
+            throw SQLiteStorageException(SQLiteStorageException.Description.EMPTY_IDENTITIES)
+        }
+
+        val entries = lock.read {
+            identities.distinct().flatMap { identity ->
+                this.identities[identity].orEmpty().mapNotNull { cards[it] }
+            }
+        }
+        val cards = entries.map { parse(it) }
+
+        val result = mutableListOf<Card>()
+        for (card in cards) {
+            val nextCard = cards.firstOrNull { it.previousCardId == card.identifier }
+            if (nextCard != null) {
+                nextCard.previousCard = card
+                card.isOutdated = true
+                continue
+            }
+            result.add(card)
+        }
+        return result
+    }
+
+    override fun getNewestCardIds(): List<String> = lock.read {
+        cards.values.filter { !it.isOutdated }.map { it.identifier }
+    }
+
+    override fun reset() = lock.write {
+        cards.clear()
+        identities.clear()
+    }
+
+    /**
+     * Removes all cards of provided [identity].
+     */
+    internal fun remove(identity: String) = lock.write {
+        identities.remove(identity)?.forEach { cards.remove(it) }
+        Unit
+    }
+
+    private fun put(entry: CardEntry) {
+        cards[entry.identifier] = entry
+        identities.getOrPut(entry.identity) { mutableSetOf() }.add(entry.identifier)
+    }
+
+    private fun parse(entry: CardEntry): Card {
+        val card = Card.parse(cardCrypto, entry.rawCard)
+        card.isOutdated = entry.isOutdated
+
+        return card
+    }
+
+    private data class CardEntry(
+            val identifier: String,
+            val identity: String,
+            val isOutdated: Boolean,
+            val rawCard: RawSignedModel
+    )
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.storage.sql
+
+import android.content.Context
+import com.virgilsecurity.android.common.model.ratchet.RatchetPersistence
+import com.virgilsecurity.android.common.storage.CardStorage
+import com.virgilsecurity.android.common.storage.StorageProvider
+import com.virgilsecurity.ratchet.sessionstorage.SessionStorage
+import com.virgilsecurity.sdk.cards.validation.CardVerifier
+import com.virgilsecurity.sdk.common.TimeSpan
+import com.virgilsecurity.sdk.crypto.VirgilCrypto
+import com.virgilsecurity.sdk.crypto.VirgilKeyPair
+
+/**
+ * Android [StorageProvider] that keeps files in [Context.getFilesDir].
+ *
+ * Cards are cached in provided [cardStorage], or in SQLite database if it is *null*. SQLite
+ * database is opened in background right away, so it is ready by the time EThree needs it, and
+ * is bounded by [cardCacheLimits]. Cached cards are verified again after
+ * [cardReverificationInterval], or only once if it is *null*. Ratchet sessions are written
+ * according to [ratchetPersistence] to storage of [ratchetSessionStorageType].
+ */
+class AndroidStorageProvider @JvmOverloads constructor(
+        private val context: Context,
+        private val cardStorage: CardStorage? = null,
+        private val cardCacheLimits: CardCacheLimits = CardCacheLimits(),
+        private val cardReverificationInterval: TimeSpan? = null,
+        override val ratchetPersistence: RatchetPersistence = RatchetPersistence(),
+        private val ratchetSessionStorageType: RatchetSessionStorageType =
+                RatchetSessionStorageType.FILES
+) : StorageProvider {
+
+    override val rootPath: String
+        get() = context.filesDir.absolutePath
+
+    override fun createCardStorage(identity: String,
+                                   crypto: VirgilCrypto,
+                                   verifier: CardVerifier): CardStorage =
+            cardStorage ?: SQLCardStorage(context,
+                                          identity,
+                                          crypto,
+                                          verifier,
+                                          cacheLimits = cardCacheLimits,
+                                          reverificationInterval = cardReverificationInterval)
+                    .also { it.warmUp() }
+
+    override fun createSessionStorage(identity: String,
+                                      crypto: VirgilCrypto,
+                                      identityKeyPair: VirgilKeyPair,
+                                      fileStorage: SessionStorage): SessionStorage? =
+            when (ratchetSessionStorageType) {
+                RatchetSessionStorageType.FILES -> null
+                RatchetSessionStorageType.SQLITE -> SQLSessionStorage(context,
+                                                                      identity,
+                                                                      crypto,
+                                                                      identityKeyPair,
+                                                                      fileStorage)
+            }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.storage.sql
+
+/**
+ * Limits of SQLite cards cache. When cache exceeds any of limits, it is compacted in background:
+ * outdated cards without current card of their identity are evicted first, then all cards of
+ * least recently used identities.
+ *
+ * @param maxCards Maximum count of cards in cache, [UNLIMITED] by default.
+ * @param maxBytes Maximum approximate size of cards in cache, [UNLIMITED] by default.
+ */
+class CardCacheLimits @JvmOverloads constructor(
+        val maxCards: Int = UNLIMITED,
+        val maxBytes: Long = UNLIMITED.toLong()
+) {
+
+    init {
+        require(maxCards == UNLIMITED || maxCards > 0) { "maxCards should be positive" }
+        require(maxBytes == UNLIMITED.toLong() || maxBytes > 0) { "maxBytes should be positive" }
+    }
+
+    internal val isUnlimited: Boolean
+        get() = maxCards == UNLIMITED && maxBytes == UNLIMITED.toLong()
+
+    internal fun isSatisfied(cardsCount: Int, bytesCount: Long): Boolean =
+            (maxCards == UNLIMITED || cardsCount <= maxCards)
+            && (maxBytes == UNLIMITED.toLong() || bytesCount <= maxBytes)
+
+    companion object {
+        const val UNLIMITED = -1
+    }
+}
@@ -35,10 +35,28 @@ package com.virgilsecurity.android.common.storage.sql
 
 import androidx.room.Database
 import androidx.room.RoomDatabase
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
 import com.virgilsecurity.android.common.storage.sql.dao.CardDao
 import com.virgilsecurity.android.common.storage.sql.model.CardEntity
 
-@Database(entities = arrayOf(CardEntity::class), version = 1)
+@Database(entities = arrayOf(CardEntity::class), version = 3)
 internal abstract class ETheeDatabase : RoomDatabase() {
     abstract fun cardDao(): CardDao
+
+    companion object {
+        internal val MIGRATION_1_2 = object : Migration(1, 2) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL("ALTER TABLE ethree_cards "
+                                 + "ADD COLUMN last_access INTEGER NOT NULL DEFAULT 0")
+            }
+        }
+
+        internal val MIGRATION_2_3 = object : Migration(2, 3) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL("ALTER TABLE ethree_cards ADD COLUMN verified_hash TEXT")
+                database.execSQL("ALTER TABLE ethree_cards ADD COLUMN verified_at INTEGER")
+            }
+        }
+    }
 }
@@ -34,58 +34,99 @@
 package com.virgilsecurity.android.common.storage.sql
 
 import android.content.Context
+import android.os.Trace
 import androidx.room.Room
+import androidx.room.RoomDatabase
 import com.virgilsecurity.android.common.exception.SQLiteStorageException
 import com.virgilsecurity.android.common.storage.CardStorage
+import com.virgilsecurity.android.common.storage.sql.dao.CardDao
 import com.virgilsecurity.android.common.storage.sql.model.CardEntity
+import com.virgilsecurity.common.util.toHexString
+import com.virgilsecurity.keyknox.utils.unwrapCompanionClass
 import com.virgilsecurity.sdk.cards.Card
 import com.virgilsecurity.sdk.cards.CardManager
+import com.virgilsecurity.sdk.cards.model.RawSignedModel
 import com.virgilsecurity.sdk.cards.validation.CardVerifier
+import com.virgilsecurity.sdk.common.TimeSpan
 import com.virgilsecurity.sdk.crypto.VirgilCardCrypto
 import com.virgilsecurity.sdk.crypto.VirgilCrypto
 import com.virgilsecurity.sdk.jwt.accessProviders.CachingJwtProvider
+import java.security.SecureRandom
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.logging.Logger
+import javax.crypto.Mac
+import javax.crypto.spec.SecretKeySpec
 
 /**
  * SQL-based Virgil Cards storage.
+ *
+ * Database is opened lazily on the first access. Call [warmUp] to open it in background in
+ * advance.
+ *
+ * If [cacheLimits] are set, last access time of cards is tracked, and database is compacted in
+ * background after new cards are stored.
+ *
+ * Stored cards are expected to be verified already, so HMAC-SHA256 of each card is saved with it
+ * and cards with matching MAC are not verified again on read. MAC key is generated randomly and
+ * is kept in memory only, so whoever can modify the database can't forge it, and each card is
+ * verified again once per process. Set [reverificationInterval] to verify cached cards again
+ * when it passes.
  */
 internal class SQLCardStorage internal constructor(
         context: Context,
         userIdentifier: String,
         crypto: VirgilCrypto,
         verifier: CardVerifier,
-        database: ETheeDatabase? = null
+        database: ETheeDatabase? = null,
+        private val cacheLimits: CardCacheLimits = CardCacheLimits(),
+        private val reverificationInterval: TimeSpan? = null
 ) : CardStorage {
 
-    private val db: ETheeDatabase
+    private val db: ETheeDatabase by lazy {
+        database ?: openDatabase(context, userIdentifier)
+    }
+    private val cardCrypto: VirgilCardCrypto = VirgilCardCrypto(crypto)
     private val cardManager: CardManager
+    private val compactionScheduled = AtomicBoolean(false)
 
     init {
-
-        if (database == null) {
-            val dbName = String.format("ethree-database-%s", userIdentifier)
-            this.db = Room.databaseBuilder(
-                context,
-                ETheeDatabase::class.java, dbName
-            ).build()
-        } else {
-            db = database
-        }
-
         val tokenProvider = CachingJwtProvider(CachingJwtProvider.RenewJwtCallback(function = {
             return@RenewJwtCallback null
         }))
-        cardManager = CardManager(VirgilCardCrypto(crypto), tokenProvider, verifier)
+        cardManager = CardManager(cardCrypto, tokenProvider, verifier)
+    }
+
+    /**
+     * Opens database in background, so the first query doesn't have to wait for it.
+     */
+    internal fun warmUp() {
+        backgroundExecutor.execute {
+            try {
+                db.openHelper.writableDatabase
+            } catch (throwable: Throwable) {
+                // Will be rethrown on the first query
+                logger.fine("Cards database warm up failed: ${throwable.message}")
+            }
+        }
     }
 
     override fun storeCard(card: Card) {
         var currentCard: Card? = card
         var previousCardId: String? = null
         var isOutdated = card.isOutdated
+        val now = System.currentTimeMillis()
         while (currentCard != null) {
+            val cardJson = CardManager.exportCardAsJson(currentCard)
             val cardEntity = CardEntity(currentCard.identifier,
                                         currentCard.identity,
                                         isOutdated,
-                                        CardManager.exportCardAsJson(currentCard))
+                                        cardJson,
+                                        now,
+                                        computeMac(cardJson),
+                                        now)
             db.cardDao().insert(cardEntity)
 
             previousCardId = currentCard.previousCardId
@@ -95,18 +136,22 @@ internal class SQLCardStorage internal constructor(
         if (previousCardId != null) {
             db.cardDao().markOutdatedById(previousCardId)
         }
+
+        scheduleCompaction()
     }
 
     override fun getCard(cardId: String): Card? {
         val cardEntity = db.cardDao().load(cardId) ?: return null
 
-        val card = cardManager.importCardAsJson(cardEntity.card)
+        val card = importCard(cardEntity)
         card.isOutdated = cardEntity.isOutdated
 
         if (cardId != card.identifier) {
             throw SQLiteStorageException(SQLiteStorageException.Description.INCONSISTENT_DB)
         }
 
+        touch { it.touchById(cardId, System.currentTimeMillis()) }
+
         return card
     }
 
@@ -119,7 +164,7 @@ internal class SQLCardStorage internal constructor(
         val entities = db.cardDao().loadAllByIdentity(identities)
 
         for (entity in entities) {
-            val card = cardManager.importCardAsJson(entity.card)
+            val card = importCard(entity)
             cards.add(card)
         }
 
@@ -136,6 +181,11 @@ internal class SQLCardStorage internal constructor(
             }
             result.add(card)
         }
+
+        if (entities.isNotEmpty()) {
+            touch { it.touchByIdentity(identities, System.currentTimeMillis()) }
+        }
+
         return result
     }
 
@@ -147,4 +197,151 @@ internal class SQLCardStorage internal constructor(
         db.cardDao().deleteAll()
     }
 
+    /**
+     * Parses card from [entity]. Card signatures are verified only if it was not verified with
+     * the same content before, or if [reverificationInterval] has passed since.
+     */
+    private fun importCard(entity: CardEntity): Card {
+        val mac = computeMac(entity.card)
+        val now = System.currentTimeMillis()
+
+        val verifiedAt = entity.verifiedAt
+        val isVerified = entity.verifiedHash == mac
+                         && verifiedAt != null
+                         && (reverificationInterval == null
+                             || now - verifiedAt < reverificationInterval.spanMilliseconds)
+        if (isVerified) {
+            return Card.parse(cardCrypto, RawSignedModel.fromJson(entity.card))
+        }
+
+        val card = cardManager.importCardAsJson(entity.card)
+        runInBackground { it.markVerifiedById(entity.identifier, mac, now) }
+
+        return card
+    }
+
+    private fun computeMac(cardJson: String): String =
+            Mac.getInstance(MAC_ALGORITHM).run {
+                init(macKey)
+                doFinal(cardJson.toByteArray(Charsets.UTF_8)).toHexString()
+            }
+
+    /**
+     * Evicts cards until [cacheLimits] are satisfied. Outdated cards which current card of their
+     * identity is not cached anymore are evicted first, starting from least recently used. Then
+     * all cards of least recently used identities are evicted. Other outdated cards are kept, as
+     * [Card.previousCard] chain is needed to decrypt old messages of identity.
+     */
+    internal fun compact() {
+        if (cacheLimits.isUnlimited) return
+
+        db.runInTransaction {
+            val dao = db.cardDao()
+            var cardsCount = dao.count()
+            var bytesCount = dao.size()
+
+            if (cacheLimits.isSatisfied(cardsCount, bytesCount)) return@runInTransaction
+
+            val outdatedIds = mutableListOf<String>()
+            for (usage in dao.getOrphanedCardsUsage()) {
+                if (cacheLimits.isSatisfied(cardsCount, bytesCount)) break
+
+                outdatedIds.add(usage.identifier)
+                cardsCount -= 1
+                bytesCount -= usage.size
+            }
+            outdatedIds.chunked(MAX_QUERY_ARGUMENTS).forEach { dao.deleteByIds(it) }
+
+            val identities = mutableListOf<String>()
+            if (!cacheLimits.isSatisfied(cardsCount, bytesCount)) {
+                for (usage in dao.getIdentitiesUsage()) {
+                    if (cacheLimits.isSatisfied(cardsCount, bytesCount)) break
+
+                    identities.add(usage.identity)
+                    cardsCount -= usage.cardsCount
+                    bytesCount -= usage.size
+                }
+            }
+            identities.chunked(MAX_QUERY_ARGUMENTS).forEach { dao.deleteByIdentity(it) }
+
+            logger.fine("Evicted ${outdatedIds.size} outdated cards " +
+                        "and cards of ${identities.size} identities")
+        }
+    }
+
+    private fun scheduleCompaction() {
+        if (cacheLimits.isUnlimited || !compactionScheduled.compareAndSet(false, true)) return
+
+        backgroundExecutor.execute {
+            compactionScheduled.set(false)
+            try {
+                compact()
+            } catch (throwable: Throwable) {
+                logger.warning("Cards database compaction failed: ${throwable.message}")
+            }
+        }
+    }
+
+    private fun touch(update: (CardDao) -> Unit) {
+        if (cacheLimits.isUnlimited) return
+
+        runInBackground(update)
+    }
+
+    private fun runInBackground(update: (CardDao) -> Unit) {
+        backgroundExecutor.execute {
+            try {
+                update(db.cardDao())
+            } catch (throwable: Throwable) {
+                logger.fine("Cards database update failed: ${throwable.message}")
+            }
+        }
+    }
+
+    companion object {
+        private const val TRACE_OPEN_DATABASE = "EThree:openCardsDatabase"
+        private const val BACKGROUND_THREAD_NAME = "EThree-cards-database"
+
+        private const val MAC_ALGORITHM = "HmacSHA256"
+        private const val MAC_KEY_SIZE = 32
+
+        // SQLite limits count of query arguments to 999
+        private const val MAX_QUERY_ARGUMENTS = 500
+
+        private val logger = Logger.getLogger(unwrapCompanionClass(this.javaClass).name)
+
+        // Shared by all storages of the process and never persisted
+        private val macKey: SecretKeySpec by lazy {
+            val key = ByteArray(MAC_KEY_SIZE).also { SecureRandom().nextBytes(it) }
+            SecretKeySpec(key, MAC_ALGORITHM)
+        }
+
+        private val backgroundExecutor: ExecutorService by lazy {
+            Executors.newSingleThreadExecutor { runnable ->
+                Thread(runnable, BACKGROUND_THREAD_NAME).apply { isDaemon = true }
+            }
+        }
+
+        private fun openDatabase(context: Context, userIdentifier: String): ETheeDatabase {
+            Trace.beginSection(TRACE_OPEN_DATABASE)
+            val start = System.nanoTime()
+            try {
+                val dbName = String.format("ethree-database-%s", userIdentifier)
+                val db = Room.databaseBuilder(context, ETheeDatabase::class.java, dbName)
+                        .addMigrations(ETheeDatabase.MIGRATION_1_2, ETheeDatabase.MIGRATION_2_3)
+                        .setJournalMode(RoomDatabase.JournalMode.WRITE_AHEAD_LOGGING)
+                        .build()
+
+                // Room opens and validates database on the first query, do it here
+                db.openHelper.writableDatabase
+
+                val durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                logger.fine("Cards database opened in $durationMillis ms")
+
+                return db
+            } finally {
+                Trace.endSection()
+            }
+        }
+    }
 }
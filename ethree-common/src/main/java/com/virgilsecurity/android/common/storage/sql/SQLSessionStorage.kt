@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.storage.sql
+
+import android.content.Context
+import androidx.room.Room
+import androidx.room.RoomDatabase
+import com.virgilsecurity.android.common.storage.local.BatchSessionStorage
+import com.virgilsecurity.android.common.storage.sql.model.SessionEntity
+import com.virgilsecurity.keyknox.utils.unwrapCompanionClass
+import com.virgilsecurity.ratchet.securechat.SecureSession
+import com.virgilsecurity.ratchet.sessionstorage.SessionStorage
+import com.virgilsecurity.sdk.crypto.VirgilCrypto
+import com.virgilsecurity.sdk.crypto.VirgilKeyPair
+import java.util.logging.Logger
+
+/**
+ * SQL-based storage of double ratchet sessions.
+ *
+ * Sessions are encrypted with identity key of user and looked up by participant identity and
+ * session name, which together are the primary key of sessions table. Database is opened lazily
+ * on the first access.
+ *
+ * Sessions that are still in [legacyStorage], e.g. stored in files by earlier versions, are moved
+ * to database on the first access.
+ */
+internal class SQLSessionStorage internal constructor(
+        context: Context,
+        identity: String,
+        private val crypto: VirgilCrypto,
+        private val identityKeyPair: VirgilKeyPair,
+        private val legacyStorage: SessionStorage? = null,
+        database: RatchetDatabase? = null
+) : BatchSessionStorage {
+
+    private val db: RatchetDatabase by lazy {
+        database ?: openDatabase(context, identity)
+    }
+
+    override fun storeSession(session: SecureSession) {
+        db.sessionDao().insert(toEntity(session))
+    }
+
+    override fun storeSessions(sessions: List<SecureSession>) {
+        db.sessionDao().insertAll(sessions.map { toEntity(it) })
+    }
+
+    override fun retrieveSession(participantIdentity: String, name: String): SecureSession? {
+        val entity = db.sessionDao().load(participantIdentity, name)
+                     ?: return migrateSession(participantIdentity, name)
+
+        val data = crypto.authDecrypt(entity.session,
+                                      identityKeyPair.privateKey,
+                                      identityKeyPair.publicKey)
+
+        return SecureSession(data, participantIdentity, name, crypto)
+    }
+
+    override fun deleteSession(participantIdentity: String, name: String?) {
+        if (name != null) {
+            db.sessionDao().delete(participantIdentity, name)
+        } else {
+            db.sessionDao().deleteByParticipant(participantIdentity)
+        }
+
+        try {
+            legacyStorage?.deleteSession(participantIdentity, name)
+        } catch (exception: Exception) {
+            logger.fine("No legacy session to delete: ${exception.message}")
+        }
+    }
+
+    override fun reset() {
+        db.sessionDao().deleteAll()
+        legacyStorage?.reset()
+    }
+
+    /**
+     * Moves session from [legacyStorage] to database, if it's there.
+     */
+    @Synchronized private fun migrateSession(participantIdentity: String,
+                                             name: String): SecureSession? {
+        val legacyStorage = this.legacyStorage ?: return null
+
+        // Might have been moved by another thread already
+        db.sessionDao().load(participantIdentity, name)?.let {
+            return retrieveSession(participantIdentity, name)
+        }
+
+        val session = legacyStorage.retrieveSession(participantIdentity, name) ?: return null
+
+        storeSession(session)
+        try {
+            legacyStorage.deleteSession(participantIdentity, name)
+        } catch (exception: Exception) {
+            logger.warning("Deleting migrated session file failed: ${exception.message}")
+        }
+
+        logger.fine("Ratchet session with $participantIdentity moved to database")
+
+        return session
+    }
+
+    private fun toEntity(session: SecureSession): SessionEntity {
+        val encrypted = crypto.authEncrypt(session.serialize(),
+                                           identityKeyPair.privateKey,
+                                           identityKeyPair.publicKey)
+
+        return SessionEntity(session.participantIdentity, session.name, encrypted)
+    }
+
+    companion object {
+        private val logger = Logger.getLogger(unwrapCompanionClass(this.javaClass).name)
+
+        private fun openDatabase(context: Context, identity: String): RatchetDatabase {
+            val dbName = String.format("ethree-ratchet-%s", identity)
+
+            return Room.databaseBuilder(context, RatchetDatabase::class.java, dbName)
+                    .setJournalMode(RoomDatabase.JournalMode.WRITE_AHEAD_LOGGING)
+                    .build()
+        }
+    }
+}
@@ -38,6 +38,8 @@ import androidx.room.Insert
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
 import com.virgilsecurity.android.common.storage.sql.model.CardEntity
+import com.virgilsecurity.android.common.storage.sql.model.CardUsage
+import com.virgilsecurity.android.common.storage.sql.model.IdentityUsage
 
 @Dao
 internal interface CardDao {
@@ -62,4 +64,35 @@ internal interface CardDao {
 
     @Query("UPDATE ethree_cards SET is_outdated = :isOutdated WHERE id = :cardId")
     fun setOutdatedById(cardId: String, isOutdated: Boolean)
+
+    @Query("UPDATE ethree_cards SET last_access = :time WHERE id = :cardId")
+    fun touchById(cardId: String, time: Long)
+
+    @Query("UPDATE ethree_cards SET last_access = :time WHERE identity IN (:identities)")
+    fun touchByIdentity(identities: List<String>, time: Long)
+
+    @Query("UPDATE ethree_cards SET verified_hash = :hash, verified_at = :time WHERE id = :cardId")
+    fun markVerifiedById(cardId: String, hash: String, time: Long)
+
+    @Query("SELECT COUNT(*) FROM ethree_cards")
+    fun count(): Int
+
+    @Query("SELECT IFNULL(SUM(LENGTH(card)), 0) FROM ethree_cards")
+    fun size(): Long
+
+    @Query("SELECT id, LENGTH(card) AS size FROM ethree_cards WHERE is_outdated = 1 "
+           + "AND identity NOT IN (SELECT identity FROM ethree_cards WHERE is_outdated = 0) "
+           + "ORDER BY last_access ASC")
+    fun getOrphanedCardsUsage(): List<CardUsage>
+
+    @Query("SELECT identity, MAX(last_access) AS last_access, COUNT(*) AS cards_count, "
+           + "SUM(LENGTH(card)) AS size FROM ethree_cards GROUP BY identity "
+           + "ORDER BY last_access ASC")
+    fun getIdentitiesUsage(): List<IdentityUsage>
+
+    @Query("DELETE FROM ethree_cards WHERE id IN (:cardIds)")
+    fun deleteByIds(cardIds: List<String>)
+
+    @Query("DELETE FROM ethree_cards WHERE identity IN (:identities)")
+    fun deleteByIdentity(identities: List<String>)
 }
@@ -46,5 +46,8 @@ internal data class CardEntity(
         @PrimaryKey @ColumnInfo(name = "id") val identifier: String,
         @ColumnInfo(name = "identity") @NonNull val identity: String,
         @ColumnInfo(name = "is_outdated") @NonNull val isOutdated: Boolean,
-        @ColumnInfo(name = "card") @NonNull val card: String
+        @ColumnInfo(name = "card") @NonNull val card: String,
+        @ColumnInfo(name = "last_access", defaultValue = "0") val lastAccess: Long = 0,
+        @ColumnInfo(name = "verified_hash") val verifiedHash: String? = null,
+        @ColumnInfo(name = "verified_at") val verifiedAt: Long? = null
 )
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.util
+
+import java.lang.ref.ReferenceQueue
+import java.lang.ref.WeakReference
+
+/**
+ * ChannelCache
+ *
+ * Keeps channels while they're referenced by application, so there's at most one live channel
+ * per key. Up to [maxRecent] recently used channels are also kept when they're not referenced.
+ *
+ * [generation] changes on every removal, so channel loaded without lock is cached with
+ * [putIfAbsent] only if no channel was removed meanwhile.
+ */
+internal class ChannelCache<K : Any, V : Any>(private val maxRecent: Int = MAX_RECENT_CHANNELS) {
+
+    private val channels = HashMap<K, ChannelReference<K, V>>()
+    private val queue = ReferenceQueue<V>()
+    private val recent = object : LinkedHashMap<K, V>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<K, V>?): Boolean =
+                size > maxRecent
+    }
+
+    /**
+     * Count of removals, including [clear].
+     */
+    internal var generation: Long = 0
+        @Synchronized get
+        private set
+
+    @Synchronized internal operator fun get(key: K): V? {
+        expunge()
+
+        val channel = channels[key]?.get() ?: return null
+        recent[key] = channel
+
+        return channel
+    }
+
+    /**
+     * Caches [channel] in place of any previous one.
+     */
+    @Synchronized internal operator fun set(key: K, channel: V) {
+        expunge()
+
+        channels[key] = ChannelReference(key, channel, queue)
+        recent[key] = channel
+    }
+
+    /**
+     * Returns cached channel of [key], or caches one from [create] if none is cached. Returns
+     * *null* and caches nothing if [generation] is not [expectedGeneration] anymore.
+     */
+    @Synchronized internal fun putIfAbsent(key: K,
+                                           expectedGeneration: Long,
+                                           create: () -> V): V? {
+        if (generation != expectedGeneration) return null
+
+        return get(key) ?: create().also { set(key, it) }
+    }
+
+    @Synchronized internal fun remove(key: K) {
+        channels.remove(key)
+        recent.remove(key)
+        generation++
+    }
+
+    @Synchronized internal fun clear() {
+        channels.clear()
+        recent.clear()
+        generation++
+    }
+
+    @Synchronized internal fun size(): Int {
+        expunge()
+
+        return channels.size
+    }
+
+    /**
+     * Removes entries of channels that were garbage collected.
+     */
+    private fun expunge() {
+        while (true) {
+            @Suppress("UNCHECKED_CAST")
+            val reference = queue.poll() as? ChannelReference<K, V> ?: return
+            if (channels[reference.key] === reference) {
+                channels.remove(reference.key)
+            }
+        }
+    }
+
+    private class ChannelReference<K, V>(val key: K,
+                                         channel: V,
+                                         queue: ReferenceQueue<V>) :
+            WeakReference<V>(channel, queue)
+
+    companion object {
+        internal const val MAX_RECENT_CHANNELS = 64
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.common.util
+
+import com.virgilsecurity.android.common.model.ratchet.KeyRotationStats
+import com.virgilsecurity.keyknox.utils.unwrapCompanionClass
+import com.virgilsecurity.sdk.common.TimeSpan
+import java.net.ConnectException
+import java.net.NoRouteToHostException
+import java.net.SocketTimeoutException
+import java.net.UnknownHostException
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
+import java.util.logging.Logger
+
+/**
+ * KeyRotationScheduler
+ *
+ * Runs automatic ratchet keys rotations of all [com.virgilsecurity.android.common.EThreeCore]
+ * instances on shared threads. Rotations are spread with jitter, so instances started together
+ * don't rotate at the same moment, and failed ones are retried with exponential backoff.
+ */
+internal object KeyRotationScheduler {
+
+    private const val MAX_PARALLEL_ROTATIONS = 2
+
+    // Part of interval by which each delay is randomly shortened or extended
+    private const val JITTER = 0.1
+
+    private const val MAX_START_DELAY_MILLIS = 5_000L
+    private const val MIN_RETRY_DELAY_MILLIS = 30_000L
+    private const val MAX_BACKOFF_SHIFT = 16
+    private const val MAX_CAUSE_DEPTH = 10
+
+    private val logger = Logger.getLogger(unwrapCompanionClass(this.javaClass).name)
+
+    private val executor: ScheduledExecutorService by lazy {
+        ScheduledThreadPoolExecutor(MAX_PARALLEL_ROTATIONS) { runnable ->
+            Thread(runnable, "EThree-key-rotation").apply { isDaemon = true }
+        }.apply { removeOnCancelPolicy = true }
+    }
+
+    /**
+     * Schedules [rotate] to run every [interval].
+     *
+     * @param startFromNow First rotation runs right away if *true*, after [interval] otherwise.
+     *
+     * @return [KeyRotation] that has to be cancelled when keys shouldn't be rotated anymore.
+     */
+    internal fun schedule(interval: TimeSpan,
+                          startFromNow: Boolean,
+                          rotate: () -> Unit): KeyRotation {
+        val intervalMillis = interval.spanMilliseconds
+        val rotation = KeyRotation(intervalMillis, rotate)
+
+        val delay = if (startFromNow) {
+            random(minOf(intervalMillis, MAX_START_DELAY_MILLIS))
+        } else {
+            jittered(intervalMillis)
+        }
+        rotation.scheduleNext(delay)
+
+        return rotation
+    }
+
+    private fun random(bound: Long): Long =
+            if (bound > 0) ThreadLocalRandom.current().nextLong(bound) else 0L
+
+    private fun jittered(delayMillis: Long): Long {
+        val spread = (delayMillis * JITTER).toLong()
+
+        return delayMillis - spread + random(2 * spread + 1)
+    }
+
+    /**
+     * Connection errors mean device is offline or Virgil Cloud is not reachable, so there is no
+     * reason to back off further.
+     */
+    private fun isOffline(throwable: Throwable): Boolean =
+            generateSequence(throwable) { it.cause }.take(MAX_CAUSE_DEPTH).any {
+                it is UnknownHostException
+                || it is ConnectException
+                || it is NoRouteToHostException
+                || it is SocketTimeoutException
+            }
+
+    /**
+     * Scheduled rotation of one instance.
+     */
+    internal class KeyRotation(private val intervalMillis: Long,
+                               private val rotate: () -> Unit) : Runnable {
+
+        private var future: ScheduledFuture<*>? = null
+        private var isCancelled = false
+        private var failuresInRow = 0
+
+        private var succeeded = 0L
+        private var failed = 0L
+        private var skippedOffline = 0L
+        private var lastLatencyMillis = 0L
+        private var totalLatencyMillis = 0L
+        private var lastOutcome: KeyRotationStats.Outcome? = null
+
+        @Synchronized internal fun scheduleNext(delayMillis: Long) {
+            if (isCancelled) return
+
+            future = executor.schedule(this, delayMillis, TimeUnit.MILLISECONDS)
+        }
+
+        /**
+         * Stops rotations. Rotation that is already running is finished, but not rescheduled.
+         */
+        @Synchronized internal fun cancel() {
+            isCancelled = true
+            future?.cancel(false)
+            future = null
+        }
+
+        @Synchronized internal fun getStats(): KeyRotationStats {
+            val attempts = succeeded + failed + skippedOffline
+            val averageLatencyMillis = if (attempts > 0) totalLatencyMillis / attempts else 0
+
+            return KeyRotationStats(succeeded,
+                                    failed,
+                                    skippedOffline,
+                                    lastLatencyMillis,
+                                    averageLatencyMillis,
+                                    lastOutcome)
+        }
+
+        override fun run() {
+            if (synchronized(this) { isCancelled }) return
+
+            logger.info("Key rotation started")
+            val start = System.nanoTime()
+            val outcome = try {
+                rotate()
+                KeyRotationStats.Outcome.SUCCEEDED
+            } catch (throwable: Throwable) {
+                if (isOffline(throwable)) {
+                    logger.info("Key rotation skipped, cloud is not reachable")
+                    KeyRotationStats.Outcome.SKIPPED_OFFLINE
+                } else {
+                    logger.severe("Key rotation failed: ${throwable.localizedMessage}")
+                    KeyRotationStats.Outcome.FAILED
+                }
+            }
+            val latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+
+            scheduleNext(record(outcome, latencyMillis))
+        }
+
+        /**
+         * Records [outcome] of attempt and returns delay before the next one.
+         */
+        @Synchronized private fun record(outcome: KeyRotationStats.Outcome,
+                                         latencyMillis: Long): Long {
+            lastOutcome = outcome
+            lastLatencyMillis = latencyMillis
+            totalLatencyMillis += latencyMillis
+
+            val delayMillis = when (outcome) {
+                KeyRotationStats.Outcome.SUCCEEDED -> {
+                    succeeded++
+                    failuresInRow = 0
+                    intervalMillis
+                }
+                KeyRotationStats.Outcome.SKIPPED_OFFLINE -> {
+                    skippedOffline++
+                    retryDelay(0)
+                }
+                KeyRotationStats.Outcome.FAILED -> {
+                    failed++
+                    failuresInRow++
+                    retryDelay(failuresInRow - 1)
+                }
+            }
+
+            return jittered(delayMillis)
+        }
+
+        /**
+         * Doubles delay after each failure, but never waits longer than interval.
+         */
+        private fun retryDelay(failures: Int): Long {
+            val delayMillis = MIN_RETRY_DELAY_MILLIS shl minOf(failures, MAX_BACKOFF_SHIFT)
+
+            return minOf(delayMillis, intervalMillis)
+        }
+    }
+}
@@ -36,11 +36,15 @@ package com.virgilsecurity.android.common.worker
 import com.virgilsecurity.android.common.manager.GroupManager
 import com.virgilsecurity.android.common.model.FindUsersResult
 import com.virgilsecurity.android.common.model.Group
+import com.virgilsecurity.android.common.model.GroupResult
+import com.virgilsecurity.android.common.model.GroupRetentionPolicy
+import com.virgilsecurity.android.common.model.GroupSummary
 import com.virgilsecurity.android.common.model.Ticket
 import com.virgilsecurity.common.extension.toData
 import com.virgilsecurity.common.model.Completable
 import com.virgilsecurity.common.model.Data
 import com.virgilsecurity.common.model.Result
+import com.virgilsecurity.common.util.toHexString
 import com.virgilsecurity.keyknox.utils.unwrapCompanionClass
 import com.virgilsecurity.sdk.cards.Card
 import com.virgilsecurity.sdk.crypto.VirgilCrypto
@@ -57,7 +61,9 @@ internal class GroupWorker internal constructor(
         private val computeSessionId: (Data) -> Data
 ) {
 
-    internal fun createGroup(identifier: Data, users: FindUsersResult? = null): Result<Group> =
+    internal fun createGroup(identifier: Data,
+                             users: FindUsersResult? = null,
+                             isLarge: Boolean = false): Result<Group> =
             object : Result<Group> {
                 override fun get(): Group {
                     require(identifier.value.isNotEmpty()) { "\'identifier\' should not be empty" }
@@ -67,11 +73,11 @@ internal class GroupWorker internal constructor(
                     val usersNew = users ?: FindUsersResult()
                     val participants = usersNew.keys + identity
 
-                    Group.validateParticipantsCount(participants.size)
+                    Group.validateParticipantsCount(participants.size, isLarge)
 
                     val ticket = Ticket(crypto, sessionId, participants)
 
-                    return getGroupManager().store(ticket, usersNew.values.toList())
+                    return getGroupManager().store(ticket, usersNew.values.toList(), isLarge)
                 }
             }
 
@@ -94,6 +100,60 @@ internal class GroupWorker internal constructor(
                 }
             }
 
+    internal fun getGroups(identifiers: List<Data>): List<Group?> {
+        identifiers.forEach {
+            require(it.value.isNotEmpty()) { "\'identifiers\' should not contain empty items" }
+        }
+        logger.fine("Get ${identifiers.size} groups")
+
+        val sessionIds = identifiers.map(computeSessionId)
+        return getGroupManager().retrieveAll(sessionIds)
+    }
+
+    internal fun getGroup(summary: GroupSummary): Group? {
+        logger.fine("Get group ${summary.sessionId.toHexString()}")
+
+        return getGroupManager().retrieve(summary.sessionId)
+    }
+
+    internal fun listGroups(): List<GroupSummary> = getGroupManager().listGroups()
+
+    internal fun groupsWithParticipant(identity: String): List<GroupSummary> {
+        require(identity.isNotEmpty()) { "\'identity\' should not be empty" }
+
+        return getGroupManager().groupsWithParticipant(identity)
+    }
+
+    internal fun compactGroups(policy: GroupRetentionPolicy): Completable =
+            object : Completable {
+                override fun execute() {
+                    val groupManager = getGroupManager()
+                    val summaries = groupManager.listGroups()
+                    logger.fine("Compact ${summaries.size} groups")
+
+                    summaries.forEach { summary ->
+                        groupManager.retrieve(summary.sessionId)?.compact(policy)?.execute()
+                    }
+                }
+            }
+
+    internal fun loadGroups(groups: List<Pair<Data, Card>>): Result<List<GroupResult>> =
+            object : Result<List<GroupResult>> {
+                override fun get(): List<GroupResult> {
+                    groups.forEach {
+                        require(it.first.value.isNotEmpty()) {
+                            "\'groups\' should not contain empty identifiers"
+                        }
+                    }
+                    logger.fine("Load ${groups.size} groups")
+
+                    val sessionIds = groups.map { (identifier, card) ->
+                        computeSessionId(identifier) to card
+                    }
+                    return getGroupManager().pullAll(sessionIds)
+                }
+            }
+
     internal fun deleteGroup(identifier: Data): Completable =
             object : Completable {
                 override fun execute() {
@@ -105,12 +165,14 @@ internal class GroupWorker internal constructor(
                 }
             }
 
-    internal fun createGroup(identifier: String, users: FindUsersResult? = null): Result<Group> {
+    internal fun createGroup(identifier: String,
+                             users: FindUsersResult? = null,
+                             isLarge: Boolean = false): Result<Group> {
         require(identifier.isNotEmpty()) { "\'identifier\' should not be empty" }
 
         val identifierData = identifier.toData(StandardCharsets.UTF_8)
 
-        return createGroup(identifierData, users)
+        return createGroup(identifierData, users, isLarge)
     }
 
     internal fun getGroup(identifier: String): Group? {
@@ -129,6 +191,26 @@ internal class GroupWorker internal constructor(
         return loadGroup(identifierData, card)
     }
 
+    @JvmName("getGroupsByString")
+    internal fun getGroups(identifiers: List<String>): List<Group?> {
+        identifiers.forEach {
+            require(it.isNotEmpty()) { "\'identifiers\' should not contain empty items" }
+        }
+
+        return getGroups(identifiers.map { it.toData(StandardCharsets.UTF_8) })
+    }
+
+    @JvmName("loadGroupsByString")
+    internal fun loadGroups(groups: List<Pair<String, Card>>): Result<List<GroupResult>> {
+        groups.forEach {
+            require(it.first.isNotEmpty()) { "\'groups\' should not contain empty identifiers" }
+        }
+
+        return loadGroups(groups.map { (identifier, card) ->
+            identifier.toData(StandardCharsets.UTF_8) to card
+        })
+    }
+
     internal fun deleteGroup(identifier: String): Completable {
         require(identifier.isNotEmpty()) { "\'identifier\' should not be empty" }
 
@@ -35,52 +35,148 @@ package com.virgilsecurity.android.common.worker
 
 import com.virgilsecurity.android.common.exception.EThreeRatchetException
 import com.virgilsecurity.android.common.model.ratchet.RatchetChannel
+import com.virgilsecurity.android.common.model.ratchet.RatchetChannelResult
+import com.virgilsecurity.android.common.model.ratchet.RatchetPersistence
 import com.virgilsecurity.android.common.storage.cloud.CloudRatchetStorage
+import com.virgilsecurity.android.common.storage.local.BatchSessionStorage
+import com.virgilsecurity.android.common.storage.local.RatchetSessionWriter
+import com.virgilsecurity.android.common.util.ChannelCache
 import com.virgilsecurity.common.model.Completable
 import com.virgilsecurity.common.model.Result
 import com.virgilsecurity.keyknox.utils.unwrapCompanionClass
 import com.virgilsecurity.ratchet.exception.FileDeletionException
 import com.virgilsecurity.ratchet.securechat.SecureChat
 import com.virgilsecurity.ratchet.securechat.SecureSession
+import com.virgilsecurity.ratchet.sessionstorage.SessionStorage
 import com.virgilsecurity.sdk.cards.Card
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 import java.util.logging.Logger
 
 /**
  * RatchetWorker
+ *
+ * Keeps live channels, so there is one [RatchetChannel] with one session per participant and
+ * channel name. Channels lock themselves, so different channels are used in parallel safely.
+ * Channels that are not used by application anymore are dropped from cache, except a bounded
+ * number of recently used ones.
  */
 internal class RatchetWorker internal constructor(
         private val identity: String,
         private val cloudRatchetStorage: CloudRatchetStorage,
         private val getSecureChat: () -> SecureChat,
-        private val startRatchetSessionAsSender: (SecureChat, Card, String?) -> SecureSession
+        private val getSessionStorage: () -> SessionStorage,
+        private val startRatchetSessionAsSender: (SecureChat, Card, String?) -> SecureSession,
+        private val persistence: RatchetPersistence = RatchetPersistence()
 ) {
 
+    private var sessionWriter: RatchetSessionWriter? = null
+
+    // Live channels of current session storage
+    private val channels = ChannelCache<RatchetSessionWriter.Key, RatchetChannel>()
+
+    /**
+     * Returns writer of sessions to [storage]. Storage is replaced when private key changes, so
+     * deferred sessions of the previous one are written first.
+     */
+    @Synchronized private fun sessionWriter(storage: SessionStorage): RatchetSessionWriter {
+        val current = this.sessionWriter
+        if (current != null && current.storage === storage) {
+            return current
+        }
+
+        current?.flushAll()
+        channels.clear()
+
+        return RatchetSessionWriter(storage, persistence).also {
+            this.sessionWriter = it
+        }
+    }
+
+    private fun channel(storage: SessionStorage,
+                        session: SecureSession,
+                        name: String?): RatchetChannel =
+            RatchetChannel(session, storage, sessionWriter(storage), name)
+
+    /**
+     * Caches new [channel] in place of any previous one.
+     */
+    private fun cacheChannel(channel: RatchetChannel): RatchetChannel {
+        val key = RatchetSessionWriter.Key(channel.participant, channel.name)
+
+        channels[key] = channel
+
+        return channel
+    }
+
+    private fun existingSession(storage: SessionStorage,
+                                identity: String,
+                                name: String?): SecureSession? =
+            storage.retrieveSession(identity, name ?: DEFAULT_SESSION_NAME)
+
+    /**
+     * Checks that channel with [card] can be started, i.e. it's not self channel and it doesn't
+     * exist yet.
+     */
+    private fun checkNewChannel(storage: SessionStorage, card: Card, name: String?) {
+        if (existingSession(storage, card.identity, name) != null) {
+            throw EThreeRatchetException(
+                EThreeRatchetException.Description.CHANNEL_ALREADY_EXISTS
+            )
+        }
+
+        if (card.identity == this.identity) {
+            throw EThreeRatchetException(
+                EThreeRatchetException.Description.SELF_CHANNEL_IS_FORBIDDEN
+            )
+        }
+    }
+
+    /**
+     * Starts session with [card] and pushes invite to the cloud. Session is not stored.
+     */
+    private fun startSession(secureChat: SecureChat,
+                             storage: SessionStorage,
+                             card: Card,
+                             name: String?): SecureSession {
+        checkNewChannel(storage, card, name)
+
+        val session = startRatchetSessionAsSender(secureChat, card, name)
+        val ticket = session.encrypt(UUID.randomUUID().toString())
+        cloudRatchetStorage.store(ticket, card, name)
+
+        return session
+    }
+
+    /**
+     * Pulls invite of [card] from the cloud and starts session with it. Session is not stored.
+     */
+    private fun acceptSession(secureChat: SecureChat,
+                              storage: SessionStorage,
+                              card: Card,
+                              name: String?): SecureSession {
+        checkNewChannel(storage, card, name)
+
+        val ticket = cloudRatchetStorage.retrieve(card, name)
+        val session = secureChat.startNewSessionAsReceiver(card, ticket)
+        session.decryptData(ticket)
+
+        return session
+    }
+
     @JvmOverloads internal fun createRatchetChannel(card: Card,
                                                     name: String? = null): Result<RatchetChannel> =
             object : Result<RatchetChannel> {
                 override fun get(): RatchetChannel {
-                    val secureChat = getSecureChat()
-
-                    if (secureChat.existingSession(card.identity, name) != null) {
-                        throw EThreeRatchetException(
-                            EThreeRatchetException.Description.CHANNEL_ALREADY_EXISTS
-                        )
-                    }
-
-                    if (card.identity == this@RatchetWorker.identity) {
-                        throw EThreeRatchetException(
-                            EThreeRatchetException.Description.SELF_CHANNEL_IS_FORBIDDEN
-                        )
-                    }
-
-                    val session = startRatchetSessionAsSender(secureChat, card, name)
-                    val ticket = session.encrypt(UUID.randomUUID().toString())
-                    cloudRatchetStorage.store(ticket, card, name)
+                    val storage = getSessionStorage()
+                    val session = startSession(getSecureChat(), storage, card, name)
 
-                    secureChat.storeSession(session)
+                    storage.storeSession(session)
 
-                    return RatchetChannel(session, secureChat.sessionStorage)
+                    return cacheChannel(channel(storage, session, name))
                 }
             }
 
@@ -88,56 +184,190 @@ internal class RatchetWorker internal constructor(
                                                   name: String? = null): Result<RatchetChannel> =
             object : Result<RatchetChannel> {
                 override fun get(): RatchetChannel {
-                    val secureChat = getSecureChat()
+                    val storage = getSessionStorage()
+                    val session = acceptSession(getSecureChat(), storage, card, name)
 
-                    if (secureChat.existingSession(card.identity, name) != null) {
-                        throw EThreeRatchetException(
-                            EThreeRatchetException.Description.CHANNEL_ALREADY_EXISTS
-                        )
-                    }
+                    storage.storeSession(session)
 
-                    if (card.identity == this@RatchetWorker.identity) {
-                        throw EThreeRatchetException(
-                            EThreeRatchetException.Description.SELF_CHANNEL_IS_FORBIDDEN
-                        )
-                    }
+                    return cacheChannel(channel(storage, session, name))
+                }
+            }
 
-                    val ticket = cloudRatchetStorage.retrieve(card, name)
-                    val session = secureChat.startNewSessionAsReceiver(card, ticket)
-                    session.decryptData(ticket)
+    @JvmOverloads internal fun createRatchetChannels(
+            cards: List<Card>,
+            name: String? = null
+    ): Result<List<RatchetChannelResult>> = object : Result<List<RatchetChannelResult>> {
+        override fun get(): List<RatchetChannelResult> =
+                startChannels(cards, name, this@RatchetWorker::startSession) { card ->
+                    // Invite was pushed, but session wasn't stored, so channel can be created again
+                    cloudRatchetStorage.delete(card, name)
+                }
+    }
+
+    @JvmOverloads internal fun joinRatchetChannels(
+            cards: List<Card>,
+            name: String? = null
+    ): Result<List<RatchetChannelResult>> = object : Result<List<RatchetChannelResult>> {
+        override fun get(): List<RatchetChannelResult> =
+                startChannels(cards, name, this@RatchetWorker::acceptSession) { }
+    }
+
+    /**
+     * Starts sessions with all [cards] concurrently using [start], then stores all of them at
+     * once. Failure of one participant doesn't affect others. If session of participant was
+     * started but not stored, [rollback] undoes its start.
+     */
+    private fun startChannels(
+            cards: List<Card>,
+            name: String?,
+            start: (SecureChat, SessionStorage, Card, String?) -> SecureSession,
+            rollback: (Card) -> Unit
+    ): List<RatchetChannelResult> {
+        val secureChat = getSecureChat()
+        val storage = getSessionStorage()
+
+        // Same participant twice would race for the same invite in the cloud
+        val identities = HashSet<String>()
+        val futures = cards.map { card ->
+            if (identities.add(card.identity)) {
+                batchExecutor.submit(Callable { start(secureChat, storage, card, name) })
+            } else {
+                null
+            }
+        }
+
+        val started = futures.map { future ->
+            if (future == null) {
+                EThreeRatchetException(EThreeRatchetException.Description.CHANNEL_ALREADY_EXISTS)
+            } else {
+                try {
+                    future.get()
+                } catch (exception: ExecutionException) {
+                    exception.cause ?: exception
+                }
+            }
+        }
 
-                    secureChat.storeSession(session)
+        val sessions = started.filterIsInstance<SecureSession>()
+        val storeErrors = IdentityHashMap<SecureSession, Throwable>()
+        sessions.zip(storeSessions(storage, sessions)).forEach { (session, error) ->
+            if (error != null) storeErrors[session] = error
+        }
 
-                    return RatchetChannel(session, secureChat.sessionStorage)
+        return cards.zip(started) { card, result ->
+            if (result !is SecureSession) {
+                return@zip RatchetChannelResult(null, result as Throwable)
+            }
+
+            val storeError = storeErrors[result]
+            if (storeError != null) {
+                try {
+                    rollback(card)
+                } catch (throwable: Throwable) {
+                    logger.warning("Rollback of channel with ${card.identity} failed: " +
+                                   "${throwable.message}")
                 }
+                RatchetChannelResult(null, storeError)
+            } else {
+                RatchetChannelResult(cacheChannel(channel(storage, result, name)), null)
+            }
+        }
+    }
+
+    /**
+     * Stores [sessions] in one transaction if [storage] supports it. If transaction fails, or
+     * storage doesn't support it, sessions are stored one by one.
+     *
+     * @return errors of sessions in the same order, *null* for stored ones.
+     */
+    private fun storeSessions(storage: SessionStorage,
+                              sessions: List<SecureSession>): List<Throwable?> {
+        if (storage is BatchSessionStorage && sessions.size > 1) {
+            try {
+                storage.storeSessions(sessions)
+
+                return sessions.map { null }
+            } catch (throwable: Throwable) {
+                logger.fine("Storing sessions at once failed: ${throwable.message}")
+            }
+        }
+
+        return sessions.map { session ->
+            try {
+                storage.storeSession(session)
+                null
+            } catch (throwable: Throwable) {
+                throwable
             }
+        }
+    }
 
     @JvmOverloads internal fun getRatchetChannel(card: Card,
                                                  name: String? = null): RatchetChannel? {
-        val secureChat = getSecureChat()
+        val storage = getSessionStorage()
+
+        val writer = sessionWriter(storage)
+        val key = RatchetSessionWriter.Key(card.identity, name)
+
+        while (true) {
+            val generation = channels.generation
+            channels[key]?.let { return it }
 
-        val session = secureChat.existingSession(card.identity, name) ?: return null
+            // Session which is not written yet is newer than the stored one
+            val session = writer.pendingSession(key)
+                          ?: existingSession(storage, card.identity, name)
+                          ?: return null
 
-        return RatchetChannel(session, secureChat.sessionStorage)
+            // Session is loaded without lock, so other thread might have cached channel meanwhile
+            channels.putIfAbsent(key, generation) { channel(storage, session, name) }
+                    ?.let { return it }
+
+            // Channel was deleted meanwhile, so session is loaded again
+        }
     }
 
     @JvmOverloads internal fun deleteRatchetChannel(card: Card,
                                                     name: String? = null): Completable =
             object : Completable {
                 override fun execute() {
-                    val secureChat = getSecureChat()
+                    val storage = getSessionStorage()
 
                     cloudRatchetStorage.delete(card, name)
 
+                    val key = RatchetSessionWriter.Key(card.identity, name)
                     try {
-                        secureChat.deleteSession(card.identity, name)
+                        sessionWriter(storage).discard(key)
+                        storage.deleteSession(card.identity, name ?: DEFAULT_SESSION_NAME)
                     } catch (exception: FileDeletionException) {
                         logger.fine("Delete session failed: ${exception.localizedMessage}")
+                    } finally {
+                        // Removed after session is deleted, so it isn't cached again
+                        channels.remove(key)
                     }
                 }
             }
 
+    /**
+     * Writes sessions of all channels which writing was deferred by [RatchetPersistence].
+     */
+    internal fun flushRatchetChannels() {
+        val writer = synchronized(this) { this.sessionWriter } ?: return
+
+        writer.flushAll()
+    }
+
     companion object {
+        // Name secure chat gives to session if channel name is not provided
+        private const val DEFAULT_SESSION_NAME = "DEFAULT"
+
+        private const val MAX_PARALLEL_CHANNELS = 8
+
+        private val batchExecutor: ExecutorService by lazy {
+            Executors.newFixedThreadPool(MAX_PARALLEL_CHANNELS) { runnable ->
+                Thread(runnable, "EThree-ratchet-batch").apply { isDaemon = true }
+            }
+        }
+
         private val logger = Logger.getLogger(unwrapCompanionClass(this.javaClass).name)
     }
 }
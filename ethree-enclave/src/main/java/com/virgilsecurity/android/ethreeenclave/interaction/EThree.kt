@@ -37,6 +37,11 @@ import android.content.Context
 import com.virgilsecurity.android.common.EThreeCore
 import com.virgilsecurity.android.common.callback.OnGetTokenCallback
 import com.virgilsecurity.android.common.callback.OnKeyChangedCallback
+import com.virgilsecurity.android.common.model.ratchet.RatchetPersistence
+import com.virgilsecurity.android.common.storage.CardStorage
+import com.virgilsecurity.android.common.storage.sql.AndroidStorageProvider
+import com.virgilsecurity.android.common.storage.sql.CardCacheLimits
+import com.virgilsecurity.android.common.storage.sql.RatchetSessionStorageType
 import com.virgilsecurity.android.common.util.Const.NO_CONTEXT
 import com.virgilsecurity.android.common.util.Defaults
 import com.virgilsecurity.common.model.Result
@@ -65,14 +70,25 @@ class EThree
         keyChangedCallback: OnKeyChangedCallback? = null,
         keyPairType: KeyPairType = Defaults.keyPairType,
         enableRatchet: Boolean = Defaults.enableRatchet,
-        keyRotationInterval: TimeSpan = Defaults.keyRotationInterval
+        keyRotationInterval: TimeSpan = Defaults.keyRotationInterval,
+        cardStorage: CardStorage? = null,
+        cardCacheLimits: CardCacheLimits = CardCacheLimits(),
+        cardReverificationInterval: TimeSpan? = null,
+        ratchetPersistence: RatchetPersistence = RatchetPersistence(),
+        ratchetSessionStorageType: RatchetSessionStorageType =
+                RatchetSessionStorageType.FILES
 ) : EThreeCore(identity,
                tokenCallback,
                keyChangedCallback,
                keyPairType,
                enableRatchet,
                keyRotationInterval,
-               context) {
+               AndroidStorageProvider(context,
+                                      cardStorage,
+                                      cardCacheLimits,
+                                      cardReverificationInterval,
+                                      ratchetPersistence,
+                                      ratchetSessionStorageType)) {
 
     override val keyStorage: KeyStorage
 
@@ -123,7 +139,12 @@ class EThree
         params.keyChangedCallback,
         params.keyPairType,
         params.enableRatchet,
-        params.keyRotationInterval)
+        params.keyRotationInterval,
+        params.cardStorage,
+        params.cardCacheLimits,
+        params.cardReverificationInterval,
+        params.ratchetPersistence,
+        params.ratchetSessionStorageType)
 
     constructor(params: com.virgilsecurity.android.ethreeenclave.interaction.model.java.EThreeParams) : this(
         params.identity,
@@ -135,7 +156,12 @@ class EThree
         params.keyChangedCallback,
         params.keyPairType,
         params.enableRatchet,
-        params.keyRotationInterval)
+        params.keyRotationInterval,
+        params.cardStorage,
+        params.cardCacheLimits,
+        params.cardReverificationInterval,
+        params.ratchetPersistence,
+        params.ratchetSessionStorageType)
 
     @JvmOverloads constructor(
             identity: String,
@@ -147,7 +173,13 @@ class EThree
             keyChangedCallback: OnKeyChangedCallback? = null,
             keyPairType: KeyPairType = Defaults.keyPairType,
             enableRatchet: Boolean = Defaults.enableRatchet,
-            keyRotationInterval: TimeSpan = Defaults.keyRotationInterval
+            keyRotationInterval: TimeSpan = Defaults.keyRotationInterval,
+            cardStorage: CardStorage? = null,
+            cardCacheLimits: CardCacheLimits = CardCacheLimits(),
+            cardReverificationInterval: TimeSpan? = null,
+            ratchetPersistence: RatchetPersistence = RatchetPersistence(),
+            ratchetSessionStorageType: RatchetSessionStorageType =
+                    RatchetSessionStorageType.FILES
     ) : this(identity,
              object : OnGetTokenCallback {
                  override fun onGetToken(): String {
@@ -162,7 +194,12 @@ class EThree
              keyChangedCallback,
              keyPairType,
              enableRatchet,
-             keyRotationInterval)
+             keyRotationInterval,
+             cardStorage,
+             cardCacheLimits,
+             cardReverificationInterval,
+             ratchetPersistence,
+             ratchetSessionStorageType)
 
     companion object {
         /**
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.ethreejvm.interaction
+
+import com.virgilsecurity.android.common.EThreeCore
+import com.virgilsecurity.android.common.callback.OnGetTokenCallback
+import com.virgilsecurity.android.common.callback.OnKeyChangedCallback
+import com.virgilsecurity.android.common.model.ratchet.RatchetPersistence
+import com.virgilsecurity.android.common.storage.CardStorage
+import com.virgilsecurity.android.common.util.Defaults
+import com.virgilsecurity.android.ethreejvm.storage.JvmStorageProvider
+import com.virgilsecurity.sdk.common.TimeSpan
+import com.virgilsecurity.sdk.crypto.KeyPairType
+import com.virgilsecurity.sdk.storage.DefaultKeyStorage
+import com.virgilsecurity.sdk.storage.KeyStorage
+
+/**
+ * [EThree] class simplifies work with Virgil Services to easily implement End to End Encrypted
+ * communication on JVM without Android dependencies.
+ *
+ * Private key and local groups are stored in [rootPath]. Several instances with different
+ * identities may share the same [rootPath].
+ */
+class EThree
+@JvmOverloads constructor(
+        identity: String,
+        tokenCallback: OnGetTokenCallback,
+        rootPath: String,
+        cardStorage: CardStorage? = null,
+        keyChangedCallback: OnKeyChangedCallback? = null,
+        keyPairType: KeyPairType = Defaults.keyPairType,
+        enableRatchet: Boolean = Defaults.enableRatchet,
+        keyRotationInterval: TimeSpan = Defaults.keyRotationInterval,
+        ratchetPersistence: RatchetPersistence = RatchetPersistence()
+) : EThreeCore(identity,
+               tokenCallback,
+               keyChangedCallback,
+               keyPairType,
+               enableRatchet,
+               keyRotationInterval,
+               JvmStorageProvider(rootPath, cardStorage, ratchetPersistence)) {
+
+    override val keyStorage: KeyStorage
+
+    init {
+        keyStorage = DefaultKeyStorage(rootPath, KEYSTORE_NAME)
+
+        initializeCore()
+    }
+
+    constructor(params: com.virgilsecurity.android.ethreejvm.interaction.model.EThreeParams) : this(
+        params.identity,
+        params.tokenCallback,
+        params.rootPath,
+        params.cardStorage,
+        params.keyChangedCallback,
+        params.keyPairType,
+        params.enableRatchet,
+        params.keyRotationInterval,
+        params.ratchetPersistence)
+
+    constructor(params: com.virgilsecurity.android.ethreejvm.interaction.model.java.EThreeParams) : this(
+        params.identity,
+        params.tokenCallback,
+        params.rootPath,
+        params.cardStorage,
+        params.keyChangedCallback,
+        params.keyPairType,
+        params.enableRatchet,
+        params.keyRotationInterval,
+        params.ratchetPersistence)
+
+    @JvmOverloads constructor(
+            identity: String,
+            tokenStringCallback: () -> String,
+            rootPath: String,
+            cardStorage: CardStorage? = null,
+            keyChangedCallback: OnKeyChangedCallback? = null,
+            keyPairType: KeyPairType = Defaults.keyPairType,
+            enableRatchet: Boolean = Defaults.enableRatchet,
+            keyRotationInterval: TimeSpan = Defaults.keyRotationInterval,
+            ratchetPersistence: RatchetPersistence = RatchetPersistence()
+    ) : this(identity,
+             object : OnGetTokenCallback {
+                 override fun onGetToken(): String {
+                     return tokenStringCallback()
+                 }
+
+             },
+             rootPath,
+             cardStorage,
+             keyChangedCallback,
+             keyPairType,
+             enableRatchet,
+             keyRotationInterval,
+             ratchetPersistence)
+
+    companion object {
+        @JvmStatic
+        fun derivePasswords(password: String) = derivePasswordsInternal(password)
+
+        internal const val KEYSTORE_NAME = "virgil.keystore"
+    }
+}
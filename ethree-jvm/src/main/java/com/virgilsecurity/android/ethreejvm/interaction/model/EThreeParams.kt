@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.ethreejvm.interaction.model
+
+import com.virgilsecurity.android.common.callback.OnKeyChangedCallback
+import com.virgilsecurity.android.common.model.ratchet.RatchetPersistence
+import com.virgilsecurity.android.common.storage.CardStorage
+import com.virgilsecurity.android.common.util.Defaults
+import com.virgilsecurity.sdk.common.TimeSpan
+import com.virgilsecurity.sdk.crypto.KeyPairType
+
+/**
+ * EThreeParams
+ */
+class EThreeParams(
+        // Identity of user.
+        val identity: String,
+
+        // Callback to get Virgil access token.
+        // This method should return valid Json Web Token [String] representation with identity
+        // (in it) of the user which will use this class.
+        val tokenCallback: () -> String,
+
+        // Directory to store private key and local data.
+        val rootPath: String) {
+
+    // Storage of cached cards. In-memory storage is used if null.
+    var cardStorage: CardStorage? = null
+
+    // Callback to notify the change of User's keys.
+    var keyChangedCallback: OnKeyChangedCallback? = null
+
+    // Enables ratchet operations.
+    var enableRatchet: Boolean = Defaults.enableRatchet
+
+    // TimeSpan of automatic rotate keys for double ratchet.
+    var keyRotationInterval: TimeSpan = Defaults.keyRotationInterval
+
+    // Default key pair type
+    var keyPairType: KeyPairType = Defaults.keyPairType
+
+    // Defines when ratchet sessions are written to storage. Sessions are written after each
+    // operation by default.
+    var ratchetPersistence: RatchetPersistence = RatchetPersistence()
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.ethreejvm.interaction
+
+import com.virgilsecurity.android.common.storage.memory.InMemoryCardStorage
+import com.virgilsecurity.android.ethreejvm.utils.TestCards
+import com.virgilsecurity.sdk.cards.Card
+import com.virgilsecurity.sdk.crypto.VirgilCrypto
+import com.virgilsecurity.sdk.storage.DefaultKeyStorage
+import com.virgilsecurity.sdk.storage.JsonKeyEntry
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Checks that [EThree] works on plain JVM. No Virgil services are used, private keys are put
+ * into key storage directly and cards are self signed.
+ */
+class EThreeTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private lateinit var crypto: VirgilCrypto
+    private lateinit var cards: TestCards
+    private lateinit var rootPath: String
+
+    @Before
+    fun setup() {
+        crypto = VirgilCrypto()
+        cards = TestCards(crypto)
+        rootPath = folder.newFolder().absolutePath
+    }
+
+    @Test
+    fun init_without_private_key() {
+        val identity = UUID.randomUUID().toString()
+        val ethree = EThree(identity, { throw IllegalStateException(NO_NETWORK) }, rootPath)
+
+        assertFalse(ethree.hasLocalPrivateKey())
+        assertNull(ethree.findCachedUser(identity).get())
+    }
+
+    @Test
+    fun auth_encrypt_decrypt() {
+        val alice = createUser()
+        val bob = createUser()
+
+        alice.cardStorage.storeCard(bob.card)
+        bob.cardStorage.storeCard(alice.card)
+
+        val bobCard = alice.ethree.findCachedUser(bob.card.identity).get()!!
+        val encrypted = alice.ethree.authEncrypt(TEXT, bobCard)
+
+        val aliceCard = bob.ethree.findCachedUser(alice.card.identity).get()!!
+        assertEquals(TEXT, bob.ethree.authDecrypt(encrypted, aliceCard))
+    }
+
+    @Test
+    fun concurrent_auth_decrypt() {
+        val alice = createUser()
+        val bob = createUser()
+
+        val encrypted = (0 until MESSAGES_COUNT).map {
+            alice.ethree.authEncrypt("$TEXT $it", bob.card)
+        }
+
+        val executor = Executors.newFixedThreadPool(THREADS_COUNT)
+        val futures = encrypted.map { message ->
+            executor.submit(Callable { bob.ethree.authDecrypt(message, alice.card) })
+        }
+        val decrypted = futures.map { it.get(1, TimeUnit.MINUTES) }
+        executor.shutdown()
+
+        decrypted.forEachIndexed { index, text ->
+            assertEquals("$TEXT $index", text)
+        }
+    }
+
+    private fun createUser(): User {
+        val identity = UUID.randomUUID().toString()
+        val keyPair = crypto.generateKeyPair()
+
+        val keyStorage = DefaultKeyStorage(rootPath, EThree.KEYSTORE_NAME)
+        keyStorage.store(JsonKeyEntry(identity, crypto.exportPrivateKey(keyPair.privateKey)))
+
+        val cardStorage = InMemoryCardStorage(crypto)
+        val ethree = EThree(identity,
+                            { throw IllegalStateException(NO_NETWORK) },
+                            rootPath,
+                            cardStorage)
+        assertTrue(ethree.hasLocalPrivateKey())
+
+        return User(ethree, cardStorage, cards.generate(identity, keyPair))
+    }
+
+    private class User(val ethree: EThree, val cardStorage: InMemoryCardStorage, val card: Card)
+
+    companion object {
+        private const val NO_NETWORK = "Network should not be used"
+        private const val TEXT = "Hello, my name is text. I am here to be encrypted (:"
+        private const val MESSAGES_COUNT = 200
+        private const val THREADS_COUNT = 8
+    }
+}
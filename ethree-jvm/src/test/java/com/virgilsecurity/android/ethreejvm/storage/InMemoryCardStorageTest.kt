@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015-2020, Virgil Security, Inc.
+ *
+ * Lead Maintainer: Virgil Security Inc. <support@virgilsecurity.com>
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  
+ *     (1) Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *
+ *     (2) Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *
+ *     (3) Neither the name of virgil nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.virgilsecurity.android.ethreejvm.storage
+
+import com.virgilsecurity.android.common.exception.SQLiteStorageException
+import com.virgilsecurity.android.common.storage.CardStorage
+import com.virgilsecurity.android.common.storage.memory.InMemoryCardStorage
+import com.virgilsecurity.android.ethreejvm.utils.TestCards
+import com.virgilsecurity.sdk.crypto.VirgilCrypto
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class InMemoryCardStorageTest {
+
+    private lateinit var crypto: VirgilCrypto
+    private lateinit var cards: TestCards
+    private lateinit var storage: CardStorage
+
+    @Before
+    fun setup() {
+        crypto = VirgilCrypto()
+        cards = TestCards(crypto)
+        storage = InMemoryCardStorage(crypto)
+    }
+
+    @Test
+    fun store_and_get_card() {
+        val identity = UUID.randomUUID().toString()
+        val card = cards.generate(identity)
+
+        storage.storeCard(card)
+
+        val storedCard = storage.getCard(card.identifier)
+        assertNotNull(storedCard)
+        assertEquals(identity, storedCard!!.identity)
+        assertFalse(storedCard.isOutdated)
+        assertNull(storage.getCard(UUID.randomUUID().toString()))
+    }
+
+    @Test
+    fun store_rotated_card() {
+        val identity = UUID.randomUUID().toString()
+        val oldCard = cards.generate(identity)
+        val newCard = cards.generate(identity, previousCard = oldCard)
+
+        storage.storeCard(newCard)
+
+        assertTrue(storage.getCard(oldCard.identifier)!!.isOutdated)
+        assertFalse(storage.getCard(newCard.identifier)!!.isOutdated)
+
+        val found = storage.searchCards(listOf(identity))
+        assertEquals(1, found.size)
+        assertEquals(newCard.identifier, found.first().identifier)
+        assertEquals(oldCard.identifier, found.first().previousCard.identifier)
+        assertTrue(found.first().previousCard.isOutdated)
+
+        assertEquals(listOf(newCard.identifier), storage.getNewestCardIds())
+    }
+
+    @Test
+    fun search_cards() {
+        val identity1 = UUID.randomUUID().toString()
+        val identity2 = UUID.randomUUID().toString()
+        storage.storeCard(cards.generate(identity1))
+        storage.storeCard(cards.generate(identity2))
+
+        val found = storage.searchCards(listOf(identity1, identity2, UUID.randomUUID().toString()))
+        assertEquals(setOf(identity1, identity2), found.map { it.identity }.toSet())
+    }
+
+    @Test(expected = SQLiteStorageException::class)
+    fun search_empty_identities() {
+        storage.searchCards(listOf())
+    }
+
+    @Test
+    fun reset() {
+        val card = cards.generate(UUID.randomUUID().toString())
+        storage.storeCard(card)
+
+        storage.reset()
+
+        assertNull(storage.getCard(card.identifier))
+        assertTrue(storage.getNewestCardIds().isEmpty())
+    }
+
+    @Test
+    fun concurrent_store_and_search() {
+        val identities = (0 until THREADS_COUNT).map { UUID.randomUUID().toString() }
+        val executor = Executors.newFixedThreadPool(THREADS_COUNT)
+
+        val futures = identities.map { identity ->
+            executor.submit {
+                storage.storeCard(cards.generate(identity))
+                assertEquals(1, storage.searchCards(listOf(identity)).size)
+            }
+        }
+        futures.forEach { it.get(1, TimeUnit.MINUTES) }
+        executor.shutdown()
+
+        assertEquals(THREADS_COUNT, storage.getNewestCardIds().size)
+        assertEquals(THREADS_COUNT, storage.searchCards(identities).size)
+    }
+
+    companion object {
+        private const val THREADS_COUNT = 16
+    }
+}